@@ -0,0 +1,150 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link AwsBackupAgent} wired by hand, the way Spring would wire it, against an {@link InMemoryS3}. Manifests,
+ * journals and history go to a temporary directory that is removed on close.
+ */
+class BenchmarkAgent implements AutoCloseable {
+
+    static final String BUCKET_NAME = "benchmark";
+
+    private final Path stateDirectory;
+
+    private final InMemoryS3 s3;
+
+    private final BackupManifest backupManifest;
+
+    private final ChunkIndex chunkIndex;
+
+    private final BackupHistory backupHistory;
+
+    private final TransferEngine transferEngine;
+
+    private final StreamingUploader streamingUploader;
+
+    private final UploadCompressor uploadCompressor;
+
+    private final RunJournalStore runJournalStore;
+
+    private final RemoteInventory remoteInventory;
+
+    private final BackupTargets backupTargets;
+
+    private final FanOutUploader fanOutUploader;
+
+    private final UploadRetries uploadRetries;
+
+    private final DirectoryScanner directoryScanner;
+
+    private final AwsBackupAgent agent;
+
+    BenchmarkAgent(final BackupProperties backupProperties, final InMemoryS3 s3) throws IOException {
+
+        this.stateDirectory = Files.createTempDirectory("backup-benchmark-state");
+        this.s3 = s3;
+
+        backupProperties.setBucketName(BUCKET_NAME);
+        backupProperties.setManifestPath(stateDirectory.resolve("manifest.dat").toString());
+        backupProperties.setChunkIndexPath(stateDirectory.resolve("chunk-index.dat").toString());
+        backupProperties.setHistoryPath(stateDirectory.resolve("history.dat").toString());
+        backupProperties.setRunStatePath(stateDirectory.resolve("run-state").toString());
+        backupProperties.setRemoteInventoryPath(stateDirectory.resolve("remote-inventory").toString());
+        backupProperties.setDirectoryCachePath(stateDirectory.resolve("directory-cache.dat").toString());
+
+        final FileHasher fileHasher = new FileHasher();
+        this.backupManifest = new BackupManifest(backupProperties, fileHasher);
+        backupManifest.load();
+        this.chunkIndex = new ChunkIndex(backupProperties);
+        chunkIndex.load();
+        this.backupHistory = new BackupHistory(backupProperties);
+        backupHistory.load();
+
+        this.transferEngine = new TransferEngine(s3, backupProperties);
+        this.streamingUploader = new StreamingUploader(s3, backupProperties);
+        this.uploadCompressor = new UploadCompressor(backupProperties);
+        this.runJournalStore = new RunJournalStore(backupProperties);
+        this.remoteInventory = new RemoteInventory(s3, backupProperties);
+        this.backupTargets = new BackupTargets(s3, null);
+        this.fanOutUploader = new FanOutUploader(backupProperties, backupTargets);
+        this.uploadRetries = new UploadRetries(backupProperties);
+
+        final BackupFilter backupFilter = new BackupFilter(backupProperties);
+        this.directoryScanner = new DirectoryScanner(backupProperties, backupFilter);
+
+        this.agent = new AwsBackupAgent(transferEngine,
+                new DefaultResourceLoader(),
+                backupProperties,
+                backupManifest,
+                streamingUploader,
+                new ChunkedUploader(s3, backupProperties, chunkIndex),
+                uploadCompressor,
+                new SmallFilePacker(s3, backupProperties),
+                runJournalStore,
+                fileHasher,
+                new UploadThreads(backupProperties),
+                backupHistory,
+                new BackupMetrics(new SimpleMeterRegistry()),
+                remoteInventory,
+                backupFilter,
+                fanOutUploader,
+                backupTargets,
+                uploadRetries,
+                directoryScanner);
+    }
+
+    AwsBackupAgent getAgent() {
+        return agent;
+    }
+
+    DirectoryScanner getDirectoryScanner() {
+        return directoryScanner;
+    }
+
+    InMemoryS3 getS3() {
+        return s3;
+    }
+
+    /**
+     * Backs up the directory and waits for the run to finish.
+     */
+    BackupResponse backup(final Path directory) throws InterruptedException {
+
+        final BackupResponse backupResponse = agent.uploadFiles(directory.toUri().toString(), BUCKET_NAME);
+
+        while (backupResponse.getBackupState().isActive()) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+
+        return backupResponse;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        agent.shutdown();
+        transferEngine.shutdown();
+        streamingUploader.shutdown();
+        uploadCompressor.shutdown();
+        runJournalStore.close();
+        remoteInventory.shutdown();
+        fanOutUploader.shutdown();
+        backupTargets.shutdown();
+        uploadRetries.shutdown();
+        directoryScanner.shutdown();
+        backupHistory.close();
+        chunkIndex.close();
+        backupManifest.close();
+
+        FileSystemUtils.deleteRecursively(stateDirectory);
+    }
+}
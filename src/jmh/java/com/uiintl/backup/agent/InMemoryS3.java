@@ -0,0 +1,238 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process stand-in for S3 covering the calls a backup makes. Request bodies are read in full, as they would be
+ * sent, but only object metadata is kept, and every request can be made to take a fixed time to stand in for the
+ * network round trip. Benchmarks run against it offline and give the same answer every time.
+ */
+class InMemoryS3 extends AbstractAmazonS3 {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final long requestLatencyMicros;
+
+    private final Map<String, ObjectMetadata> objects = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> multipartUploads = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder bytesReceived = new LongAdder();
+
+    InMemoryS3(final long requestLatencyMicros) {
+        this.requestLatencyMicros = requestLatencyMicros;
+    }
+
+    int objectCount() {
+        return objects.size();
+    }
+
+    long requestCount() {
+        return requests.sum();
+    }
+
+    long bytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    void clear() {
+        objects.clear();
+        multipartUploads.clear();
+    }
+
+    @Override
+    public PutObjectResult putObject(final PutObjectRequest putObjectRequest) {
+
+        this.request();
+
+        final long length = putObjectRequest.getFile() != null
+                ? this.consume(putObjectRequest.getFile(), 0, Long.MAX_VALUE)
+                : this.consume(putObjectRequest.getInputStream());
+
+        final ObjectMetadata metadata = putObjectRequest.getMetadata() != null ? putObjectRequest.getMetadata().clone() : new ObjectMetadata();
+        metadata.setContentLength(length);
+        objects.put(objectKey(putObjectRequest.getBucketName(), putObjectRequest.getKey()), metadata);
+
+        final PutObjectResult result = new PutObjectResult();
+        result.setETag(UUID.randomUUID().toString());
+        result.setMetadata(metadata);
+
+        return result;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(final GetObjectMetadataRequest getObjectMetadataRequest) {
+
+        this.request();
+
+        final ObjectMetadata metadata = objects.get(objectKey(getObjectMetadataRequest.getBucketName(), getObjectMetadataRequest.getKey()));
+
+        if (metadata == null) {
+            final AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+            notFound.setStatusCode(404);
+            throw notFound;
+        }
+
+        return metadata;
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(final InitiateMultipartUploadRequest initiateMultipartUploadRequest) {
+
+        this.request();
+
+        final String uploadId = UUID.randomUUID().toString();
+        multipartUploads.put(uploadId, new AtomicLong());
+
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(initiateMultipartUploadRequest.getBucketName());
+        result.setKey(initiateMultipartUploadRequest.getKey());
+        result.setUploadId(uploadId);
+
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(final UploadPartRequest uploadPartRequest) {
+
+        this.request();
+
+        final long length;
+
+        if (uploadPartRequest.getInputStream() != null) {
+            length = this.consume(uploadPartRequest.getInputStream(), uploadPartRequest.getPartSize());
+
+        } else {
+            length = this.consume(uploadPartRequest.getFile(), uploadPartRequest.getFileOffset(), uploadPartRequest.getPartSize());
+        }
+
+        multipartUploads.get(uploadPartRequest.getUploadId()).addAndGet(length);
+
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(uploadPartRequest.getPartNumber());
+        result.setETag(UUID.randomUUID().toString());
+
+        return result;
+    }
+
+    /**
+     * Part numbers and ETags are not kept, so an upload always lists as having no parts yet; the transfer
+     * manager asks before it uploads any.
+     */
+    @Override
+    public PartListing listParts(final ListPartsRequest listPartsRequest) {
+
+        this.request();
+
+        final PartListing partListing = new PartListing();
+        partListing.setBucketName(listPartsRequest.getBucketName());
+        partListing.setKey(listPartsRequest.getKey());
+        partListing.setUploadId(listPartsRequest.getUploadId());
+
+        return partListing;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(final CompleteMultipartUploadRequest completeMultipartUploadRequest) {
+
+        this.request();
+
+        final AtomicLong length = multipartUploads.remove(completeMultipartUploadRequest.getUploadId());
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(length.get());
+        objects.put(objectKey(completeMultipartUploadRequest.getBucketName(), completeMultipartUploadRequest.getKey()), metadata);
+
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(completeMultipartUploadRequest.getBucketName());
+        result.setKey(completeMultipartUploadRequest.getKey());
+        result.setETag(UUID.randomUUID().toString());
+
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(final AbortMultipartUploadRequest abortMultipartUploadRequest) {
+        this.request();
+        multipartUploads.remove(abortMultipartUploadRequest.getUploadId());
+    }
+
+    private void request() {
+
+        requests.increment();
+
+        if (requestLatencyMicros > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(requestLatencyMicros);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long consume(final File file, final long offset, final long limit) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return this.consume(Channels.newInputStream(channel.position(offset)), limit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long consume(final InputStream in) {
+        return this.consume(in, Long.MAX_VALUE);
+    }
+
+    private long consume(final InputStream in, final long limit) {
+
+        final byte[] buffer = BUFFERS.get();
+        long total = 0;
+
+        try {
+            int read;
+
+            while (total < limit && (read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) > 0) {
+                total += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        bytesReceived.add(total);
+
+        return total;
+    }
+
+    private static String objectKey(final String bucketName, final String key) {
+        return bucketName + "/" + key;
+    }
+}
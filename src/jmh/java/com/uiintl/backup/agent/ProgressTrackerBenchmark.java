@@ -0,0 +1,66 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SDK calls a run's {@link AwsBackupAgent.ProgressTracker} for every buffer it sends, on the sending thread,
+ * so with many uploads in flight the callback is on the hot path of every one of them. Measured on one thread and
+ * on eight sharing one tracker, as the parts of a multipart upload do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgressTrackerBenchmark {
+
+    /**
+     * The SDK reports progress in steps of its 8KB stream buffer.
+     */
+    private static final ProgressEvent BYTES_SENT = new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 8 * 1024);
+
+    @Param({"false", "true"})
+    public boolean fileProgress;
+
+    private AwsBackupAgent.ProgressTracker progressTracker;
+
+    @Setup
+    public void setUp() {
+
+        final BackupResponse backupResponse = new BackupResponse(UUID.randomUUID().toString(), new Date(), BackupResponse.BackupState.STARTED,
+                new AtomicInteger(), new AtomicInteger(), new AtomicInteger(), false);
+
+        progressTracker = new AwsBackupAgent.ProgressTracker(backupResponse, new BackupMetrics(new SimpleMeterRegistry()), fileProgress);
+    }
+
+    @Benchmark
+    public void progressChanged() {
+        progressTracker.progressChanged(BYTES_SENT);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void progressChangedContended() {
+        progressTracker.progressChanged(BYTES_SENT);
+    }
+}
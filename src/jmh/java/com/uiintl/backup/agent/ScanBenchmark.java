@@ -0,0 +1,126 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.uiintl.backup.config.BackupProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Walks a tree of empty files the way a backup's scan stage does, handing every file to a sink that does nothing,
+ * so only the walk, the include/exclude filter and building the requests are measured. With {@code excludes} off
+ * the filter has no patterns to match. With {@code directoryCache} on, the sink reports every file as backed up
+ * and a first scan fills the cache, so the measured scans skip every directory the way an incremental run over an
+ * unchanged tree does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"10000", "100000"})
+    public int fileCount;
+
+    @Param({"false", "true"})
+    public boolean excludes;
+
+    @Param({"1", "8"})
+    public int scanThreads;
+
+    @Param({"false", "true"})
+    public boolean directoryCache;
+
+    private Path tree;
+
+    private BenchmarkAgent benchmarkAgent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        tree = SyntheticTree.create(fileCount, 0);
+
+        final BackupProperties backupProperties = new BackupProperties();
+
+        if (!excludes) {
+            backupProperties.getExcludes().clear();
+        }
+
+        backupProperties.setScanThreads(scanThreads);
+        backupProperties.setIncremental(true);
+        backupProperties.setDirectoryCache(directoryCache);
+
+        benchmarkAgent = new BenchmarkAgent(backupProperties, new InMemoryS3(0));
+
+        if (directoryCache) {
+            // directories modified just before a scan are not cached, so the tree has to look older.
+            final FileTime lastModified = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+
+            try (Stream<Path> paths = Files.walk(tree)) {
+                for (Path directory : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                    Files.setLastModifiedTime(directory, lastModified);
+                }
+            }
+
+            this.scan(null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        benchmarkAgent.close();
+        SyntheticTree.delete(tree);
+    }
+
+    @Benchmark
+    public void scan(final Blackhole blackhole) throws IOException {
+
+        final LongAdder files = new LongAdder();
+
+        benchmarkAgent.getDirectoryScanner().scan(tree, BenchmarkAgent.BUCKET_NAME, new DirectoryScanner.FileSink() {
+
+            @Override
+            public boolean accept(final PutObjectRequest putObjectRequest, final BasicFileAttributes attributes) {
+
+                if (blackhole != null) {
+                    blackhole.consume(putObjectRequest);
+                }
+
+                files.increment();
+
+                return !directoryCache;
+            }
+
+            @Override
+            public void skipped(final int skippedFiles) {
+                files.add(skippedFiles);
+            }
+        });
+
+        if (files.sum() != fileCount) {
+            throw new IllegalStateException("Found " + files.sum() + " of " + fileCount + " files");
+        }
+    }
+}
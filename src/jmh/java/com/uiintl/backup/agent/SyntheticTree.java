@@ -0,0 +1,51 @@
+package com.uiintl.backup.agent;
+
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Directory trees of generated files for benchmarks. Contents come from a fixed seed, so every run backs up the
+ * same bytes.
+ */
+final class SyntheticTree {
+
+    private static final long SEED = 20160210L;
+
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private SyntheticTree() {
+    }
+
+    /**
+     * @param fileCount spread over directories of {@value #FILES_PER_DIRECTORY} files.
+     */
+    static Path create(final int fileCount, final int fileSize) throws IOException {
+
+        final Path root = Files.createTempDirectory("backup-benchmark-tree");
+        final Random random = new Random(SEED);
+        final byte[] buffer = new byte[Math.min(fileSize, 1024 * 1024)];
+
+        for (int i = 0; i < fileCount; i++) {
+            final Path directory = root.resolve("d" + i / FILES_PER_DIRECTORY);
+            Files.createDirectories(directory);
+
+            try (OutputStream out = Files.newOutputStream(directory.resolve("f" + i + ".bin"))) {
+                for (long written = 0; written < fileSize; written += buffer.length) {
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+                }
+            }
+        }
+
+        return root;
+    }
+
+    static void delete(final Path root) throws IOException {
+        FileSystemUtils.deleteRecursively(root);
+    }
+}
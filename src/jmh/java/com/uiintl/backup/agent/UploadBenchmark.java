@@ -0,0 +1,104 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full, non-incremental {@link AwsBackupAgent#uploadFiles} run, from the scan through hashing to the last
+ * upload, of either many small files or a few huge ones, one file at a time and several at once. The S3 stand-in
+ * answers at once by default, so the agent itself is what is measured; {@code checksums} adds the MD5 and SHA-256
+ * pass over every file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+    @Param({"SMALL_FILES", "HUGE_FILES"})
+    public Shape shape;
+
+    @Param({"false", "true"})
+    public boolean checksums;
+
+    @Param({"1", "8"})
+    public int uploadConcurrency;
+
+    @Param({"0"})
+    public long requestLatencyMicros;
+
+    private Path tree;
+
+    private BenchmarkAgent benchmarkAgent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        tree = SyntheticTree.create(shape.fileCount, shape.fileSize);
+
+        final BackupProperties backupProperties = new BackupProperties();
+        backupProperties.setChecksums(checksums);
+        backupProperties.setUploadConcurrency(uploadConcurrency);
+        backupProperties.setResumable(false);
+
+        benchmarkAgent = new BenchmarkAgent(backupProperties, new InMemoryS3(requestLatencyMicros));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        benchmarkAgent.close();
+        SyntheticTree.delete(tree);
+    }
+
+    @Benchmark
+    public BackupResponse uploadFiles() throws InterruptedException {
+
+        final BackupResponse backupResponse = benchmarkAgent.backup(tree);
+
+        final long totalBytes = (long) shape.fileCount * shape.fileSize;
+
+        if (backupResponse.getUploadedFiles().get() != shape.fileCount || backupResponse.getProcessedBytes().sum() != totalBytes) {
+            throw new IllegalStateException("Uploaded " + backupResponse.getUploadedFiles() + " of " + shape.fileCount + " files, "
+                    + backupResponse.getProcessedBytes() + " of " + totalBytes + " bytes");
+        }
+
+        return backupResponse;
+    }
+
+    /**
+     * The two trees that stress a backup differently: per-file overhead, and bytes per second.
+     */
+    public enum Shape {
+
+        SMALL_FILES(20_000, 4 * 1024),
+
+        HUGE_FILES(4, 256 * 1024 * 1024);
+
+        private final int fileCount;
+
+        private final int fileSize;
+
+        Shape(final int fileCount, final int fileSize) {
+            this.fileCount = fileCount;
+            this.fileSize = fileSize;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backs up tens of thousands of small files to an S3 stand-in that takes {@code requestLatencyMicros} per
+ * request, once on a platform thread pool of {@code uploadConcurrency} threads and once on virtual threads with
+ * the same limit. Virtual threads need Java 21; on older JVMs both runs use platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadThreadsBenchmark {
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"20000"})
+    public int fileCount;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    @Param({"256"})
+    public int uploadConcurrency;
+
+    @Param({"2000"})
+    public long requestLatencyMicros;
+
+    private Path tree;
+
+    private BenchmarkAgent benchmarkAgent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        tree = SyntheticTree.create(fileCount, fileSize);
+
+        final BackupProperties backupProperties = new BackupProperties();
+        backupProperties.setVirtualThreads(virtualThreads);
+        backupProperties.setUploadConcurrency(uploadConcurrency);
+        backupProperties.setChecksums(false);
+        backupProperties.setResumable(false);
+
+        benchmarkAgent = new BenchmarkAgent(backupProperties, new InMemoryS3(requestLatencyMicros));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        benchmarkAgent.close();
+        SyntheticTree.delete(tree);
+    }
+
+    @Benchmark
+    public BackupResponse uploadSmallFiles() throws InterruptedException {
+
+        final BackupResponse backupResponse = benchmarkAgent.backup(tree);
+
+        if (backupResponse.getUploadedFiles().get() != fileCount) {
+            throw new IllegalStateException("Uploaded " + backupResponse.getUploadedFiles() + " of " + fileCount + " files");
+        }
+
+        return backupResponse;
+    }
+}
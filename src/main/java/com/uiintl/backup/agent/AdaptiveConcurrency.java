@@ -0,0 +1,282 @@
+package com.uiintl.backup.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The slots for a run's uploads in flight. With {@code adaptiveConcurrency} the number of slots is halved when S3
+ * throttles an upload and grows back by one for every limit's worth of uploads that succeed, the
+ * additive-increase/multiplicative-decrease of TCP, between 1 and {@code uploadConcurrency}. Only an upload
+ * started after the last cut can cut again, so the uploads throttled together count once.
+ * <p>
+ * An upload waiting for a retry holds no slot. Once its wait is over it takes the next slot freed, ahead of new
+ * files, without any thread waiting for it. Files are counted from their first slot until they are finished, so
+ * the run can wait for the retries as well.
+ * <p>
+ * After {@code circuitBreakerThreshold} uploads in a row fail throttled or for a reason that may pass, the
+ * breaker opens: no upload or retry starts for {@code circuitBreakerDelay} milliseconds, then a single one is let
+ * through as a probe. Any success closes the breaker and the run carries on; a probe that fails the same way opens
+ * it for another delay. The files held back meanwhile are not failed, the run waits for S3 to recover.
+ */
+class AdaptiveConcurrency {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+
+    private enum Breaker {
+        CLOSED, OPEN, HALF_OPEN, PROBING
+    }
+
+    private final int maxLimit;
+
+    private final boolean adaptive;
+
+    private final int breakerThreshold;
+
+    private final long breakerDelay;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Deque<Runnable> readyRetries = new ArrayDeque<>();
+
+    /**
+     * Fractional, so additive increase adds up to a slot over a limit's worth of successes.
+     */
+    private double limit;
+
+    private int inFlight;
+
+    private int unfinishedFiles;
+
+    private long lastDecrease = System.nanoTime();
+
+    private int failuresInARow;
+
+    private Breaker breaker = Breaker.CLOSED;
+
+    private long probeStart;
+
+    /**
+     * @param breakerThreshold failures in a row that open the breaker, 0 for none.
+     * @param scheduler        lets the probe through once the breaker has been open for {@code breakerDelay} ms.
+     */
+    AdaptiveConcurrency(final int maxLimit, final boolean adaptive, final int breakerThreshold, final long breakerDelay,
+                        final ScheduledExecutorService scheduler) {
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        this.limit = maxLimit;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerDelay = breakerDelay;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Waits for a slot for a new file.
+     */
+    synchronized void acquire() throws InterruptedException {
+
+        while (inFlight >= (int) limit || !readyRetries.isEmpty() || !this.mayStart()) {
+            this.wait();
+        }
+
+        this.started();
+        unfinishedFiles++;
+    }
+
+    /**
+     * Frees the slot of an upload that is finished or waiting for a retry, handing it to a retry that is ready.
+     */
+    void release() {
+
+        final Runnable retry;
+
+        synchronized (this) {
+            inFlight--;
+            retry = this.takeReadyRetry();
+            this.notifyAll();
+        }
+
+        if (retry != null) {
+            retry.run();
+        }
+    }
+
+    /**
+     * Runs the retry, which must not block, in a free slot now or in the next one freed.
+     */
+    void retry(final Runnable retry) {
+
+        synchronized (this) {
+            if (inFlight >= (int) limit || !this.mayStart()) {
+                readyRetries.add(retry);
+                return;
+            }
+
+            this.started();
+        }
+
+        retry.run();
+    }
+
+    synchronized void fileFinished() {
+        if (--unfinishedFiles == 0) {
+            this.notifyAll();
+        }
+    }
+
+    synchronized void awaitFinished() throws InterruptedException {
+        while (unfinishedFiles > 0) {
+            this.wait();
+        }
+    }
+
+    void onSuccess() {
+
+        final List<Runnable> retries = new ArrayList<>();
+
+        synchronized (this) {
+            failuresInARow = 0;
+
+            if (adaptive && limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+                this.notifyAll();
+            }
+
+            if (breaker != Breaker.CLOSED) {
+                LOGGER.info("S3 is taking uploads again, resuming them");
+                breaker = Breaker.CLOSED;
+
+                for (Runnable retry = this.takeReadyRetry(); retry != null; retry = this.takeReadyRetry()) {
+                    retries.add(retry);
+                }
+
+                this.notifyAll();
+            }
+        }
+
+        retries.forEach(Runnable::run);
+    }
+
+    /**
+     * @param startTime when the failed upload was started, from {@link System#nanoTime()}.
+     */
+    void onFailure(final UploadFailure failure, final long startTime) {
+
+        final Runnable retry;
+
+        synchronized (this) {
+            if (failure == UploadFailure.THROTTLED) {
+                this.onThrottled(startTime);
+            }
+
+            final boolean probe = breaker == Breaker.PROBING && startTime - probeStart >= 0;
+
+            if (failure == UploadFailure.PERMANENT) {
+                // says nothing about S3, so another upload gets to try.
+                retry = probe ? this.halfOpen() : null;
+
+            } else {
+                retry = null;
+                failuresInARow++;
+
+                if (probe) {
+                    LOGGER.warn("Upload still failing, pausing uploads for another {} ms", breakerDelay);
+                    this.open();
+
+                } else if (breaker == Breaker.CLOSED && breakerThreshold > 0 && failuresInARow >= breakerThreshold) {
+                    LOGGER.warn("The last {} uploads failed, pausing uploads for {} ms", failuresInARow, breakerDelay);
+                    this.open();
+                }
+            }
+        }
+
+        if (retry != null) {
+            retry.run();
+        }
+    }
+
+    private void onThrottled(final long startTime) {
+
+        if (!adaptive || startTime - lastDecrease < 0) {
+            return;
+        }
+
+        limit = Math.max(1, limit / 2);
+        lastDecrease = System.nanoTime();
+
+        LOGGER.warn("S3 is throttling uploads, cutting them to {} at a time", (int) limit);
+    }
+
+    private void open() {
+
+        breaker = Breaker.OPEN;
+
+        try {
+            scheduler.schedule(this::letProbeThrough, breakerDelay, TimeUnit.MILLISECONDS);
+
+        } catch (RejectedExecutionException e) {
+            // shutting down, so there is no point waiting.
+            breaker = Breaker.HALF_OPEN;
+        }
+    }
+
+    private void letProbeThrough() {
+
+        final Runnable retry;
+
+        synchronized (this) {
+            if (breaker != Breaker.OPEN) {
+                return;
+            }
+
+            LOGGER.info("Trying one upload to see whether S3 has recovered");
+            retry = this.halfOpen();
+        }
+
+        if (retry != null) {
+            retry.run();
+        }
+    }
+
+    /**
+     * Lets the next upload through as the probe, a waiting retry first.
+     */
+    private Runnable halfOpen() {
+        breaker = Breaker.HALF_OPEN;
+        this.notifyAll();
+
+        return this.takeReadyRetry();
+    }
+
+    private boolean mayStart() {
+        return breaker == Breaker.CLOSED || breaker == Breaker.HALF_OPEN;
+    }
+
+    private void started() {
+
+        inFlight++;
+
+        if (breaker == Breaker.HALF_OPEN) {
+            breaker = Breaker.PROBING;
+            probeStart = System.nanoTime();
+        }
+    }
+
+    private Runnable takeReadyRetry() {
+
+        if (readyRetries.isEmpty() || inFlight >= (int) limit || !this.mayStart()) {
+            return null;
+        }
+
+        this.started();
+
+        return readyRetries.poll();
+    }
+}
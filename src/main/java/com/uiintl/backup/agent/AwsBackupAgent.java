@@ -17,31 +17,45 @@ package com.uiintl.backup.agent;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.event.ProgressEvent;
-import com.amazonaws.event.ProgressListener;
-import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.SyncProgressListener;
+import com.amazonaws.services.s3.Headers;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import com.amazonaws.services.s3.transfer.TransferProgress;
+import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3SyncProgressListener;
+import com.uiintl.backup.config.BackupProperties;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
-import org.springframework.util.CollectionUtils;
-import org.springframework.util.StopWatch;
 
+import javax.annotation.PreDestroy;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.InputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 
 /**
@@ -54,158 +68,950 @@ public class AwsBackupAgent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AwsBackupAgent.class);
 
-    private final AmazonS3 s3;
+    /**
+     * Keeps runs of changed files apart from backups of the whole path, which may have scanned past the files.
+     */
+    private static final String CHANGED_FILES_JOB_SUFFIX = "#changes";
+
+    private final TransferEngine transferEngine;
 
     private final ResourceLoader resourceLoader;
 
-    private final LinkedHashMap<String, BackupResponse> responses = new LinkedHashMap<>(10) {
-        @Override
-        protected boolean removeEldestEntry(final Map.Entry<String, BackupResponse> eldest) {
-            return this.size() > 10;
-        }
-    };
+    private final BackupProperties backupProperties;
+
+    private final BackupManifest backupManifest;
+
+    private final StreamingUploader streamingUploader;
+
+    private final ChunkedUploader chunkedUploader;
+
+    private final UploadCompressor uploadCompressor;
+
+    private final SmallFilePacker smallFilePacker;
+
+    private final RunJournalStore runJournalStore;
+
+    private final FileHasher fileHasher;
+
+    private final UploadThreads uploadThreads;
+
+    private volatile boolean shuttingDown;
+
+    private final ExecutorService scanExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("backup-scan-"));
+
+    /**
+     * Runs up to {@code maxConcurrentJobs} backups, taking queued jobs highest priority first.
+     */
+    private final ThreadPoolExecutor jobExecutor;
+
+    private final Map<String, BackupJob> activeJobs = new ConcurrentHashMap<>();
+
+    private long jobSequence;
+
+    private final BackupHistory backupHistory;
+
+    private final BackupMetrics backupMetrics;
+
+    private final RemoteInventory remoteInventory;
+
+    private final BackupFilter backupFilter;
+
+    private final FanOutUploader fanOutUploader;
+
+    private final BackupTargets backupTargets;
+
+    private final UploadRetries uploadRetries;
+
+    private final DirectoryScanner directoryScanner;
 
     @Autowired
-    public AwsBackupAgent(final AmazonS3 s3, final ResourceLoader resourceLoader) {
-        this.s3 = s3;
+    public AwsBackupAgent(final TransferEngine transferEngine,
+                          final ResourceLoader resourceLoader,
+                          final BackupProperties backupProperties,
+                          final BackupManifest backupManifest,
+                          final StreamingUploader streamingUploader,
+                          final ChunkedUploader chunkedUploader,
+                          final UploadCompressor uploadCompressor,
+                          final SmallFilePacker smallFilePacker,
+                          final RunJournalStore runJournalStore,
+                          final FileHasher fileHasher,
+                          final UploadThreads uploadThreads,
+                          final BackupHistory backupHistory,
+                          final BackupMetrics backupMetrics,
+                          final RemoteInventory remoteInventory,
+                          final BackupFilter backupFilter,
+                          final FanOutUploader fanOutUploader,
+                          final BackupTargets backupTargets,
+                          final UploadRetries uploadRetries,
+                          final DirectoryScanner directoryScanner) {
+        this.transferEngine = transferEngine;
         this.resourceLoader = resourceLoader;
+        this.backupProperties = backupProperties;
+        this.backupManifest = backupManifest;
+        this.streamingUploader = streamingUploader;
+        this.chunkedUploader = chunkedUploader;
+        this.uploadCompressor = uploadCompressor;
+        this.smallFilePacker = smallFilePacker;
+        this.runJournalStore = runJournalStore;
+        this.fileHasher = fileHasher;
+        this.uploadThreads = uploadThreads;
+        this.backupHistory = backupHistory;
+        this.backupMetrics = backupMetrics;
+        this.remoteInventory = remoteInventory;
+        this.backupFilter = backupFilter;
+        this.fanOutUploader = fanOutUploader;
+        this.backupTargets = backupTargets;
+        this.uploadRetries = uploadRetries;
+        this.directoryScanner = directoryScanner;
+
+        final int maxConcurrentJobs = Math.max(1, backupProperties.getMaxConcurrentJobs());
+        this.jobExecutor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), new CustomizableThreadFactory("backup-run-"));
     }
 
     public BackupResponse uploadFiles(final String backupPath, final String bucketName) {
+        return this.uploadFiles(backupPath, bucketName, JobPriority.AD_HOC);
+    }
 
-        AtomicInteger uploadedFiles = new AtomicInteger(0);
-        final List<PutObjectRequest> putObjectRequests = this.readFiles(backupPath, bucketName);
+    /**
+     * Queues a backup of the path. If a backup of the same path to the same bucket is already queued or running,
+     * the request joins it and gets its response instead.
+     *
+     * @throws RejectedExecutionException if {@code jobQueueCapacity} jobs are already waiting.
+     */
+    public BackupResponse uploadFiles(final String backupPath, final String bucketName, final JobPriority priority) {
 
-        final String id = UUID.randomUUID().toString();
-        final BackupResponse backupResponse = new BackupResponse(id, new Date(), BackupResponse.BackupState.STARTED, putObjectRequests.size(), uploadedFiles);
-        responses.put(id, backupResponse);
+        final Resource resource = this.resolveResource(backupPath);
 
-        CompletableFuture.supplyAsync(() -> {
-            if (!CollectionUtils.isEmpty(putObjectRequests)) {
-                LOGGER.info("Found {} files, initiate file upload to S3.", putObjectRequests.size());
+        return this.submitJob(resource, backupPath, bucketName, priority, null, null, null);
+    }
 
-                final TransferManager transferManager = TransferManagerBuilder.standard()
-                        .withS3Client(s3)
-                        .withMultipartUploadThreshold((long) (5 * 1024 * 1025))
-                        .build();
+    /**
+     * Queues a backup of just the given files below the path, such as the ones a watcher saw change. Files that
+     * no longer exist are left out. These runs are not journaled and only join another run of changed files of
+     * the same path, never a backup of the whole path.
+     *
+     * @param tooYoung told of the files left out only for being younger than {@code minFileAge}, which no later
+     *                 change may report again; called from the scan.
+     */
+    public BackupResponse uploadChangedFiles(final String backupPath, final String bucketName, final Collection<Path> files,
+                                             final Consumer<Path> tooYoung) {
 
-                final StopWatch overallUpload = new StopWatch("MYOB Backup");
+        final Resource resource = this.resolveResource(backupPath);
 
-                for (PutObjectRequest putObjectRequest : putObjectRequests) {
-                    try {
-                        LOGGER.info("Uploading {}", putObjectRequest.getKey());
+        return this.submitJob(resource, backupPath, bucketName, JobPriority.CONTINUOUS, null, new ArrayList<>(files), tooYoung);
+    }
 
-                        overallUpload.start(putObjectRequest.getKey());
+    /**
+     * Picks up runs that were cut short by a restart. Each keeps its id and skips the files its earlier
+     * attempts finished, and multipart uploads that were in flight continue from the parts already in S3.
+     */
+    public List<BackupResponse> resumeInterruptedRuns() {
 
-                        final Upload upload = transferManager.upload(putObjectRequest);
-                        final TransferProgress progress = upload.getProgress();
-                        upload.addProgressListener(new ProgressTracker(putObjectRequest.getKey(), progress.getTotalBytesToTransfer()));
-                        upload.waitForCompletion();
-                        overallUpload.stop();
+        final List<BackupResponse> resumed = new ArrayList<>();
 
-                        LOGGER.info("Completed: {}", overallUpload.prettyPrint());
-                        uploadedFiles.incrementAndGet();
+        for (RunJournal journal : runJournalStore.claimInterrupted()) {
+            LOGGER.info("Resuming run {} of {} to {}, {} files already uploaded", journal.getId(), journal.getBackupPath(), journal.getBucketName(), journal.completedCount());
 
-                    } catch (AmazonClientException e) {
-                        LOGGER.error("Error while uploading file {}: {}", putObjectRequest.getKey(), e.getMessage(), e);
-                        handleAwsException(e);
-                    } catch (Exception e) {
-                        LOGGER.error("General exception: {}", e.getMessage(), e);
-                    }
-                }
+            try {
+                final Resource resource = this.resolveResource(journal.getBackupPath());
+                resumed.add(this.submitJob(resource, journal.getBackupPath(), journal.getBucketName(), JobPriority.SCHEDULED, journal, null, null));
 
-                LOGGER.info(overallUpload.prettyPrint());
-                BackupResponse.BackupState backupState;
+            } catch (RejectedExecutionException e) {
+                LOGGER.warn("Unable to resume run {} yet: {}", journal.getId(), e.getMessage());
+                runJournalStore.release(journal);
 
-                if (uploadedFiles.get() == putObjectRequests.size()) {
-                    backupState = BackupResponse.BackupState.SUCCESS;
+            } catch (RuntimeException e) {
+                LOGGER.error("Unable to resume run {}: {}", journal.getId(), e.getMessage(), e);
+                runJournalStore.finish(journal);
+            }
+        }
 
-                } else if (uploadedFiles.get() > 0) {
-                    backupState = BackupResponse.BackupState.PARTIAL_FAIL;
+        return resumed;
+    }
+
+    /**
+     * @param journal  the journal of an interrupted run to resume, or null for a new run.
+     * @param files    the files to back up, or null for everything under the path.
+     * @param tooYoung told of the files left out for being too young, or null.
+     */
+    private synchronized BackupResponse submitJob(final Resource resource, final String backupPath, final String bucketName,
+                                                  final JobPriority priority, final RunJournal journal, final List<Path> files,
+                                                  final Consumer<Path> tooYoung) {
 
+        final String key = files != null ? jobKey(resource, backupPath, bucketName) + CHANGED_FILES_JOB_SUFFIX : jobKey(resource, backupPath, bucketName);
+        final BackupJob activeJob = activeJobs.get(key);
+
+        // a job is only removed after its run has finished, and one that has finished covers nothing new.
+        if (activeJob != null && activeJob.getBackupResponse().getBackupState().isActive()) {
+            LOGGER.info("Backup of {} to {} is already {}, joining run {}", backupPath, bucketName,
+                    activeJob.getBackupResponse().getBackupState(), activeJob.getBackupResponse().getId());
+
+            // the run already under way covers the same files.
+            if (journal != null) {
+                runJournalStore.finish(journal);
+            }
+
+            return activeJob.getBackupResponse();
+        }
+
+        if (jobExecutor.isShutdown()) {
+            throw new RejectedExecutionException("Backup agent is shutting down");
+        }
+
+        if (jobExecutor.getQueue().size() >= backupProperties.getJobQueueCapacity()) {
+            throw new RejectedExecutionException("Backup job queue is full, " + jobExecutor.getQueue().size() + " jobs waiting");
+        }
+
+        final String id = journal != null ? journal.getId() : UUID.randomUUID().toString();
+        final boolean resumed = journal != null && journal.completedCount() > 0;
+        final BackupResponse backupResponse = new BackupResponse(id, new Date(), BackupResponse.BackupState.QUEUED, new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0), resumed);
+        backupHistory.record(backupResponse);
+
+        final BackupJob job = new BackupJob(key, priority, jobSequence++, backupResponse, queued -> this.runJob(queued, resource, backupPath, bucketName, journal, files, tooYoung));
+        activeJobs.put(key, job);
+        jobExecutor.execute(job);
+
+        LOGGER.info("Queued {} backup {} of {} to {}, {} jobs waiting", priority, id, backupPath, bucketName, jobExecutor.getQueue().size());
+
+        return backupResponse;
+    }
+
+    private void runJob(final BackupJob job, final Resource resource, final String backupPath, final String bucketName,
+                        final RunJournal resumedJournal, final List<Path> files, final Consumer<Path> tooYoung) {
+
+        final BackupResponse backupResponse = job.getBackupResponse();
+        RunJournal journal = resumedJournal;
+
+        try {
+            // a journal resumes a run of the whole path, and a few changed files are quicker to send again.
+            if (journal == null && files == null) {
+                journal = runJournalStore.open(backupResponse.getId(), backupPath, bucketName);
+            }
+
+            this.runBackup(backupResponse, resource, backupPath, bucketName, journal, files, tooYoung);
+            LOGGER.info("Backup complete: {}", backupResponse);
+
+        } catch (RuntimeException e) {
+            LOGGER.error("Backup {} of {} failed: {}", backupResponse.getId(), backupPath, e.getMessage(), e);
+
+            // resuming a run that failed this way would only fail again, after every restart.
+            if (journal != null) {
+                if (shuttingDown) {
+                    runJournalStore.release(journal);
                 } else {
-                    backupState = BackupResponse.BackupState.FAIL;
+                    runJournalStore.finish(journal);
                 }
+            }
+
+            backupResponse.setBackupState(BackupResponse.BackupState.FAIL);
+            backupResponse.setFinishedDate(new Date());
+            backupMetrics.runFinished(backupResponse);
+            backupHistory.record(backupResponse);
+
+        } finally {
+            activeJobs.remove(job.getKey(), job);
+        }
+    }
+
+    /**
+     * Scans on the scan executor while uploading on the calling job thread, and returns once the run has finished.
+     */
+    private void runBackup(final BackupResponse backupResponse, final Resource resource, final String backupPath, final String bucketName,
+                           final RunJournal journal, final List<Path> files, final Consumer<Path> tooYoung) {
+
+        final String id = backupResponse.getId();
+        final AtomicInteger uploadedFiles = backupResponse.getUploadedFiles();
+        backupResponse.setBackupState(BackupResponse.BackupState.STARTED);
+        backupResponse.setStartedDate(new Date());
+        backupHistory.record(backupResponse);
+        backupMetrics.runStarted(backupResponse);
+
+        final BackupTarget target = BackupTargets.isTarget(bucketName) ? backupTargets.resolve(bucketName) : null;
+        final BackupRun run = new BackupRun(backupResponse, backupPath, bucketName, target, journal, files, tooYoung);
+        final UploadQueue uploadQueue = new UploadQueue(backupProperties.getScanQueueCapacity(), backupResponse.getQueueDepth());
+        scanExecutor.execute(() -> this.readFiles(resource, run, uploadQueue));
+
+        if (uploadQueue.hasNext()) {
+            LOGGER.info("Found files, initiate file upload to S3 while scanning continues.");
+
+            final int uploadConcurrency = Math.max(1, backupProperties.getUploadConcurrency());
+            // packs only go to the main bucket, so targets and fan-outs get every file on its own.
+            final SmallFilePacker.PackWriter packWriter = smallFilePacker.isEnabled() && target == null && !fanOutUploader.isEnabled()
+                    ? smallFilePacker.newWriter(bucketName, id, new ProgressTracker(backupResponse, backupMetrics, false))
+                    : null;
+            run.setPackWriter(packWriter);
+            final long startTime = System.currentTimeMillis();
+
+            try {
+                this.uploadConcurrently(uploadQueue, run, uploadConcurrency);
+            } catch (InterruptedException e) {
+                LOGGER.error("Interrupted while waiting for uploads to complete", e);
+                Thread.currentThread().interrupt();
+            } finally {
+                uploadQueue.cancel();
+
+                if (packWriter != null) {
+                    packWriter.close();
+                }
+            }
+
+            final int totalFiles = backupResponse.getTotalFiles().get();
+            final long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            LOGGER.info("Uploaded {}/{} files in {} ms ({} files/s, concurrency {})",
+                    uploadedFiles.get(), totalFiles, elapsed, String.format("%.2f", uploadedFiles.get() * 1000.0 / elapsed), uploadConcurrency);
+
+            BackupResponse.BackupState backupState;
+
+            if (uploadedFiles.get() == totalFiles) {
+                backupState = BackupResponse.BackupState.SUCCESS;
+
+            } else if (uploadedFiles.get() > 0) {
+                backupState = BackupResponse.BackupState.PARTIAL_FAIL;
 
-                backupResponse.setBackupState(backupState);
             } else {
-                backupResponse.setBackupState(BackupResponse.BackupState.NO_FILE);
+                backupState = BackupResponse.BackupState.FAIL;
             }
 
-            return backupResponse;
+            backupResponse.setBackupState(backupState);
+        } else {
+            backupResponse.setBackupState(BackupResponse.BackupState.NO_FILE);
+        }
 
-        }).thenAccept(response -> LOGGER.info("Backup complete: {}", response));
+        // a run stopped by shutdown keeps its journal so it can be resumed.
+        if (journal != null && !shuttingDown) {
+            runJournalStore.finish(journal);
+        }
 
-        return backupResponse;
+        backupResponse.setFinishedDate(new Date());
+        backupMetrics.runFinished(backupResponse);
+        backupHistory.record(backupResponse);
+    }
+
+    /**
+     * Keeps at most {@code uploadConcurrency} uploads, fewer while S3 is throttling them, and about
+     * {@code maxInFlightBytes} of files, in flight. Each upload is started and awaited on its own upload thread, a
+     * virtual one when {@link UploadThreads} has them, so uploads are counted in the order they finish rather than
+     * the order they were submitted. A file waiting to be retried keeps its share of the bytes but not its slot.
+     * A concurrency of 1 uploads one file at a time, the same way, so the next file goes up while one waits out
+     * its backoff. Packs of small files take slots and bytes like any file.
+     */
+    private void uploadConcurrently(final Iterator<PutObjectRequest> putObjectRequests,
+                                    final BackupRun run,
+                                    final int uploadConcurrency) throws InterruptedException {
+
+        final UploadSlots slots = new UploadSlots(uploadConcurrency);
+        final SmallFilePacker.PackWriter packWriter = run.getPackWriter();
+
+        try {
+            while (putObjectRequests.hasNext()) {
+                final PutObjectRequest putObjectRequest = putObjectRequests.next();
+
+                if (packWriter != null && packWriter.accepts(putObjectRequest)) {
+                    this.addToPack(packWriter, putObjectRequest, run, slots);
+                    continue;
+                }
+
+                final int kilobytes = slots.acquire(queuedLength(putObjectRequest));
+                final ProgressTracker progressTracker = this.trackProgress(putObjectRequest, run);
+                new FileUpload(putObjectRequest, run, progressTracker, slots, kilobytes).start();
+            }
+
+            if (packWriter != null) {
+                this.storePack(packWriter.seal(), run, slots);
+            }
+
+            slots.awaitFinished();
+
+        } finally {
+            slots.shutdown();
+        }
+    }
+
+    /**
+     * Small files go into the run's pack instead of being uploaded on their own; they are counted once the pack
+     * holding them is stored, or has failed. A file that cannot be read fails on its own.
+     */
+    private void addToPack(final SmallFilePacker.PackWriter packWriter, final PutObjectRequest putObjectRequest, final BackupRun run,
+                           final UploadSlots slots) throws InterruptedException {
+
+        final SmallFilePacker.PackWriter.Pack pack;
+
+        try {
+            pack = packWriter.add(putObjectRequest);
+
+        } catch (IOException e) {
+            LOGGER.error("Error while packing file {}: {}", putObjectRequest.getKey(), e.getMessage(), e);
+            run.fileFinished(putObjectRequest);
+            run.getBackupResponse().getFailedFiles().incrementAndGet();
+            return;
+        }
+
+        this.storePack(pack, run, slots);
+    }
+
+    /**
+     * @param pack null if there is none to store yet.
+     */
+    private void storePack(final SmallFilePacker.PackWriter.Pack pack, final BackupRun run, final UploadSlots slots) throws InterruptedException {
+        if (pack != null) {
+            new PackUpload(pack, run, slots, slots.acquire(pack.getSize())).start();
+        }
+    }
+
+    /**
+     * Hands regular files and known-length streams to the transfer engine straight away. Streams of unknown
+     * length, files large enough for chunked backup and compressed files are uploaded by their own uploader
+     * when awaited, and so are files that need hashing first, so reading them happens on the awaiting thread.
+     * With fan-out targets, every file is read once and sent whole to the destination and the targets together,
+     * and a destination other than the main bucket stores files whole through its target.
+     */
+    private BlockingUpload startUpload(final PutObjectRequest putObjectRequest, final BackupRun run) {
+
+        if (fanOutUploader.isEnabled() && putObjectRequest.getFile() != null) {
+            return () -> fanOutUploader.upload(putObjectRequest);
+        }
+
+        if (run.getTarget() != null) {
+            return () -> this.storeOnTarget(putObjectRequest, run.getTarget());
+        }
+
+        if (isUnknownLength(putObjectRequest)) {
+            return () -> streamingUploader.upload(putObjectRequest);
+        }
+
+        if (chunkedUploader.isChunked(putObjectRequest)) {
+            return () -> chunkedUploader.upload(putObjectRequest);
+        }
+
+        final CompressionCodec codec = uploadCompressor.codecFor(putObjectRequest);
+
+        if (backupProperties.isChecksums() && putObjectRequest.getFile() != null) {
+            return () -> this.startTransfer(this.applyChecksums(putObjectRequest, codec), codec, run).await();
+        }
+
+        return this.startTransfer(putObjectRequest, codec, run);
+    }
+
+    private BlockingUpload startTransfer(final PutObjectRequest putObjectRequest, final CompressionCodec codec, final BackupRun run) {
+
+        if (codec != CompressionCodec.NONE) {
+            return () -> streamingUploader.upload(uploadCompressor.compress(putObjectRequest, codec));
+        }
+
+        // a virtual thread can block on a single part itself, leaving the transfer threads to multipart uploads.
+        if (uploadThreads.isVirtual() && queuedLength(putObjectRequest) <= backupProperties.getMultipartThreshold()) {
+            return () -> transferEngine.putObject(putObjectRequest);
+        }
+
+        final long startTime = System.nanoTime();
+        final Upload upload = this.transferUpload(putObjectRequest, run);
+
+        return () -> {
+            upload.waitForCompletion();
+            transferEngine.recordTransfer(upload.getProgress().getBytesTransferred(), System.nanoTime() - startTime);
+        };
+    }
+
+    private void storeOnTarget(final PutObjectRequest putObjectRequest, final BackupTarget target) throws IOException, InterruptedException {
+
+        if (putObjectRequest.getFile() == null) {
+            throw new IOException(putObjectRequest.getKey() + " is not a file, and only files can be stored on " + target);
+        }
+
+        target.store(putObjectRequest);
+    }
+
+    /**
+     * A file that goes up uncompressed in a single part is read once: it is read into memory, hashed, and sent
+     * from there with a Content-MD5, which therefore describes exactly the bytes sent. Any other file is read
+     * twice, once here to hash it and again by the upload. The checksums are request headers, so they have to be
+     * known before the first byte goes out, and the file is too large to hold or is compressed on the way; the
+     * second read usually comes from the page cache. Parts of a multipart upload are checked by the SDK as they go.
+     *
+     * @return the request to send: the file's own, or one that sends its content from memory.
+     */
+    private PutObjectRequest applyChecksums(final PutObjectRequest putObjectRequest, final CompressionCodec codec) throws IOException {
+
+        final File file = putObjectRequest.getFile();
+        final ObjectMetadata metadata = putObjectRequest.getMetadata() != null ? putObjectRequest.getMetadata() : new ObjectMetadata();
+        putObjectRequest.setMetadata(metadata);
+
+        if (codec != CompressionCodec.NONE || file.length() > backupProperties.getMultipartThreshold()) {
+            fileHasher.hash(file).applyTo(metadata);
+            // an earlier attempt may have found the file small enough for a single part.
+            metadata.setContentMD5(null);
+
+            return putObjectRequest;
+        }
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final FileChecksums checksums = fileHasher.hash(content);
+        checksums.applyTo(metadata);
+        metadata.setContentMD5(checksums.getContentMd5());
+
+        final ObjectMetadata contentMetadata = metadata.clone();
+        contentMetadata.setContentLength(content.length);
+
+        final PutObjectRequest contentRequest = new PutObjectRequest(putObjectRequest.getBucketName(), putObjectRequest.getKey(), new ByteArrayInputStream(content), contentMetadata);
+        contentRequest.setGeneralProgressListener(putObjectRequest.getGeneralProgressListener());
+
+        return contentRequest;
+    }
+
+    /**
+     * Without a journal this is a plain upload. With one, a multipart upload left by an earlier attempt of the
+     * run is resumed if the file has not changed since, and new multipart uploads are journaled as soon as they
+     * start.
+     */
+    private Upload transferUpload(final PutObjectRequest putObjectRequest, final BackupRun run) {
+
+        final RunJournal journal = run.getJournal();
+
+        if (journal == null) {
+            return transferEngine.upload(putObjectRequest);
+        }
+
+        final RunJournal.PendingUpload pendingUpload = journal.takePendingUpload(putObjectRequest);
+
+        if (pendingUpload != null) {
+            if (pendingUpload.matches(putObjectRequest.getFile())) {
+                LOGGER.info("Resuming multipart upload of {}", putObjectRequest.getKey());
+                return transferEngine.resumeUpload(pendingUpload.getUpload());
+            }
+
+            transferEngine.abortUpload(pendingUpload.getUpload());
+        }
+
+        return transferEngine.upload(putObjectRequest, new S3SyncProgressListener() {
+            @Override
+            public void onPersistableTransfer(final PersistableTransfer persistableTransfer) {
+                if (persistableTransfer instanceof PersistableUpload) {
+                    journal.recordPendingUpload(putObjectRequest, run.queuedVersion(putObjectRequest), (PersistableUpload) persistableTransfer);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return null once the pack is stored, or why it was not.
+     */
+    private UploadFailure attemptPack(final SmallFilePacker.PackWriter.Pack pack) {
+
+        try {
+            pack.store();
+
+            return null;
+
+        } catch (AmazonClientException e) {
+            LOGGER.error("Unable to store pack {} of {} files: {}", pack.getKey(), pack.getFiles().size(), e.getMessage(), e);
+            handleAwsException(e);
+            return UploadFailure.classify(e);
+        } catch (RuntimeException e) {
+            LOGGER.error("General exception while storing pack {}: {}", pack.getKey(), e.getMessage(), e);
+            return UploadFailure.classify(e);
+        }
+    }
+
+    /**
+     * @return null once the file is uploaded, or why it was not.
+     */
+    private UploadFailure attemptUpload(final PutObjectRequest putObjectRequest, final BackupRun run) {
+
+        try {
+            LOGGER.info("Uploading {}", putObjectRequest.getKey());
+            this.startUpload(putObjectRequest, run).await();
+
+            return null;
+
+        } catch (AmazonClientException e) {
+            LOGGER.error("Error while uploading file {}: {}", putObjectRequest.getKey(), e.getMessage(), e);
+            handleAwsException(e);
+            return UploadFailure.classify(e);
+        } catch (IOException e) {
+            LOGGER.error("Error while reading file {}: {}", putObjectRequest.getKey(), e.getMessage(), e);
+            return UploadFailure.classify(e);
+        } catch (InterruptedException e) {
+            LOGGER.error("Interrupted while uploading file {}", putObjectRequest.getKey());
+            Thread.currentThread().interrupt();
+            return UploadFailure.PERMANENT;
+        } catch (RuntimeException e) {
+            LOGGER.error("General exception while uploading file {}: {}", putObjectRequest.getKey(), e.getMessage(), e);
+            return UploadFailure.classify(e);
+        }
+    }
+
+    /**
+     * Takes back the failed attempt's progress, so the file counts once towards the run however often it is sent.
+     */
+    private void prepareRetry(final PutObjectRequest putObjectRequest, final BackupRun run, final ProgressTracker progressTracker,
+                              final UploadFailure failure, final int attempts) {
+
+        progressTracker.reset();
+        run.getBackupResponse().getRetries().increment();
+
+        LOGGER.warn("Upload of {} failed ({}), retry {}", putObjectRequest.getKey(), failure, attempts);
+    }
+
+    /**
+     * Streams whose length could not be determined up front would be buffered whole by the TransferManager.
+     */
+    private static boolean isUnknownLength(final PutObjectRequest putObjectRequest) {
+        return putObjectRequest.getInputStream() != null
+                && (putObjectRequest.getMetadata() == null || putObjectRequest.getMetadata().getRawMetadataValue(Headers.CONTENT_LENGTH) == null);
+    }
+
+    /**
+     * @param attributes the file's attributes as the scan read them; null for a stream.
+     */
+    private boolean isUnchanged(final PutObjectRequest putObjectRequest, final BasicFileAttributes attributes, final InventoryIndex inventory) {
+
+        if (putObjectRequest.getFile() == null) {
+            return false;
+        }
+
+        return backupManifest.isUnchanged(putObjectRequest.getBucketName(), putObjectRequest.getKey(), putObjectRequest.getFile(),
+                attributes.size(), attributes.lastModifiedTime().toMillis())
+                || inventory != null && this.isStored(putObjectRequest, attributes, inventory);
+    }
+
+    /**
+     * A file the manifest does not know is already backed up if the bucket holds an object of the same size whose
+     * ETag is the file's MD5. A match goes into the manifest, so the file is not hashed again next run.
+     */
+    private boolean isStored(final PutObjectRequest putObjectRequest, final BasicFileAttributes attributes, final InventoryIndex inventory) {
+
+        final File file = putObjectRequest.getFile();
+        final InventoryIndex.InventoryEntry entry = inventory.get(putObjectRequest.getKey());
+
+        if (entry == null || !entry.hasContentMd5() || entry.getSize() != attributes.size()) {
+            return false;
+        }
+
+        try {
+            final FileChecksums checksums = fileHasher.hash(file);
+
+            if (entry.getETag().equalsIgnoreCase(checksums.getMd5Hex())) {
+                backupManifest.record(putObjectRequest.getBucketName(), putObjectRequest.getKey(), file,
+                        attributes.size(), attributes.lastModifiedTime().toMillis(), checksums.getSha256());
+                return true;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to hash {}, treating it as changed: {}", file, e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * @return null unless incremental backups compare with the main bucket, or if it cannot be listed.
+     */
+    private InventoryIndex loadInventory(final String bucketName) {
+
+        if (!backupProperties.isIncremental() || !backupProperties.isRemoteInventory() || BackupTargets.isTarget(bucketName)) {
+            return null;
+        }
+
+        try {
+            return remoteInventory.get(bucketName, "");
+
+        } catch (IOException | AmazonClientException e) {
+            LOGGER.warn("Unable to list bucket {}, comparing with the manifest only: {}", bucketName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The tracker is the request's general progress listener, which the transfer manager and the other
+     * uploaders pass on to every request they make for the file.
+     */
+    private ProgressTracker trackProgress(final PutObjectRequest putObjectRequest, final BackupRun run) {
+
+        final ProgressTracker progressTracker = new ProgressTracker(run.getBackupResponse(), backupMetrics, true);
+        putObjectRequest.setGeneralProgressListener(progressTracker);
+        run.getBackupResponse().getInFlightUploads().incrementAndGet();
+
+        return progressTracker;
+    }
+
+    /**
+     * A finished upload accounts for the whole file even if fewer bytes went over the wire, e.g. compressed,
+     * deduplicated or resumed; a failed one hands back its partial progress.
+     */
+    private void onUploadFinished(final PutObjectRequest putObjectRequest, final BackupRun run, final ProgressTracker progressTracker, final boolean uploaded) {
+
+        final FileVersion version = run.fileFinished(putObjectRequest);
+        run.getBackupResponse().getInFlightUploads().decrementAndGet();
+        backupMetrics.fileFinished(progressTracker.elapsedNanos(), uploaded);
+
+        if (uploaded) {
+            progressTracker.settle(Math.max(0, queuedLength(putObjectRequest)));
+            this.recordInInventory(putObjectRequest, version);
+            this.onUploaded(putObjectRequest, run, version);
+
+        } else {
+            progressTracker.settle(0);
+            run.getBackupResponse().getFailedFiles().incrementAndGet();
+        }
+    }
+
+    /**
+     * Only a file sent with a Content-MD5 is known to be stored as is in a single part, with its MD5 as the ETag.
+     *
+     * @param version the file as it was queued, whose size goes with the MD5 taken before the upload.
+     */
+    private void recordInInventory(final PutObjectRequest putObjectRequest, final FileVersion version) {
+
+        if (!backupProperties.isRemoteInventory() || putObjectRequest.getFile() == null || BackupTargets.isTarget(putObjectRequest.getBucketName())) {
+            return;
+        }
+
+        final ObjectMetadata metadata = putObjectRequest.getMetadata();
+        final boolean singlePart = metadata != null && metadata.getContentMD5() != null;
+
+        remoteInventory.recordUpload(putObjectRequest.getBucketName(), putObjectRequest.getKey(),
+                singlePart ? version.getSize() : -1,
+                singlePart ? metadata.getUserMetaDataOf(FileChecksums.MD5_METADATA_KEY) : null);
+    }
+
+    /**
+     * Every file of a pack is uploaded, or failed, with it.
+     */
+    private void onPackFinished(final SmallFilePacker.PackWriter.Pack pack, final BackupRun run, final boolean stored) {
+
+        for (PutObjectRequest putObjectRequest : pack.getFiles()) {
+            final FileVersion version = run.fileFinished(putObjectRequest);
+
+            if (stored) {
+                run.getBackupResponse().getProcessedBytes().add(queuedLength(putObjectRequest));
+                this.onUploaded(putObjectRequest, run, version);
+            }
+        }
+
+        if (!stored) {
+            run.getBackupResponse().getFailedFiles().addAndGet(pack.getFiles().size());
+        }
+    }
+
+    /**
+     * @param version the file as it was queued; the file itself may have changed while it was uploading.
+     */
+    private void onUploaded(final PutObjectRequest putObjectRequest, final BackupRun run, final FileVersion version) {
+
+        run.getBackupResponse().getUploadedFiles().incrementAndGet();
+
+        if (backupProperties.isIncremental() && putObjectRequest.getFile() != null) {
+            backupManifest.record(putObjectRequest.getBucketName(), putObjectRequest.getKey(), putObjectRequest.getFile(),
+                    version.getSize(), version.getLastModified(), FileChecksums.sha256Of(putObjectRequest.getMetadata()));
+        }
+
+        if (run.getJournal() != null) {
+            run.getJournal().recordCompleted(putObjectRequest, version);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shuttingDown = true;
+        jobExecutor.shutdownNow();
+        scanExecutor.shutdownNow();
+    }
+
+    /**
+     * Jobs wait until one of the {@code maxConcurrentJobs} running jobs finishes.
+     */
+    public int countQueuedJobs() {
+        return jobExecutor.getQueue().size();
     }
 
     public Optional<BackupResponse> getBackupResponse(String id) {
-        return Optional.ofNullable(responses.get(id));
+        return backupHistory.get(id);
+    }
+
+    /**
+     * Newest first; state and dates may be null to match any.
+     */
+    public List<BackupResponse> listBackupResponses(final BackupResponse.BackupState state, final Date from, final Date to, final int page, final int size) {
+        return backupHistory.find(state, from, to, page, size);
     }
 
-    public List<BackupResponse> listBackupResponses() {
-        return new ArrayList<>(responses.values());
+    public int countBackupResponses(final BackupResponse.BackupState state, final Date from, final Date to) {
+        return backupHistory.count(state, from, to);
     }
 
     /**
      * Loading file inside jar:
      * https://stackoverflow.com/questions/14876836/file-inside-jar-is-not-visible-for-spring
+     */
+    private Resource resolveResource(final String backupPath) {
+
+        LOGGER.info("Attempt to load resources from specified path: {}", backupPath);
+
+        if (StringUtils.isBlank(backupPath)) {
+            throw new RuntimeException("Backup path should not be blank");
+        }
+
+        return resourceLoader.getResource(backupPath);
+    }
+
+    /**
+     * Runs on the scan executor and feeds the upload queue as files are discovered, from the scan threads of the
+     * {@link DirectoryScanner}, updating the response's totalFiles and skippedFiles as it goes.
      * <p>
      * Subdirectories in AWS S3:
      * https://stackoverflow.com/questions/11491304/amazon-web-services-aws-s3-java-create-a-sub-directory-object
      */
-    private List<PutObjectRequest> readFiles(final String backupPath, final String bucketName) {
+    private void readFiles(final Resource resource, final BackupRun run, final UploadQueue uploadQueue) {
 
-        try {
-            LOGGER.info("Attempt to load resources from specified path: {}", backupPath);
+        final BackupResponse backupResponse = run.getBackupResponse();
+        final String backupPath = run.getBackupPath();
+        final String bucketName = run.getBucketName();
+        final InventoryIndex inventory = this.loadInventory(bucketName);
 
-            if (StringUtils.isBlank(backupPath)) {
-                throw new RuntimeException("Backup path should not be blank");
-            }
+        final DirectoryScanner.FileSink fileSink = new DirectoryScanner.FileSink() {
 
-            List<PutObjectRequest> objectRequests = new ArrayList<>();
+            @Override
+            public boolean accept(final PutObjectRequest putObjectRequest, final BasicFileAttributes attributes) {
+
+                if (run.isCompleted(putObjectRequest) || backupProperties.isIncremental() && AwsBackupAgent.this.isUnchanged(putObjectRequest, attributes, inventory)) {
+                    this.skipped(1);
+                    return false;
+                }
 
-            final Resource resource = resourceLoader.getResource(backupPath);
+                try {
+                    backupResponse.getTotalFiles().incrementAndGet();
+                    backupResponse.getTotalBytes().add(Math.max(0, queuedLength(putObjectRequest)));
+                    run.fileQueued(putObjectRequest, attributes);
+                    uploadQueue.submit(putObjectRequest);
 
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while queueing " + putObjectRequest.getKey());
+                }
+
+                return true;
+            }
+
+            @Override
+            public void skipped(final int files) {
+                backupResponse.getSkippedFiles().addAndGet(files);
+                backupMetrics.filesSkipped(files);
+            }
+        };
+
+        try {
             if (!resource.isFile()) {
-                final InputStream inputStream = resource.getInputStream();
-                final byte[] bytes = inputStream.readAllBytes();
-                ObjectMetadata metadata = new ObjectMetadata();
-                metadata.setContentLength(bytes.length);
+                final ObjectMetadata metadata = new ObjectMetadata();
+                final long contentLength = contentLength(resource);
 
-                objectRequests.add(new PutObjectRequest(bucketName, backupPath, new ByteArrayInputStream(bytes), metadata));
+                if (contentLength >= 0) {
+                    metadata.setContentLength(contentLength);
+                }
+
+                fileSink.accept(new PutObjectRequest(bucketName, backupPath, resource.getInputStream(), metadata), null);
 
             } else {
                 final File backupFileRoot = resource.getFile();
 
-                if (backupFileRoot.exists()) {
-                    addFilesRecursively(objectRequests, bucketName, backupFileRoot.getAbsolutePath(), backupFileRoot);
+                if (run.getFiles() != null) {
+                    addFiles(fileSink, bucketName, backupFileRoot.toPath(), run.getFiles(), run.getTooYoung());
+
+                } else if (backupFileRoot.exists()) {
+                    directoryScanner.scan(backupFileRoot.toPath(), bucketName, fileSink);
                 }
             }
 
-            return objectRequests;
+            LOGGER.info("Scan of {} complete: {} files to upload, {} unchanged", backupPath, backupResponse.getTotalFiles(), backupResponse.getSkippedFiles());
 
+        } catch (CancellationException e) {
+            LOGGER.warn("Scan of {} stopped: {}", backupPath, e.getMessage());
         } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
+            LOGGER.error("Error while scanning {}: {}", backupPath, e.getMessage(), e);
+        } finally {
+            try {
+                uploadQueue.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
-    private void addFilesRecursively(final List<PutObjectRequest> objectRequests, final String bucketName, final String backupRoot, final File filePath) {
+    /**
+     * In-flight bytes are counted in kilobytes so the allowance fits a semaphore's int permits.
+     */
+    private static int inFlightKilobytes(final long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, (bytes + 1023) / 1024));
+    }
+
+    /**
+     * @return the size of the file or stream, or -1 for a stream of unknown length.
+     */
+    private static long queuedLength(final PutObjectRequest putObjectRequest) {
 
-        if (filePath.isDirectory()) {
-            final File[] files = filePath.listFiles();
+        if (putObjectRequest.getFile() != null) {
+            return putObjectRequest.getFile().length();
+        }
 
-            if (files != null) {
-                for (final File file : files) {
-                    this.addFilesRecursively(objectRequests, bucketName, backupRoot, file);
-                }
+        return isUnknownLength(putObjectRequest) ? -1 : putObjectRequest.getMetadata().getContentLength();
+    }
+
+    /**
+     * The same directory can be named several ways, so file paths are compared in their absolute, normalised form.
+     */
+    private static String jobKey(final Resource resource, final String backupPath, final String bucketName) {
+
+        String path;
+
+        try {
+            path = resource.getFile().toPath().toAbsolutePath().normalize().toString();
+        } catch (IOException e) {
+            path = backupPath;
+        }
+
+        return bucketName + "/" + path;
+    }
+
+    private static long contentLength(final Resource resource) {
+        try {
+            return resource.contentLength();
+        } catch (IOException e) {
+            LOGGER.debug("Content length of {} is unknown: {}", resource, e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Hands the files that still exist below the root and pass the filter to the sink, under the same keys a
+     * full scan would use. The watcher reports absolute, normalised paths, so the root is compared in that form
+     * too. A file only left out for being too young is handed back, as nothing else would send it once it is old
+     * enough.
+     */
+    private void addFiles(final DirectoryScanner.FileSink fileSink, final String bucketName, final Path root, final List<Path> files,
+                          final Consumer<Path> tooYoung) {
+
+        final Path backupRoot = root.toAbsolutePath().normalize();
+
+        for (Path file : files) {
+            if (!file.startsWith(backupRoot)) {
+                continue;
             }
 
-        } else {
-            final String trimmedFileKey = filePath.getAbsolutePath().replace(backupRoot, "");
-            final String fileKey = StringUtils.isNotBlank(trimmedFileKey) ? trimmedFileKey.substring(1) : filePath.getName();
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
 
-            objectRequests.add(new PutObjectRequest(bucketName, fileKey, filePath));
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+
+                if (backupFilter.isIncludedWithParents(DirectoryScanner.relativePath(backupRoot, file), attributes)) {
+                    fileSink.accept(new PutObjectRequest(bucketName, DirectoryScanner.fileKey(backupRoot, file), file.toFile()), attributes);
+
+                } else if (tooYoung != null && backupFilter.mayBeIncludedLater(attributes)) {
+                    tooYoung.accept(file);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Skipping {}: {}", file, e.toString());
+            }
         }
     }
 
@@ -227,25 +1033,308 @@ public class AwsBackupAgent {
         }
     }
 
-    static class ProgressTracker implements ProgressListener {
+    /**
+     * A run's upload executor and the limits all its uploads share, files and packs alike: the slots of
+     * {@link AdaptiveConcurrency}, and about {@code maxInFlightBytes} of content, counted in kilobytes.
+     */
+    private class UploadSlots {
+
+        private final AdaptiveConcurrency concurrency;
 
-        private AtomicLong bytesTransferred = new AtomicLong(0);
+        private final int byteAllowance = inFlightKilobytes(backupProperties.getMaxInFlightBytes());
 
-        private String key;
+        private final Semaphore inFlightKilobytes = new Semaphore(byteAllowance);
 
-        private final long totalBytes;
+        private final ExecutorService uploadExecutor;
 
-        ProgressTracker(final String key, final long totalBytes) {
-            this.key = key;
-            this.totalBytes = totalBytes;
+        UploadSlots(final int uploadConcurrency) {
+            this.concurrency = uploadRetries.newConcurrency(uploadConcurrency);
+            this.uploadExecutor = uploadThreads.newExecutor("backup-upload-", uploadConcurrency);
+        }
+
+        /**
+         * Waits for the upload's share of the bytes, then for a slot. Content larger than the allowance takes all
+         * of it, and goes up on its own.
+         *
+         * @param bytes the size of the content, or -1 if unknown.
+         * @return the kilobytes taken, to give back once the upload is finished.
+         */
+        int acquire(final long bytes) throws InterruptedException {
+
+            final int kilobytes = Math.min(byteAllowance, inFlightKilobytes(bytes));
+            inFlightKilobytes.acquire(kilobytes);
+            concurrency.acquire();
+
+            return kilobytes;
+        }
+
+        void release(final int kilobytes) {
+            concurrency.release();
+            inFlightKilobytes.release(kilobytes);
+            concurrency.fileFinished();
+        }
+
+        void awaitFinished() throws InterruptedException {
+            concurrency.awaitFinished();
+        }
+
+        void shutdown() {
+            uploadExecutor.shutdown();
+        }
+    }
+
+    /**
+     * An upload run on the upload executor, holding one of the run's slots while an attempt is running. An
+     * attempt that fails for a reason that may pass frees its slot, and the next one is queued for a slot by the
+     * retry scheduler once the backoff is over, so no upload thread waits it out.
+     */
+    private abstract class RetryingUpload implements Runnable {
+
+        private final UploadSlots slots;
+
+        private final int kilobytes;
+
+        private int attempts;
+
+        /**
+         * @param kilobytes as taken from the slots for the upload, which has its slot already.
+         */
+        RetryingUpload(final UploadSlots slots, final int kilobytes) {
+            this.slots = slots;
+            this.kilobytes = kilobytes;
+        }
+
+        /**
+         * @return null once the content is stored, or why it was not.
+         */
+        abstract UploadFailure attempt();
+
+        abstract boolean shouldRetry(UploadFailure failure, int attempts);
+
+        abstract void prepareRetry(UploadFailure failure, int attempts);
+
+        /**
+         * Called once the upload is done with, stored or not.
+         */
+        abstract void finished(boolean uploaded);
+
+        abstract String getKey();
+
+        /**
+         * Starts the next attempt in the slot the caller has taken for it.
+         */
+        void start() {
+            try {
+                slots.uploadExecutor.execute(this);
+
+            } catch (RejectedExecutionException e) {
+                LOGGER.error("Unable to start upload of {}: {}", this.getKey(), e.getMessage());
+                this.finish(false);
+            }
+        }
+
+        @Override
+        public void run() {
+
+            final long startTime = System.nanoTime();
+            final UploadFailure failure = this.attempt();
+            attempts++;
+
+            if (failure == null) {
+                LOGGER.info("Completed: {} in {} ms", this.getKey(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                slots.concurrency.onSuccess();
+                this.finish(true);
+                return;
+            }
+
+            slots.concurrency.onFailure(failure, startTime);
+
+            if (!this.shouldRetry(failure, attempts)) {
+                this.finish(false);
+                return;
+            }
+
+            this.prepareRetry(failure, attempts);
+
+            try {
+                uploadRetries.schedule(() -> slots.concurrency.retry(this::start), attempts);
+
+            } catch (RejectedExecutionException e) {
+                LOGGER.error("Unable to retry upload of {}: {}", this.getKey(), e.getMessage());
+                this.finish(false);
+                return;
+            }
+
+            slots.concurrency.release();
+        }
+
+        private void finish(final boolean uploaded) {
+            try {
+                this.finished(uploaded);
+            } finally {
+                slots.release(kilobytes);
+            }
+        }
+    }
+
+    private class FileUpload extends RetryingUpload {
+
+        private final PutObjectRequest putObjectRequest;
+
+        private final BackupRun run;
+
+        private final ProgressTracker progressTracker;
+
+        FileUpload(final PutObjectRequest putObjectRequest, final BackupRun run, final ProgressTracker progressTracker,
+                   final UploadSlots slots, final int kilobytes) {
+            super(slots, kilobytes);
+            this.putObjectRequest = putObjectRequest;
+            this.run = run;
+            this.progressTracker = progressTracker;
+        }
+
+        @Override
+        UploadFailure attempt() {
+            return AwsBackupAgent.this.attemptUpload(putObjectRequest, run);
+        }
+
+        @Override
+        boolean shouldRetry(final UploadFailure failure, final int attempts) {
+            return uploadRetries.shouldRetry(putObjectRequest, failure, attempts);
+        }
+
+        @Override
+        void prepareRetry(final UploadFailure failure, final int attempts) {
+            AwsBackupAgent.this.prepareRetry(putObjectRequest, run, progressTracker, failure, attempts);
+        }
+
+        @Override
+        void finished(final boolean uploaded) {
+            AwsBackupAgent.this.onUploadFinished(putObjectRequest, run, progressTracker, uploaded);
+        }
+
+        @Override
+        String getKey() {
+            return putObjectRequest.getKey();
+        }
+    }
+
+    /**
+     * A pack of small files, sent again from memory after a failed attempt.
+     */
+    private class PackUpload extends RetryingUpload {
+
+        private final SmallFilePacker.PackWriter.Pack pack;
+
+        private final BackupRun run;
+
+        PackUpload(final SmallFilePacker.PackWriter.Pack pack, final BackupRun run, final UploadSlots slots, final int kilobytes) {
+            super(slots, kilobytes);
+            this.pack = pack;
+            this.run = run;
+        }
+
+        @Override
+        UploadFailure attempt() {
+            return AwsBackupAgent.this.attemptPack(pack);
+        }
+
+        @Override
+        boolean shouldRetry(final UploadFailure failure, final int attempts) {
+            return uploadRetries.shouldRetry(failure, attempts);
+        }
+
+        @Override
+        void prepareRetry(final UploadFailure failure, final int attempts) {
+            run.getBackupResponse().getRetries().increment();
+            LOGGER.warn("Storing pack {} failed ({}), retry {}", pack.getKey(), failure, attempts);
+        }
+
+        @Override
+        void finished(final boolean uploaded) {
+            AwsBackupAgent.this.onPackFinished(pack, run, uploaded);
+        }
+
+        @Override
+        String getKey() {
+            return pack.getKey();
+        }
+    }
+
+    @FunctionalInterface
+    private interface BlockingUpload {
+
+        void await() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Feeds a run's byte counters from SDK progress events. Being a sync listener, events are delivered on the
+     * thread sending the bytes rather than queued to the SDK's notification thread, and the shared counters are
+     * LongAdders, so concurrent parts neither allocate nor contend per event.
+     */
+    static class ProgressTracker extends SyncProgressListener {
+
+        private final LongAdder bytesTransferred = new LongAdder();
+
+        private final BackupResponse backupResponse;
+
+        private final BackupMetrics backupMetrics;
+
+        private final boolean fileProgress;
+
+        private final long startTime = System.nanoTime();
+
+        /**
+         * @param fileProgress whether the bytes count towards the run's processed bytes, i.e. they are the
+         *                     bytes of a single queued file rather than of a pack.
+         */
+        ProgressTracker(final BackupResponse backupResponse, final BackupMetrics backupMetrics, final boolean fileProgress) {
+            this.backupResponse = backupResponse;
+            this.backupMetrics = backupMetrics;
+            this.fileProgress = fileProgress;
         }
 
         @Override
         public void progressChanged(final ProgressEvent progressEvent) {
-            final long transferred = bytesTransferred.addAndGet(progressEvent.getBytesTransferred());
-            final int percentage = Math.round(((float) bytesTransferred.get() / totalBytes) * 100);
 
-            System.out.printf("%s: %s/%s bytes %s%%\r", key, transferred, totalBytes, percentage);
+            if (progressEvent.getEventType() == ProgressEventType.HTTP_REQUEST_CONTENT_RESET_EVENT) {
+                backupResponse.getRetries().increment();
+            }
+
+            final long bytes = progressEvent.getBytesTransferred();
+
+            if (bytes != 0) {
+                bytesTransferred.add(bytes);
+                backupResponse.getUploadedBytes().add(bytes);
+                backupMetrics.bytesUploaded(bytes);
+
+                if (fileProgress) {
+                    backupResponse.getProcessedBytes().add(bytes);
+                }
+            }
+        }
+
+        /**
+         * Takes back what a failed attempt counted towards the run's progress, before the file is sent again.
+         */
+        void reset() {
+
+            final long bytes = bytesTransferred.sumThenReset();
+
+            if (fileProgress) {
+                backupResponse.getProcessedBytes().add(-bytes);
+            }
+        }
+
+        long elapsedNanos() {
+            return System.nanoTime() - startTime;
+        }
+
+        /**
+         * Replaces the bytes this file has counted towards the run's progress with its final contribution.
+         */
+        void settle(final long fileBytes) {
+            backupResponse.getProcessedBytes().add(fileBytes - bytesTransferred.sum());
         }
     }
 }
\ No newline at end of file
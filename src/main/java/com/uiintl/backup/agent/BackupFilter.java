@@ -0,0 +1,258 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which files under the backup path are backed up, from the {@code includes} and {@code excludes} globs
+ * and the size and age limits.
+ * <p>
+ * Patterns follow the usual ignore file conventions on top of {@link FileSystems#getPathMatcher glob} syntax. A
+ * pattern without a "/" matches a file or directory name at any depth, one with a "/" matches the path relative
+ * to the backup path, a leading "**&#47;" also matches at the top, and a trailing "/" matches directories only.
+ * An excluded directory, or one a pattern ending in "/**" excludes everything under, is not descended into.
+ * Includes only select files, so every directory is still walked for them.
+ * <p>
+ * The patterns are compiled once. Plain names and "*.extension" patterns, which most rules are, become set
+ * lookups, and only the rest go through a {@link PathMatcher}.
+ */
+@Component
+public class BackupFilter {
+
+    private static final String GLOB_SYNTAX = "glob:";
+
+    private static final String ANY_DIRECTORY = "**/";
+
+    private static final String EVERYTHING_BELOW = "/**";
+
+    private final Rules includes;
+
+    private final Rules excludes;
+
+    private final long maxFileSize;
+
+    private final long minFileAge;
+
+    private final long maxFileAge;
+
+    private final String fingerprint;
+
+    @Autowired
+    public BackupFilter(final BackupProperties backupProperties) {
+        this.includes = Rules.compile(backupProperties.getIncludes());
+        this.excludes = Rules.compile(backupProperties.getExcludes());
+        this.maxFileSize = backupProperties.getMaxFileSize();
+        this.minFileAge = backupProperties.getMinFileAge();
+        this.maxFileAge = backupProperties.getMaxFileAge();
+        this.fingerprint = String.join("\n", backupProperties.getIncludes()) + "\0" + String.join("\n", backupProperties.getExcludes())
+                + "\0" + maxFileSize + "/" + minFileAge + "/" + maxFileAge;
+    }
+
+    /**
+     * Tells the filters apart: the same patterns and limits give the same fingerprint.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param relativeDirectory the directory's path relative to the backup path; never empty.
+     */
+    public boolean isIncludedDirectory(final Path relativeDirectory) {
+        return !excludes.matchesDirectory(relativeDirectory);
+    }
+
+    /**
+     * @param relativeFile the file's path relative to the backup path.
+     */
+    public boolean isIncluded(final Path relativeFile, final BasicFileAttributes attributes) {
+
+        if (maxFileSize > 0 && attributes.size() > maxFileSize) {
+            return false;
+        }
+
+        if (minFileAge > 0 || maxFileAge > 0) {
+            final long age = System.currentTimeMillis() - attributes.lastModifiedTime().toMillis();
+
+            if (age < minFileAge || maxFileAge > 0 && age > maxFileAge) {
+                return false;
+            }
+        }
+
+        return !excludes.matchesFile(relativeFile) && (includes.isEmpty() || includes.matchesFile(relativeFile));
+    }
+
+    /**
+     * Whether a file left out now may be backed up later without being modified, having been too young for
+     * {@code minFileAge}.
+     */
+    public boolean mayBeIncludedLater(final BasicFileAttributes attributes) {
+        return minFileAge > 0 && System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() < minFileAge;
+    }
+
+    /**
+     * When a file becomes old enough for {@code minFileAge}, in milliseconds.
+     */
+    public long oldEnoughAt(final BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().toMillis() + minFileAge;
+    }
+
+    /**
+     * For a file found other than by walking the tree, whose directories have not been checked yet.
+     */
+    public boolean isIncludedWithParents(final Path relativeFile, final BasicFileAttributes attributes) {
+
+        for (int depth = 1; depth < relativeFile.getNameCount(); depth++) {
+            if (!this.isIncludedDirectory(relativeFile.subpath(0, depth))) {
+                return false;
+            }
+        }
+
+        return this.isIncluded(relativeFile, attributes);
+    }
+
+    /**
+     * One list of patterns, sorted by how cheaply they can be matched.
+     */
+    private static class Rules {
+
+        private final Set<String> names = new HashSet<>();
+
+        /**
+         * With the leading dot.
+         */
+        private final Set<String> extensions = new HashSet<>();
+
+        private final List<PathMatcher> nameMatchers = new ArrayList<>();
+
+        private final List<PathMatcher> pathMatchers = new ArrayList<>();
+
+        private final Set<String> directoryNames = new HashSet<>();
+
+        private final List<PathMatcher> directoryNameMatchers = new ArrayList<>();
+
+        private final List<PathMatcher> directoryPathMatchers = new ArrayList<>();
+
+        private boolean empty = true;
+
+        static Rules compile(final List<String> patterns) {
+
+            final Rules rules = new Rules();
+
+            for (String pattern : patterns) {
+                if (pattern != null && !pattern.isBlank()) {
+                    rules.add(pattern.trim());
+                }
+            }
+
+            return rules;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        boolean matchesFile(final Path path) {
+            return this.matchesName(path, names, nameMatchers, true) || matchesAny(pathMatchers, path);
+        }
+
+        /**
+         * Directory patterns, and file patterns that happen to name the directory, exclude it.
+         */
+        boolean matchesDirectory(final Path path) {
+            return this.matchesName(path, directoryNames, directoryNameMatchers, false) || matchesAny(directoryPathMatchers, path)
+                    || this.matchesFile(path);
+        }
+
+        private boolean matchesName(final Path path, final Set<String> nameSet, final List<PathMatcher> matchers, final boolean withExtensions) {
+
+            final Path fileName = path.getFileName();
+            final String name = fileName.toString();
+
+            if (nameSet.contains(name) || matchesAny(matchers, fileName)) {
+                return true;
+            }
+
+            if (withExtensions && !extensions.isEmpty()) {
+                for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+                    if (extensions.contains(name.substring(dot))) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private void add(final String pattern) {
+
+            empty = false;
+
+            final boolean directoryOnly = pattern.endsWith("/");
+            final String glob = directoryOnly ? pattern.substring(0, pattern.length() - 1) : pattern;
+
+            if (glob.indexOf('/') < 0) {
+                this.addName(glob, directoryOnly);
+                return;
+            }
+
+            // a leading "**/" is meant to match at the top as well, which a glob does not.
+            final List<String> pathGlobs = glob.startsWith(ANY_DIRECTORY) ? List.of(glob, glob.substring(ANY_DIRECTORY.length())) : List.of(glob);
+
+            for (String pathGlob : pathGlobs) {
+                if (pathGlob.indexOf('/') < 0) {
+                    this.addName(pathGlob, directoryOnly);
+                    continue;
+                }
+
+                (directoryOnly ? directoryPathMatchers : pathMatchers).add(matcher(pathGlob));
+
+                if (pathGlob.endsWith(EVERYTHING_BELOW)) {
+                    directoryPathMatchers.add(matcher(pathGlob.substring(0, pathGlob.length() - EVERYTHING_BELOW.length())));
+                }
+            }
+        }
+
+        private void addName(final String glob, final boolean directoryOnly) {
+
+            if (!hasWildcards(glob)) {
+                (directoryOnly ? directoryNames : names).add(glob);
+
+            } else if (!directoryOnly && glob.startsWith("*.") && !hasWildcards(glob.substring(1))) {
+                extensions.add(glob.substring(1));
+
+            } else {
+                (directoryOnly ? directoryNameMatchers : nameMatchers).add(matcher(glob));
+            }
+        }
+
+        private static boolean hasWildcards(final String glob) {
+            return glob.chars().anyMatch(c -> "*?[]{}\\".indexOf(c) >= 0);
+        }
+
+        private static PathMatcher matcher(final String glob) {
+            return FileSystems.getDefault().getPathMatcher(GLOB_SYNTAX + glob);
+        }
+
+        private static boolean matchesAny(final List<PathMatcher> matchers, final Path path) {
+
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(path)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
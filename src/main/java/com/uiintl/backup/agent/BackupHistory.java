@@ -0,0 +1,322 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * History of backup runs, kept in memory for queries and persisted so it survives restarts.
+ * <p>
+ * Runs are indexed by triggered date, newest first, and by state. Writes are serialised while reads go
+ * straight to the concurrent indexes, so polling the history never waits on a run being recorded. Running
+ * backups are held as their live {@link BackupResponse}, so their counters are current whenever they are read.
+ * <p>
+ * Like {@link BackupManifest} the file is an append-only log of length-prefixed records where the latest
+ * record for a run wins, compacted on startup once superseded records outnumber live ones. Runs older than
+ * {@code historyRetentionDays}, or beyond the newest {@code historyMaxEntries}, are dropped.
+ */
+@Component
+public class BackupHistory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupHistory.class);
+
+    private static final Comparator<HistoryKey> NEWEST_FIRST = Comparator.comparingLong(HistoryKey::getTriggeredTime).reversed()
+            .thenComparing(HistoryKey::getId);
+
+    private final BackupProperties backupProperties;
+
+    private final Map<String, HistoryKey> keysById = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<HistoryKey, BackupResponse> byDate = new ConcurrentSkipListMap<>(NEWEST_FIRST);
+
+    private final Map<BackupResponse.BackupState, ConcurrentSkipListSet<HistoryKey>> byState = new EnumMap<>(BackupResponse.BackupState.class);
+
+    private FileChannel channel;
+
+    @Autowired
+    public BackupHistory(final BackupProperties backupProperties) {
+        this.backupProperties = backupProperties;
+
+        for (BackupResponse.BackupState state : BackupResponse.BackupState.values()) {
+            byState.put(state, new ConcurrentSkipListSet<>(NEWEST_FIRST));
+        }
+    }
+
+    @PostConstruct
+    public synchronized void load() throws IOException {
+
+        final Path historyPath = Paths.get(backupProperties.getHistoryPath());
+        int records = 0;
+
+        if (Files.exists(historyPath)) {
+            try (FileChannel readChannel = FileChannel.open(historyPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                int validLength = 0;
+
+                while (buffer.remaining() >= Integer.BYTES) {
+                    final int recordLength = buffer.getInt();
+
+                    if (recordLength <= 0 || buffer.remaining() < recordLength) {
+                        break;
+                    }
+
+                    final byte[] record = new byte[recordLength];
+                    buffer.get(record);
+                    this.index(decode(record));
+                    validLength = buffer.position();
+                    records++;
+                }
+
+                if (validLength < readChannel.size()) {
+                    LOGGER.warn("Discarding {} bytes of incomplete history records in {}", readChannel.size() - validLength, historyPath);
+                    readChannel.truncate(validLength);
+                }
+            }
+        }
+
+        // runs still queued or started were cut short by the previous shutdown; a resumed run records itself again.
+        final List<BackupResponse> interrupted = Stream.of(BackupResponse.BackupState.QUEUED, BackupResponse.BackupState.STARTED)
+                .flatMap(state -> byState.get(state).stream())
+                .map(byDate::get)
+                .collect(Collectors.toList());
+
+        for (BackupResponse response : interrupted) {
+            response.setBackupState(BackupResponse.BackupState.INTERRUPTED);
+            this.index(response);
+        }
+
+        this.prune();
+
+        LOGGER.info("Loaded {} backup runs from {} history records in {}", byDate.size(), records, historyPath);
+
+        if (records > byDate.size() * 2) {
+            this.compact(historyPath);
+        }
+
+        channel = FileChannel.open(historyPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Adds or updates a run. Called when a run starts and again when it reaches its final state.
+     */
+    public synchronized void record(final BackupResponse response) {
+
+        this.index(response);
+        this.prune();
+
+        if (channel != null) {
+            try {
+                final ByteBuffer buffer = frame(encode(response));
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to record backup {} in history: {}", response.getId(), e.getMessage());
+            }
+        }
+    }
+
+    public Optional<BackupResponse> get(final String id) {
+
+        final HistoryKey key = keysById.get(id);
+
+        return key != null ? Optional.ofNullable(byDate.get(key)) : Optional.empty();
+    }
+
+    public int count(final BackupResponse.BackupState state, final Date from, final Date to) {
+        return (int) this.select(state, from, to).count();
+    }
+
+    /**
+     * Newest first, optionally filtered by state and by a triggered date range (inclusive from, exclusive to).
+     */
+    public List<BackupResponse> find(final BackupResponse.BackupState state, final Date from, final Date to, final int page, final int size) {
+
+        return this.select(state, from, to)
+                .skip((long) Math.max(0, page) * size)
+                .limit(size)
+                .map(byDate::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Walks the date index, or the state index when filtering by state. Both are ordered newest first, so a
+     * date range is a view of the index rather than a scan of it.
+     */
+    private Stream<HistoryKey> select(final BackupResponse.BackupState state, final Date from, final Date to) {
+
+        if (from != null && to != null && !from.before(to)) {
+            return Stream.empty();
+        }
+
+        NavigableSet<HistoryKey> keys = state != null ? byState.get(state) : byDate.navigableKeySet();
+
+        // run ids are never empty, so a bound with an empty id sorts before every run triggered at the same time.
+        if (to != null) {
+            keys = keys.tailSet(new HistoryKey(to.getTime() - 1, ""), true);
+        }
+
+        if (from != null) {
+            keys = keys.headSet(new HistoryKey(from.getTime() - 1, ""), false);
+        }
+
+        return keys.stream();
+    }
+
+    /**
+     * Readers do not lock, so a run already indexed never leaves the indexes while it is updated: a run's key
+     * never changes, its date entry is replaced in place, and it joins its new state before leaving the old one.
+     */
+    private void index(final BackupResponse response) {
+
+        final HistoryKey previous = keysById.get(response.getId());
+        final HistoryKey key = previous != null ? previous : new HistoryKey(response.getTriggeredDate().getTime(), response.getId());
+        final BackupResponse.BackupState state = response.getBackupState();
+
+        byDate.put(key, response);
+        byState.get(state).add(key);
+        keysById.putIfAbsent(response.getId(), key);
+
+        byState.forEach((indexedState, keys) -> {
+            if (indexedState != state) {
+                keys.remove(key);
+            }
+        });
+    }
+
+    private void prune() {
+
+        final long oldest = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(backupProperties.getHistoryRetentionDays());
+
+        while (!byDate.isEmpty()) {
+            final HistoryKey last = byDate.lastKey();
+
+            if (byDate.size() <= backupProperties.getHistoryMaxEntries() && last.getTriggeredTime() >= oldest) {
+                break;
+            }
+
+            // a running backup's state may have moved on since it was indexed.
+            byDate.remove(last);
+            keysById.remove(last.getId());
+            byState.values().forEach(keys -> keys.remove(last));
+        }
+    }
+
+    private void compact(final Path historyPath) throws IOException {
+
+        final Path compacted = historyPath.resolveSibling(historyPath.getFileName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (BackupResponse response : byDate.descendingMap().values()) {
+                final ByteBuffer buffer = frame(encode(response));
+
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+
+            out.force(true);
+        }
+
+        Files.move(compacted, historyPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Compacted history {} to {} runs", historyPath, byDate.size());
+    }
+
+    private static ByteBuffer frame(final byte[] record) {
+        return ByteBuffer.allocate(Integer.BYTES + record.length).putInt(record.length).put(record).flip();
+    }
+
+    private static byte[] encode(final BackupResponse response) throws IOException {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(response.getId());
+            out.writeLong(response.getTriggeredDate().getTime());
+            out.writeUTF(response.getBackupState().name());
+            out.writeInt(response.getTotalFiles().get());
+            out.writeInt(response.getUploadedFiles().get());
+            out.writeInt(response.getSkippedFiles().get());
+            out.writeBoolean(response.isResumed());
+            out.writeLong(response.getFinishedDate() != null ? response.getFinishedDate().getTime() : -1);
+            out.writeInt(response.getFailedFiles().get());
+            out.writeLong(response.getTotalBytes().sum());
+            out.writeLong(response.getUploadedBytes().sum());
+            out.writeLong(response.getProcessedBytes().sum());
+            out.writeLong(response.getRetries().sum());
+            out.writeLong(response.getStartedDate() != null ? response.getStartedDate().getTime() : -1);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static BackupResponse decode(final byte[] record) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            final BackupResponse response = new BackupResponse(in.readUTF(),
+                    new Date(in.readLong()),
+                    BackupResponse.BackupState.valueOf(in.readUTF()),
+                    new AtomicInteger(in.readInt()),
+                    new AtomicInteger(in.readInt()),
+                    new AtomicInteger(in.readInt()),
+                    in.readBoolean());
+
+            final long finishedTime = in.readLong();
+            response.setFinishedDate(finishedTime >= 0 ? new Date(finishedTime) : null);
+            response.getFailedFiles().set(in.readInt());
+            response.getTotalBytes().add(in.readLong());
+            response.getUploadedBytes().add(in.readLong());
+            response.getProcessedBytes().add(in.readLong());
+            response.getRetries().add(in.readLong());
+
+            final long startedTime = in.readLong();
+            response.setStartedDate(startedTime >= 0 ? new Date(startedTime) : null);
+
+            return response;
+        }
+    }
+
+    @Value
+    private static class HistoryKey {
+
+        long triggeredTime;
+
+        String id;
+    }
+}
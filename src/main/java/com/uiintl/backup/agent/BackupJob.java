@@ -0,0 +1,47 @@
+package com.uiintl.backup.agent;
+
+import lombok.Getter;
+
+import java.util.Comparator;
+import java.util.function.Consumer;
+
+/**
+ * A backup run waiting for, or running on, the agent's job executor. Jobs are ordered by priority and then by
+ * when they were submitted, so the executor's priority queue starts them first come first served within a priority.
+ */
+@Getter
+class BackupJob implements Runnable, Comparable<BackupJob> {
+
+    private static final Comparator<BackupJob> ORDER = Comparator.comparing(BackupJob::getPriority).thenComparingLong(BackupJob::getSequence);
+
+    /**
+     * Path and bucket of the backup; only one job per key is queued or running at a time.
+     */
+    private final String key;
+
+    private final JobPriority priority;
+
+    private final long sequence;
+
+    private final BackupResponse backupResponse;
+
+    private final Consumer<BackupJob> body;
+
+    BackupJob(final String key, final JobPriority priority, final long sequence, final BackupResponse backupResponse, final Consumer<BackupJob> body) {
+        this.key = key;
+        this.priority = priority;
+        this.sequence = sequence;
+        this.backupResponse = backupResponse;
+        this.body = body;
+    }
+
+    @Override
+    public void run() {
+        body.accept(this);
+    }
+
+    @Override
+    public int compareTo(final BackupJob other) {
+        return ORDER.compare(this, other);
+    }
+}
@@ -0,0 +1,243 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local record of what has already been uploaded, used by incremental backups to skip unchanged files
+ * without talking to S3.
+ * <p>
+ * The manifest is an append-only log of fixed-layout records (key, size, mtime, SHA-256). The latest record
+ * for a key wins, and the log is compacted on startup once superseded records outnumber live ones.
+ */
+@Component
+public class BackupManifest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupManifest.class);
+
+    private final BackupProperties backupProperties;
+
+    private final FileHasher fileHasher;
+
+    private final Map<String, ManifestEntry> entries = new HashMap<>();
+
+    private FileChannel channel;
+
+    @Autowired
+    public BackupManifest(final BackupProperties backupProperties, final FileHasher fileHasher) {
+        this.backupProperties = backupProperties;
+        this.fileHasher = fileHasher;
+    }
+
+    @PostConstruct
+    public synchronized void load() throws IOException {
+
+        if (!backupProperties.isIncremental()) {
+            return;
+        }
+
+        final Path manifestPath = Paths.get(backupProperties.getManifestPath());
+        int records = 0;
+
+        if (Files.exists(manifestPath)) {
+            try (FileChannel readChannel = FileChannel.open(manifestPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                int validLength = 0;
+
+                while (buffer.remaining() >= Integer.BYTES) {
+                    final int recordLength = buffer.getInt();
+
+                    if (recordLength <= 0 || buffer.remaining() < recordLength) {
+                        break;
+                    }
+
+                    final ManifestEntry entry = decode(buffer);
+                    entries.put(entry.getKey(), entry);
+                    validLength = buffer.position();
+                    records++;
+                }
+
+                if (validLength < readChannel.size()) {
+                    LOGGER.warn("Discarding {} bytes of incomplete manifest records in {}", readChannel.size() - validLength, manifestPath);
+                    readChannel.truncate(validLength);
+                }
+            }
+        }
+
+        LOGGER.info("Loaded {} manifest entries from {} records in {}", entries.size(), records, manifestPath);
+
+        if (records > entries.size() * 2) {
+            compact(manifestPath);
+        }
+
+        channel = FileChannel.open(manifestPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * A file is unchanged when size and mtime match the last upload. If only the mtime moved, the content hash
+     * decides, and a matching hash refreshes the recorded mtime so the next run can take the cheap path.
+     *
+     * @param size         the file's size, as the scan read it.
+     * @param lastModified the file's modification time, as the scan read it.
+     */
+    public boolean isUnchanged(final String bucketName, final String key, final File file, final long size, final long lastModified) {
+
+        final ManifestEntry entry = this.getEntry(bucketName, key);
+
+        if (entry == null || entry.getSize() != size) {
+            return false;
+        }
+
+        if (entry.getLastModified() == lastModified) {
+            return true;
+        }
+
+        try {
+            final byte[] hash = fileHasher.hash(file).getSha256();
+
+            if (Arrays.equals(entry.getHash(), hash)) {
+                this.append(new ManifestEntry(entry.getKey(), entry.getSize(), lastModified, hash));
+                return true;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to hash {}, treating it as changed: {}", file, e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Records the version of the file that was uploaded, which a file rewritten while it was uploading no longer
+     * is, so its size and mtime come from before the upload. A hash made before the upload is kept as it is: if
+     * the file has moved on, its mtime no longer matches and the next run compares hashes.
+     *
+     * @param size         the file's size, as the scan read it.
+     * @param lastModified the file's modification time, as the scan read it.
+     * @param sha256       the file's hash if the upload already computed it, otherwise null to read the file
+     *                     again, which only describes what was uploaded if the file has not changed since.
+     */
+    public void record(final String bucketName, final String key, final File file, final long size, final long lastModified, final byte[] sha256) {
+
+        try {
+            if (sha256 == null && (file.length() != size || file.lastModified() != lastModified)) {
+                LOGGER.info("{} changed while it was being uploaded, leaving it to the next run", key);
+                return;
+            }
+
+            this.append(new ManifestEntry(manifestKey(bucketName, key), size, lastModified, sha256 != null ? sha256 : fileHasher.hash(file).getSha256()));
+
+        } catch (IOException e) {
+            LOGGER.warn("Unable to record {} in manifest: {}", key, e.getMessage());
+        }
+    }
+
+    synchronized ManifestEntry getEntry(final String bucketName, final String key) {
+        return entries.get(manifestKey(bucketName, key));
+    }
+
+    private synchronized void append(final ManifestEntry entry) throws IOException {
+
+        entries.put(entry.getKey(), entry);
+
+        if (channel != null) {
+            final ByteBuffer buffer = encode(entry);
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private void compact(final Path manifestPath) throws IOException {
+
+        final Path compacted = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ManifestEntry entry : entries.values()) {
+                final ByteBuffer buffer = encode(entry);
+
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+
+            out.force(true);
+        }
+
+        Files.move(compacted, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Compacted manifest {} to {} entries", manifestPath, entries.size());
+    }
+
+    private static ByteBuffer encode(final ManifestEntry entry) {
+
+        final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        final int recordLength = Integer.BYTES + key.length + Long.BYTES * 2 + 1 + entry.getHash().length;
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + recordLength);
+
+        buffer.putInt(recordLength)
+                .putInt(key.length).put(key)
+                .putLong(entry.getSize())
+                .putLong(entry.getLastModified())
+                .put((byte) entry.getHash().length).put(entry.getHash());
+
+        return buffer.flip();
+    }
+
+    private static ManifestEntry decode(final ByteBuffer buffer) {
+
+        final byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        final long size = buffer.getLong();
+        final long lastModified = buffer.getLong();
+        final byte[] hash = new byte[buffer.get()];
+        buffer.get(hash);
+
+        return new ManifestEntry(new String(key, StandardCharsets.UTF_8), size, lastModified, hash);
+    }
+
+    private static String manifestKey(final String bucketName, final String key) {
+        return bucketName + "/" + key;
+    }
+
+    @Data
+    @AllArgsConstructor
+    static class ManifestEntry {
+
+        private String key;
+
+        private long size;
+
+        private long lastModified;
+
+        private byte[] hash;
+    }
+}
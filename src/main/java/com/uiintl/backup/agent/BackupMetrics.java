@@ -0,0 +1,142 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Backup meters published through Micrometer, and so through the actuator metrics endpoint.
+ * <p>
+ * Byte and retry counts are updated from progress callbacks and request handlers on the transfer threads, so
+ * they are kept in {@link LongAdder}s and only summed when a meter is read. Gauges add up the backups that
+ * are currently running.
+ */
+@Component
+public class BackupMetrics {
+
+    private static final HandlerContextKey<Integer> ATTEMPTS = new HandlerContextKey<>("backup-attempts");
+
+    private final LongAdder uploadedBytes = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * By run id: a response's equals and hashCode follow its counters, which change while it runs.
+     */
+    private final Map<String, BackupResponse> runningBackups = new ConcurrentHashMap<>();
+
+    private final Timer uploadedLatency;
+
+    private final Timer failedLatency;
+
+    private final Counter skippedFiles;
+
+    private final RequestHandler2 retryCounter = new RequestHandler2() {
+        @Override
+        public void beforeAttempt(final HandlerBeforeAttemptContext context) {
+
+            final Request<?> request = context.getRequest();
+            final Integer attempts = request.getHandlerContext(ATTEMPTS);
+
+            if (attempts != null) {
+                retries.increment();
+            }
+
+            request.addHandlerContext(ATTEMPTS, attempts != null ? attempts + 1 : 1);
+        }
+    };
+
+    @Autowired
+    public BackupMetrics(final MeterRegistry meterRegistry) {
+
+        FunctionCounter.builder("backup.upload.bytes", uploadedBytes, LongAdder::sum)
+                .description("Bytes sent to S3")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        FunctionCounter.builder("backup.requests.retries", retries, LongAdder::sum)
+                .description("S3 requests sent again after a failed attempt")
+                .register(meterRegistry);
+
+        Gauge.builder("backup.runs.active", runningBackups, Map::size)
+                .description("Backups currently running")
+                .register(meterRegistry);
+
+        Gauge.builder("backup.upload.throughput", runningBackups, runs -> this.sum(BackupResponse::getBytesPerSecond))
+                .description("Upload rate of the running backups")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        Gauge.builder("backup.upload.inflight", runningBackups, runs -> this.sum(response -> response.getInFlightUploads().get()))
+                .description("Uploads currently in progress")
+                .register(meterRegistry);
+
+        Gauge.builder("backup.scan.queue.depth", runningBackups, runs -> this.sum(response -> response.getQueueDepth().get()))
+                .description("Files found by the scan and waiting to be uploaded")
+                .register(meterRegistry);
+
+        Gauge.builder("backup.upload.bytes.remaining", runningBackups, runs -> this.sum(BackupResponse::getBytesRemaining))
+                .description("Bytes of queued files not uploaded yet")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        this.uploadedLatency = latencyTimer(meterRegistry, "uploaded");
+        this.failedLatency = latencyTimer(meterRegistry, "failed");
+        this.skippedFiles = Counter.builder("backup.files.skipped")
+                .description("Files skipped because they were unchanged or already uploaded")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Counts SDK retries of every S3 request; registered on the S3 client.
+     */
+    public RequestHandler2 retryCounter() {
+        return retryCounter;
+    }
+
+    void runStarted(final BackupResponse backupResponse) {
+        runningBackups.put(backupResponse.getId(), backupResponse);
+    }
+
+    void runFinished(final BackupResponse backupResponse) {
+        runningBackups.remove(backupResponse.getId());
+    }
+
+    void bytesUploaded(final long bytes) {
+        uploadedBytes.add(bytes);
+    }
+
+    void fileFinished(final long elapsedNanos, final boolean uploaded) {
+        (uploaded ? uploadedLatency : failedLatency).record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void filesSkipped(final int files) {
+        skippedFiles.increment(files);
+    }
+
+    private long sum(final ToLongFunction<BackupResponse> value) {
+        return runningBackups.values().stream().mapToLong(value).sum();
+    }
+
+    private static Timer latencyTimer(final MeterRegistry meterRegistry, final String result) {
+        return Timer.builder("backup.upload.latency")
+                .description("Time to upload a file, from dispatch to completion")
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
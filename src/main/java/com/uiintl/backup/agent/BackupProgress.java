@@ -0,0 +1,76 @@
+package com.uiintl.backup.agent;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Progress of a backup run at a point in time, as pushed to clients following the run.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BackupProgress {
+
+    private String id;
+
+    private BackupResponse.BackupState backupState;
+
+    private int totalFiles;
+
+    private int uploadedFiles;
+
+    private int failedFiles;
+
+    private int skippedFiles;
+
+    private long totalBytes;
+
+    private long processedBytes;
+
+    /**
+     * Recent rate at which queued bytes are being uploaded.
+     */
+    private long bytesPerSecond;
+
+    /**
+     * Seconds until the queued bytes are uploaded at the current rate, or -1 when there is no rate to go by.
+     * The scan may still be queueing files, so this only covers what has been found so far.
+     */
+    private long etaSeconds;
+
+    /**
+     * @param bytesPerSecond the rate to report, and to estimate the time remaining from.
+     */
+    public static BackupProgress of(final BackupResponse backupResponse, final long bytesPerSecond) {
+
+        final long bytesRemaining = backupResponse.getBytesRemaining();
+        final long etaSeconds = !backupResponse.getBackupState().isActive() ? 0
+                : bytesPerSecond > 0 ? (bytesRemaining + bytesPerSecond - 1) / bytesPerSecond : -1;
+
+        return new BackupProgress(backupResponse.getId(),
+                backupResponse.getBackupState(),
+                backupResponse.getTotalFiles().get(),
+                backupResponse.getUploadedFiles().get(),
+                backupResponse.getFailedFiles().get(),
+                backupResponse.getSkippedFiles().get(),
+                backupResponse.getTotalBytes().sum(),
+                backupResponse.getProcessedBytes().sum(),
+                bytesPerSecond,
+                etaSeconds);
+    }
+
+    /**
+     * Whether anything other than the rate and estimate differs, i.e. whether the run has moved on.
+     */
+    public boolean hasProgressedFrom(final BackupProgress previous) {
+        return previous == null
+                || backupState != previous.backupState
+                || totalFiles != previous.totalFiles
+                || uploadedFiles != previous.uploadedFiles
+                || failedFiles != previous.failedFiles
+                || skippedFiles != previous.skippedFiles
+                || totalBytes != previous.totalBytes
+                || processedBytes != previous.processedBytes;
+    }
+}
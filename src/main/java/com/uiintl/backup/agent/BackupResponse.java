@@ -6,6 +6,7 @@ import lombok.NoArgsConstructor;
 
 import java.util.Date;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by jlin on 2016/2/11.
@@ -21,16 +22,95 @@ public class BackupResponse {
 
     private BackupState backupState;
 
-    private int totalFiles;
+    private AtomicInteger totalFiles;
 
     private AtomicInteger uploadedFiles;
 
+    private AtomicInteger skippedFiles;
+
+    /**
+     * Whether the run carried on from an earlier attempt that was interrupted.
+     */
+    private boolean resumed;
+
+    /**
+     * When the run left the job queue and started; null while it is queued.
+     */
+    private Date startedDate;
+
+    private Date finishedDate;
+
+    private AtomicInteger failedFiles = new AtomicInteger(0);
+
+    private AtomicInteger inFlightUploads = new AtomicInteger(0);
+
+    /**
+     * Files found by the scan and waiting for the upload stage.
+     */
+    private AtomicInteger queueDepth = new AtomicInteger(0);
+
+    /**
+     * Size of every file queued for upload.
+     */
+    private LongAdder totalBytes = new LongAdder();
+
+    /**
+     * Bytes sent to S3, which is less than the files' size when they are compressed, deduplicated or skipped.
+     */
+    private LongAdder uploadedBytes = new LongAdder();
+
+    /**
+     * Bytes of queued files that have been uploaded, counting in-progress uploads as they go.
+     */
+    private LongAdder processedBytes = new LongAdder();
+
+    /**
+     * Upload requests that had to be sent again.
+     */
+    private LongAdder retries = new LongAdder();
+
+    public BackupResponse(final String id, final Date triggeredDate, final BackupState backupState,
+                          final AtomicInteger totalFiles, final AtomicInteger uploadedFiles, final AtomicInteger skippedFiles, final boolean resumed) {
+        this.id = id;
+        this.triggeredDate = triggeredDate;
+        this.backupState = backupState;
+        this.totalFiles = totalFiles;
+        this.uploadedFiles = uploadedFiles;
+        this.skippedFiles = skippedFiles;
+        this.resumed = resumed;
+    }
+
+    public long getBytesRemaining() {
+        return Math.max(0, totalBytes.sum() - processedBytes.sum());
+    }
+
+    /**
+     * Average upload rate since the run started, or over the whole run once it has finished.
+     */
+    public long getBytesPerSecond() {
+
+        final Date start = startedDate != null ? startedDate : triggeredDate;
+        final long end = finishedDate != null ? finishedDate.getTime() : System.currentTimeMillis();
+        final long elapsed = Math.max(1, end - start.getTime());
+
+        return uploadedBytes.sum() * 1000 / elapsed;
+    }
+
 
     public enum BackupState {
+        QUEUED,
         STARTED,
         SUCCESS,
         NO_FILE,
         FAIL,
-        PARTIAL_FAIL;
+        PARTIAL_FAIL,
+        INTERRUPTED;
+
+        /**
+         * Whether a run in this state has yet to finish.
+         */
+        public boolean isActive() {
+            return this == QUEUED || this == STARTED;
+        }
     }
 }
@@ -0,0 +1,732 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.uiintl.backup.config.BackupProperties;
+import lombok.Value;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Restores the objects under a key prefix to a local directory, as fast as the link allows.
+ * <p>
+ * Objects are listed with ListObjectsV2 and downloaded {@code restoreConcurrency} requests at a time. An object
+ * larger than {@code restorePartSize} is fetched as ranged GETs that all run in parallel, each streamed straight
+ * into its own position of a file pre-allocated to the full size, so parts never wait on each other and no
+ * object is buffered on the heap. Chunked files are reassembled the same way from their chunks, compressed
+ * objects are decompressed as they stream in, and packed files are cut from a single ranged GET per pack.
+ * <p>
+ * Keys are restored as paths below the restore directory; keys that would land outside it are refused.
+ * <p>
+ * The statuses of the last {@code keptStatuses} restores are held in memory only, and are lost on restart.
+ */
+@Component
+public class BackupRestorer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupRestorer.class);
+
+    private static final int MAX_REPORTED_KEYS = 1000;
+
+    /**
+     * Most bytes handed to a single {@link FileChannel#transferFrom} call.
+     */
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    private final BackupTargets backupTargets;
+
+    private final BackupProperties backupProperties;
+
+    private final int restoreConcurrency;
+
+    private final ExecutorService listExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("backup-restore-list-"));
+
+    private final ExecutorService restoreExecutor;
+
+    /**
+     * In memory only, the last {@code keptStatuses} of them.
+     */
+    private final Map<String, RestoreResponse> responses;
+
+    @Autowired
+    public BackupRestorer(final BackupTargets backupTargets, final BackupProperties backupProperties) {
+        this.backupTargets = backupTargets;
+        this.backupProperties = backupProperties;
+        this.responses = keptStatuses(backupProperties.getKeptStatuses());
+        this.restoreConcurrency = Math.max(1, backupProperties.getRestoreConcurrency());
+        this.restoreExecutor = Executors.newFixedThreadPool(restoreConcurrency, new CustomizableThreadFactory("backup-restore-"));
+    }
+
+    private static Map<String, RestoreResponse> keptStatuses(final int keptStatuses) {
+        return new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, RestoreResponse> eldest) {
+                return this.size() > keptStatuses;
+            }
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        listExecutor.shutdownNow();
+        restoreExecutor.shutdownNow();
+    }
+
+    /**
+     * @param prefix      restores every key starting with it; blank for the whole bucket.
+     * @param restorePath directory the keys are restored under.
+     * @param bucketName  a bucket name or s3:// target, see {@link BackupTargets}.
+     * @throws IllegalArgumentException if the bucket names a directory target.
+     */
+    public RestoreResponse restore(final String prefix, final String restorePath, final String bucketName) {
+
+        if (StringUtils.isBlank(restorePath)) {
+            throw new RuntimeException("Restore path should not be blank");
+        }
+
+        final S3BackupTarget bucket = backupTargets.resolveBucket(bucketName);
+        final String keyPrefix = StringUtils.defaultString(prefix);
+        final Path target = Paths.get(restorePath).toAbsolutePath().normalize();
+        final String id = UUID.randomUUID().toString();
+        final RestoreResponse response = new RestoreResponse(id, new Date(), RestoreResponse.RestoreState.STARTED, keyPrefix, target.toString(),
+                new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0), new LongAdder(),
+                Collections.synchronizedList(new ArrayList<>()), null);
+
+        synchronized (responses) {
+            responses.put(id, response);
+        }
+
+        CompletableFuture.runAsync(() -> this.restoreObjects(keyPrefix, target, bucket, response), listExecutor)
+                .thenRun(() -> LOGGER.info("Restore complete: {}", response));
+
+        return response;
+    }
+
+    public Optional<RestoreResponse> getRestoreResponse(final String id) {
+        synchronized (responses) {
+            return Optional.ofNullable(responses.get(id));
+        }
+    }
+
+    public List<RestoreResponse> listRestoreResponses() {
+        synchronized (responses) {
+            return new ArrayList<>(responses.values());
+        }
+    }
+
+    private void restoreObjects(final String prefix, final Path target, final S3BackupTarget bucket, final RestoreResponse response) {
+
+        final RestoreRun run = new RestoreRun(target, bucket, response);
+        boolean listed = false;
+
+        try {
+            final Map<String, PackedFile> packedFiles = this.readPackIndexes(bucket, prefix);
+            final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket.getBucketName()).withPrefix(prefix);
+            ListObjectsV2Result listing;
+
+            do {
+                listing = bucket.getClient().listObjectsV2(request);
+
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+
+                    if (this.isInternal(summary.getKey())) {
+                        continue;
+                    }
+
+                    // a file that moved into or out of a pack between runs is restored from where it went last.
+                    final PackedFile packedFile = packedFiles.remove(summary.getKey());
+
+                    if (packedFile != null && packedFile.getIndexDate().after(summary.getLastModified())) {
+                        packedFiles.put(summary.getKey(), packedFile);
+                        continue;
+                    }
+
+                    response.getTotalFiles().incrementAndGet();
+                    run.submit(slot -> this.restoreObject(summary, run, slot));
+                }
+
+                request.setContinuationToken(listing.getNextContinuationToken());
+
+            } while (listing.isTruncated());
+
+            final Map<String, List<PackedFile>> packs = packedFiles.values().stream()
+                    .collect(Collectors.groupingBy(packedFile -> packedFile.getEntry().getPackKey()));
+
+            for (Map.Entry<String, List<PackedFile>> pack : packs.entrySet()) {
+                response.getTotalFiles().addAndGet(pack.getValue().size());
+                run.submit(slot -> this.restorePack(pack.getKey(), pack.getValue(), run));
+            }
+
+            listed = true;
+
+        } catch (AmazonClientException | IOException e) {
+            LOGGER.error("Unable to list backup {} in {}: {}", prefix, bucket, e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            run.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listed = false;
+        }
+
+        final int failedFiles = response.getFailedFiles().get();
+        final int restoredFiles = response.getRestoredFiles().get();
+
+        if (listed && failedFiles == 0) {
+            response.setRestoreState(restoredFiles > 0 ? RestoreResponse.RestoreState.SUCCESS : RestoreResponse.RestoreState.NO_FILE);
+
+        } else {
+            response.setRestoreState(restoredFiles > 0 ? RestoreResponse.RestoreState.PARTIAL_FAIL : RestoreResponse.RestoreState.FAIL);
+        }
+
+        response.setFinishedDate(new Date());
+    }
+
+    /**
+     * Chunks and packs are restored through the files that refer to them, not as files of their own.
+     */
+    private boolean isInternal(final String key) {
+        return key.startsWith(backupProperties.getChunkPrefix()) || key.startsWith(backupProperties.getPackPrefix());
+    }
+
+    /**
+     * Index objects are named by the time their run started, so replaying them in listing order leaves the
+     * latest location of every packed file.
+     */
+    private Map<String, PackedFile> readPackIndexes(final S3BackupTarget bucket, final String prefix) throws IOException {
+
+        final Map<String, PackedFile> packedFiles = new HashMap<>();
+
+        SmallFilePacker.readIndexes(bucket, backupProperties.getPackPrefix(), (entry, indexDate) -> {
+            if (entry.getKey().startsWith(prefix)) {
+                packedFiles.put(entry.getKey(), new PackedFile(entry, indexDate));
+            }
+        });
+
+        return packedFiles;
+    }
+
+    private void restoreObject(final S3ObjectSummary summary, final RestoreRun run, final QueueSlot slot) {
+
+        final String key = summary.getKey();
+
+        try {
+            final Path path = run.resolve(key);
+
+            // a large plain object is worth a HEAD to find out it can be fetched in ranges.
+            if (summary.getSize() > backupProperties.getRestorePartSize()) {
+                final ObjectMetadata metadata = run.getClient().getObjectMetadata(run.getBucketName(), key);
+
+                if (!isRecipe(metadata) && codecOf(metadata) == CompressionCodec.NONE) {
+                    this.restoreRanges(key, path, summary.getSize(), lastModifiedOf(metadata, summary), run, slot);
+                    return;
+                }
+            }
+
+            try (S3Object object = run.getClient().getObject(run.getBucketName(), key)) {
+                final ObjectMetadata metadata = object.getObjectMetadata();
+
+                if (isRecipe(metadata)) {
+                    this.restoreChunks(ChunkRecipe.parse(object.getObjectContent()), path, run, slot);
+                    return;
+                }
+
+                final CompressionCodec codec = codecOf(metadata);
+
+                try (FileChannel channel = createFile(path)) {
+                    final InputStream content = codec.decompress(object.getObjectContent());
+                    run.getResponse().getRestoredBytes().add(writeAt(channel, content, 0, codec == CompressionCodec.NONE ? summary.getSize() : -1));
+                }
+
+                Files.setLastModifiedTime(path, FileTime.fromMillis(lastModifiedOf(metadata, summary)));
+            }
+
+            run.fileRestored(key);
+
+        } catch (IOException | RuntimeException e) {
+            run.fileFailed(key, e);
+        }
+    }
+
+    private void restoreRanges(final String key, final Path path, final long size, final long lastModified, final RestoreRun run,
+                               final QueueSlot slot) throws IOException {
+
+        final long partSize = backupProperties.getRestorePartSize();
+        final int parts = (int) ((size + partSize - 1) / partSize);
+        final RestoredFile file = new RestoredFile(run, key, path, size, lastModified, parts, slot);
+
+        for (int part = 0; part < parts; part++) {
+            final long start = part * partSize;
+            final long end = Math.min(size, start + partSize) - 1;
+
+            run.fork(() -> file.partDone(this.download(new GetObjectRequest(run.getBucketName(), key).withRange(start, end), end - start + 1, file, start)));
+        }
+    }
+
+    private void restoreChunks(final ChunkRecipe recipe, final Path path, final RestoreRun run, final QueueSlot slot) throws IOException {
+
+        if (recipe.getChunks().isEmpty()) {
+            createFile(path).close();
+            Files.setLastModifiedTime(path, FileTime.fromMillis(recipe.getLastModified()));
+            run.fileRestored(recipe.getKey());
+            return;
+        }
+
+        final RestoredFile file = new RestoredFile(run, recipe.getKey(), path, recipe.getSize(), recipe.getLastModified(), recipe.getChunks().size(), slot);
+        long position = 0;
+
+        for (ChunkRecipe.Chunk chunk : recipe.getChunks()) {
+            final long chunkPosition = position;
+            final GetObjectRequest request = new GetObjectRequest(run.getBucketName(), backupProperties.getChunkPrefix() + chunk.getHash());
+
+            run.fork(() -> file.partDone(this.download(request, chunk.getLength(), file, chunkPosition)));
+            position += chunk.getLength();
+        }
+    }
+
+    /**
+     * @return the failure, or null once the bytes are written.
+     */
+    private Exception download(final GetObjectRequest request, final long length, final RestoredFile file, final long position) {
+
+        if (file.hasFailed()) {
+            return null;
+        }
+
+        try (S3Object object = file.getRun().getClient().getObject(request)) {
+            file.getRun().getResponse().getRestoredBytes().add(writeAt(file.getChannel(), object.getObjectContent(), position, length));
+            return null;
+
+        } catch (IOException | RuntimeException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Fetches the span of the pack that holds the files and cuts them out in offset order, skipping the entry
+     * headers and any files in between that are not being restored.
+     */
+    private void restorePack(final String packKey, final List<PackedFile> packedFiles, final RestoreRun run) {
+
+        final List<SmallFilePacker.IndexEntry> entries = new ArrayList<>();
+        final Map<SmallFilePacker.IndexEntry, Path> paths = new HashMap<>();
+
+        for (PackedFile packedFile : packedFiles) {
+            try {
+                paths.put(packedFile.getEntry(), run.resolve(packedFile.getEntry().getKey()));
+                entries.add(packedFile.getEntry());
+            } catch (IOException e) {
+                run.fileFailed(packedFile.getEntry().getKey(), e);
+            }
+        }
+
+        entries.sort(Comparator.comparingLong(SmallFilePacker.IndexEntry::getOffset));
+
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        final long start = entries.get(0).getOffset();
+        final long end = entries.stream().mapToLong(entry -> entry.getOffset() + entry.getLength()).max().getAsLong() - 1;
+        int restored = 0;
+
+        try (S3Object pack = end >= start ? run.getClient().getObject(new GetObjectRequest(run.getBucketName(), packKey).withRange(start, end)) : null) {
+            final InputStream content = pack != null ? pack.getObjectContent() : InputStream.nullInputStream();
+            long position = start;
+
+            for (SmallFilePacker.IndexEntry entry : entries) {
+                final Path path = paths.get(entry);
+                skipFully(content, entry.getOffset() - position);
+
+                try (FileChannel channel = createFile(path)) {
+                    run.getResponse().getRestoredBytes().add(writeAt(channel, content, 0, entry.getLength()));
+                }
+
+                Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getLastModified()));
+                position = entry.getOffset() + entry.getLength();
+
+                run.fileRestored(entry.getKey());
+                restored++;
+            }
+        } catch (IOException | RuntimeException e) {
+            // the rest of the pack is no longer where the index says it is.
+            entries.subList(restored, entries.size()).forEach(entry -> run.fileFailed(entry.getKey(), e));
+        }
+    }
+
+    /**
+     * Objects uploaded before the file's own time was recorded get the time they were stored.
+     */
+    private static long lastModifiedOf(final ObjectMetadata metadata, final S3ObjectSummary summary) {
+
+        final String lastModified = metadata.getUserMetaDataOf(FileVersion.LAST_MODIFIED_METADATA_KEY);
+
+        try {
+            return lastModified != null ? Long.parseLong(lastModified) : summary.getLastModified().getTime();
+        } catch (NumberFormatException e) {
+            return summary.getLastModified().getTime();
+        }
+    }
+
+    private static boolean isRecipe(final ObjectMetadata metadata) {
+        return ChunkRecipe.FORMAT.equals(metadata.getUserMetaDataOf(ChunkRecipe.FORMAT_METADATA_KEY));
+    }
+
+    private static CompressionCodec codecOf(final ObjectMetadata metadata) throws IOException {
+
+        final String codec = metadata.getUserMetaDataOf(CompressionCodec.CODEC_METADATA_KEY);
+
+        try {
+            return codec != null ? CompressionCodec.valueOf(codec.toUpperCase(Locale.ROOT)) : CompressionCodec.NONE;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown codec " + codec, e);
+        }
+    }
+
+    private static FileChannel createFile(final Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Streams the bytes from the channel's own transfer buffer into the file, at the given position.
+     *
+     * @param count bytes to write, or -1 for the rest of the stream.
+     * @return the bytes written.
+     */
+    private static long writeAt(final FileChannel channel, final InputStream inputStream, final long position, final long count) throws IOException {
+
+        final ReadableByteChannel source = Channels.newChannel(inputStream);
+        final long limit = count < 0 ? Long.MAX_VALUE : count;
+        long written = 0;
+
+        while (written < limit) {
+            final long transferred = channel.transferFrom(source, position + written, Math.min(limit - written, TRANSFER_SIZE));
+
+            if (transferred <= 0) {
+                break;
+            }
+
+            written += transferred;
+        }
+
+        if (count >= 0 && written < count) {
+            throw new EOFException("Expected " + count + " bytes but the object ended after " + written);
+        }
+
+        return written;
+    }
+
+    private static void skipFully(final InputStream inputStream, final long bytes) throws IOException {
+
+        long remaining = bytes;
+
+        while (remaining > 0) {
+            final long skipped = inputStream.skip(remaining);
+
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new EOFException("Pack ended " + remaining + " bytes before the next file");
+                }
+
+                remaining--;
+
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * One restore's tasks. The listing thread waits for the run's downloads with {@link #awaitCompletion()}.
+     */
+    private class RestoreRun {
+
+        private final Path target;
+
+        private final S3BackupTarget bucket;
+
+        private final RestoreResponse response;
+
+        /**
+         * Bounds the objects queued by the listing, so a huge prefix is not queued all at once.
+         */
+        private final Semaphore queued = new Semaphore(restoreConcurrency * 2);
+
+        /**
+         * Tasks not finished yet, plus one for the listing itself.
+         */
+        private int pending = 1;
+
+        RestoreRun(final Path target, final S3BackupTarget bucket, final RestoreResponse response) {
+            this.target = target;
+            this.bucket = bucket;
+            this.response = response;
+        }
+
+        AmazonS3 getClient() {
+            return bucket.getClient();
+        }
+
+        String getBucketName() {
+            return bucket.getBucketName();
+        }
+
+        RestoreResponse getResponse() {
+            return response;
+        }
+
+        Path resolve(final String key) throws IOException {
+
+            final Path path = target.resolve(key).normalize();
+
+            if (!path.startsWith(target) || path.equals(target)) {
+                throw new IOException("Key " + key + " is outside the restore path");
+            }
+
+            return path;
+        }
+
+        /**
+         * Queues a task from the listing, waiting while enough are queued already. The task's slot is freed when
+         * it returns, unless it has handed the slot to a file whose parts are still downloading.
+         */
+        void submit(final Consumer<QueueSlot> task) throws InterruptedException {
+
+            queued.acquire();
+
+            final QueueSlot slot = new QueueSlot(queued);
+
+            this.execute(() -> {
+                try {
+                    task.accept(slot);
+                } finally {
+                    slot.releaseUnlessHandedOver();
+                }
+            });
+        }
+
+        /**
+         * Queues a part of a file from a running task, which must not wait for the tasks queued ahead of it.
+         */
+        void fork(final Runnable task) {
+            this.execute(task);
+        }
+
+        private void execute(final Runnable task) {
+
+            synchronized (this) {
+                pending++;
+            }
+
+            try {
+                restoreExecutor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        this.taskDone();
+                    }
+                });
+
+            } catch (RejectedExecutionException e) {
+                this.taskDone();
+                throw e;
+            }
+        }
+
+        private synchronized void taskDone() {
+            if (--pending == 0) {
+                this.notifyAll();
+            }
+        }
+
+        synchronized void awaitCompletion() throws InterruptedException {
+
+            pending--;
+
+            while (pending > 0) {
+                this.wait();
+            }
+        }
+
+        void fileRestored(final String key) {
+            LOGGER.debug("Restored {}", key);
+            response.getRestoredFiles().incrementAndGet();
+        }
+
+        void fileFailed(final String key, final Exception e) {
+
+            LOGGER.error("Unable to restore {}: {}", key, e.getMessage());
+            response.getFailedFiles().incrementAndGet();
+
+            if (response.getFailedKeys().size() < MAX_REPORTED_KEYS) {
+                response.getFailedKeys().add(key);
+            }
+        }
+    }
+
+    /**
+     * A listed object's place among the run's queued tasks. Its task returns once it has forked the parts of a
+     * large file, so the file takes the slot over and frees it when the last part closes it; otherwise the
+     * listing would queue more objects while earlier ones were still downloading, and open files without bound.
+     */
+    private static class QueueSlot {
+
+        private final Semaphore queued;
+
+        private volatile boolean handedOver;
+
+        QueueSlot(final Semaphore queued) {
+            this.queued = queued;
+        }
+
+        /**
+         * @return frees the slot.
+         */
+        Runnable handOver() {
+            handedOver = true;
+            return queued::release;
+        }
+
+        void releaseUnlessHandedOver() {
+            if (!handedOver) {
+                queued.release();
+            }
+        }
+    }
+
+    /**
+     * A file being written by several parallel downloads. It is pre-allocated to its full size, and the last part
+     * to finish closes it, frees its queue slot and counts it as restored or failed.
+     */
+    private static class RestoredFile {
+
+        private final RestoreRun run;
+
+        private final String key;
+
+        private final Path path;
+
+        private final long lastModified;
+
+        private final FileChannel channel;
+
+        private final AtomicInteger remainingParts;
+
+        private final Runnable onClosed;
+
+        private volatile Exception failure;
+
+        /**
+         * @param lastModified -1 if unknown.
+         */
+        RestoredFile(final RestoreRun run, final String key, final Path path, final long size, final long lastModified, final int parts,
+                     final QueueSlot slot) throws IOException {
+            this.run = run;
+            this.key = key;
+            this.path = path;
+            this.lastModified = lastModified;
+            this.remainingParts = new AtomicInteger(parts);
+
+            Files.createDirectories(path.getParent());
+
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(size);
+            }
+
+            this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            this.onClosed = slot.handOver();
+        }
+
+        RestoreRun getRun() {
+            return run;
+        }
+
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Once a part has failed the file is lost, so the parts still queued are not downloaded.
+         */
+        boolean hasFailed() {
+            return failure != null;
+        }
+
+        void partDone(final Exception partFailure) {
+
+            if (partFailure != null) {
+                failure = partFailure;
+            }
+
+            if (remainingParts.decrementAndGet() > 0) {
+                return;
+            }
+
+            try {
+                channel.close();
+
+                if (failure == null && lastModified >= 0) {
+                    Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            onClosed.run();
+
+            if (failure == null) {
+                run.fileRestored(key);
+            } else {
+                run.fileFailed(key, failure);
+            }
+        }
+    }
+
+    @Value
+    private static class PackedFile {
+
+        SmallFilePacker.IndexEntry entry;
+
+        /**
+         * When the index listing the file was stored, to tell whether it is newer than an object under the same key.
+         */
+        Date indexDate;
+    }
+}
@@ -0,0 +1,113 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * State shared by the scan and upload stages of a single backup run.
+ */
+@Getter
+class BackupRun {
+
+    private final BackupResponse backupResponse;
+
+    private final String backupPath;
+
+    private final String bucketName;
+
+    /**
+     * Where files are stored, or null for the main bucket, which they are uploaded to through the transfer engine.
+     */
+    private final BackupTarget target;
+
+    /**
+     * Null when runs are not resumable.
+     */
+    private final RunJournal journal;
+
+    /**
+     * The files to back up, or null for everything under the backup path.
+     */
+    private final List<Path> files;
+
+    /**
+     * Told of the files left out only for being too young, or null.
+     */
+    private final Consumer<Path> tooYoung;
+
+    /**
+     * The versions the scan found the queued files at, until they are finished with. Requests do not override
+     * equals, so they are told apart by identity.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<PutObjectRequest, FileVersion> queuedVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Null unless small files are packed.
+     */
+    @Setter
+    private SmallFilePacker.PackWriter packWriter;
+
+    BackupRun(final BackupResponse backupResponse, final String backupPath, final String bucketName, final BackupTarget target,
+              final RunJournal journal, final List<Path> files, final Consumer<Path> tooYoung) {
+        this.backupResponse = backupResponse;
+        this.backupPath = backupPath;
+        this.bucketName = bucketName;
+        this.target = target;
+        this.journal = journal;
+        this.files = files;
+        this.tooYoung = tooYoung;
+    }
+
+    String getId() {
+        return backupResponse.getId();
+    }
+
+    /**
+     * Whether an earlier attempt of this run already uploaded the file.
+     */
+    boolean isCompleted(final PutObjectRequest putObjectRequest) {
+        return journal != null && journal.isCompleted(putObjectRequest);
+    }
+
+    /**
+     * Remembers the version the file was queued at, and puts its modification time on the object to upload.
+     *
+     * @param attributes as the scan read them; null for a stream.
+     */
+    void fileQueued(final PutObjectRequest putObjectRequest, final BasicFileAttributes attributes) {
+        if (attributes != null) {
+            final FileVersion version = FileVersion.of(attributes);
+            version.applyTo(putObjectRequest);
+            queuedVersions.put(putObjectRequest, version);
+        }
+    }
+
+    /**
+     * @return the version the file was queued at, or {@link FileVersion#NONE} for a stream.
+     */
+    FileVersion queuedVersion(final PutObjectRequest putObjectRequest) {
+        return queuedVersions.getOrDefault(putObjectRequest, FileVersion.NONE);
+    }
+
+    /**
+     * Forgets the version of a file that is finished with, uploaded or not.
+     *
+     * @return the version the file was queued at, or {@link FileVersion#NONE} for a stream.
+     */
+    FileVersion fileFinished(final PutObjectRequest putObjectRequest) {
+
+        final FileVersion version = queuedVersions.remove(putObjectRequest);
+
+        return version != null ? version : FileVersion.NONE;
+    }
+}
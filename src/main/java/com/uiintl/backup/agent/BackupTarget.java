@@ -0,0 +1,48 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Somewhere files are backed up to: a bucket, possibly in another region, or a directory on a local or mounted
+ * file system. {@link BackupTargets} resolves destinations to targets.
+ * <p>
+ * Backups to the main bucket still go through the transfer engine, with its resumable, adaptive multipart
+ * uploads, compression, chunking and packing; targets store files as they are.
+ */
+public interface BackupTarget {
+
+    /**
+     * Stores the request's file under its key, replacing whatever is there. The request's bucket is ignored, and
+     * its metadata and progress listener are used where the target has a use for them.
+     */
+    void store(PutObjectRequest putObjectRequest) throws IOException, InterruptedException;
+
+    /**
+     * Starts storing a file that is handed over in parts as it is read, e.g. by a fan-out.
+     *
+     * @param metadata the object's metadata before the file has been read.
+     */
+    PartWriter open(String key, File file, ObjectMetadata metadata) throws IOException;
+
+    /**
+     * Receives one file's parts in order, then either its checksums once the whole file has been read, or an abort.
+     */
+    interface PartWriter {
+
+        /**
+         * The buffer is not changed afterwards, so the writer may hold on to it.
+         */
+        void write(byte[] buffer, int length) throws IOException;
+
+        void finish(FileChecksums checksums) throws IOException;
+
+        /**
+         * Removes whatever has been stored so far; failures are logged rather than thrown.
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,106 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.uiintl.backup.config.S3ClientFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves backup destinations to {@link BackupTarget}s: "s3://bucket" for a bucket in the main region,
+ * "s3://bucket@region" for one elsewhere, a plain bucket name for a bucket in the main region, and anything
+ * else, e.g. "file:/mnt/nas" or "/mnt/nas", for a directory. Targets and region clients are made once and shared.
+ */
+@Component
+public class BackupTargets {
+
+    private static final String FILE_SCHEME = "file:";
+
+    private final AmazonS3 s3;
+
+    private final S3ClientFactory s3ClientFactory;
+
+    private final Map<String, BackupTarget> targets = new ConcurrentHashMap<>();
+
+    private final Map<String, AmazonS3> regionClients = new ConcurrentHashMap<>();
+
+    @Autowired
+    public BackupTargets(final AmazonS3 s3, final S3ClientFactory s3ClientFactory) {
+        this.s3 = s3;
+        this.s3ClientFactory = s3ClientFactory;
+    }
+
+    /**
+     * Whether the destination is more than a bucket name, so it is stored through its target rather than the
+     * transfer engine. Bucket names never hold a ':', '/' or '\'.
+     */
+    public static boolean isTarget(final String destination) {
+        return destination.indexOf(':') >= 0 || destination.indexOf('/') >= 0 || destination.indexOf('\\') >= 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the destination is not one of the supported forms.
+     */
+    public BackupTarget resolve(final String destination) {
+        return targets.computeIfAbsent(destination.trim(), this::create);
+    }
+
+    /**
+     * The bucket to read a backup back from, for restores and verifications.
+     *
+     * @throws IllegalArgumentException if the destination is a directory, or not one of the supported forms.
+     */
+    S3BackupTarget resolveBucket(final String destination) {
+
+        final BackupTarget target = this.resolve(destination);
+
+        if (!(target instanceof S3BackupTarget)) {
+            throw new IllegalArgumentException("Backup target " + destination + " is a directory, only buckets can be restored from or verified");
+        }
+
+        return (S3BackupTarget) target;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+
+        for (BackupTarget target : targets.values()) {
+            if (target instanceof S3BackupTarget) {
+                ((S3BackupTarget) target).shutdown();
+            }
+        }
+
+        regionClients.values().forEach(AmazonS3::shutdown);
+    }
+
+    private BackupTarget create(final String destination) {
+
+        if (!isTarget(destination)) {
+            return new S3BackupTarget(s3, destination, null);
+        }
+
+        if (!destination.startsWith(S3BackupTarget.SCHEME)) {
+            return new LocalBackupTarget(destination.startsWith(FILE_SCHEME) ? Paths.get(URI.create(destination)) : Paths.get(destination));
+        }
+
+        final String location = destination.substring(S3BackupTarget.SCHEME.length());
+        final int separator = location.indexOf(S3BackupTarget.REGION_SEPARATOR);
+
+        if (location.isEmpty() || separator == 0 || location.contains("/")) {
+            throw new IllegalArgumentException("Backup target " + destination + " is not s3://bucket or s3://bucket@region");
+        }
+
+        if (separator < 0) {
+            return new S3BackupTarget(s3, location, null);
+        }
+
+        final String region = location.substring(separator + 1);
+
+        return new S3BackupTarget(regionClients.computeIfAbsent(region, s3ClientFactory::create), location.substring(0, separator), region);
+    }
+}
@@ -0,0 +1,268 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.uiintl.backup.config.BackupProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks a backup against the local files without downloading anything: each file's object is fetched with a
+ * HEAD request and its stored SHA-256, or for plain single part objects its ETag, is compared with a fresh hash
+ * of the local file. Files are hashed in parallel, {@code uploadConcurrency} at a time.
+ * <p>
+ * The files are found by the backup's own {@link DirectoryScanner}, so excluded files are not reported missing
+ * and keys are made the same way. Every directory is listed, however long it has been unchanged.
+ * <p>
+ * A file without an object of its own is looked up in the pack indexes, which are read first. A packed file of
+ * the size in its index entry cannot be verified, as the index holds no checksum; one that no pack index lists
+ * is missing, however small.
+ * <p>
+ * The statuses of the last {@code keptStatuses} verifications are held in memory only, and are lost on restart.
+ */
+@Component
+public class BackupVerifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupVerifier.class);
+
+    private static final int MAX_REPORTED_KEYS = 1000;
+
+    private final BackupTargets backupTargets;
+
+    private final ResourceLoader resourceLoader;
+
+    private final BackupProperties backupProperties;
+
+    private final FileHasher fileHasher;
+
+    private final DirectoryScanner directoryScanner;
+
+    private final int verifyConcurrency;
+
+    private final ExecutorService scanExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("backup-verify-scan-"));
+
+    private final ExecutorService verifyExecutor;
+
+    /**
+     * In memory only, the last {@code keptStatuses} of them.
+     */
+    private final Map<String, VerificationResponse> responses;
+
+    @Autowired
+    public BackupVerifier(final BackupTargets backupTargets, final ResourceLoader resourceLoader, final BackupProperties backupProperties,
+                          final FileHasher fileHasher, final DirectoryScanner directoryScanner) {
+        this.backupTargets = backupTargets;
+        this.resourceLoader = resourceLoader;
+        this.backupProperties = backupProperties;
+        this.responses = keptStatuses(backupProperties.getKeptStatuses());
+        this.fileHasher = fileHasher;
+        this.directoryScanner = directoryScanner;
+        this.verifyConcurrency = Math.max(1, backupProperties.getUploadConcurrency());
+        this.verifyExecutor = Executors.newFixedThreadPool(verifyConcurrency, new CustomizableThreadFactory("backup-verify-"));
+    }
+
+    private static Map<String, VerificationResponse> keptStatuses(final int keptStatuses) {
+        return new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, VerificationResponse> eldest) {
+                return this.size() > keptStatuses;
+            }
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scanExecutor.shutdownNow();
+        verifyExecutor.shutdownNow();
+    }
+
+    /**
+     * @param bucketName a bucket name or s3:// target, see {@link BackupTargets}.
+     * @throws IllegalArgumentException if the bucket names a directory target.
+     */
+    public VerificationResponse verify(final String backupPath, final String bucketName) {
+
+        if (StringUtils.isBlank(backupPath)) {
+            throw new RuntimeException("Backup path should not be blank");
+        }
+
+        final S3BackupTarget bucket = backupTargets.resolveBucket(bucketName);
+        final Resource resource = resourceLoader.getResource(backupPath);
+        final String id = UUID.randomUUID().toString();
+        final VerificationResponse response = new VerificationResponse(id, new Date(), VerificationResponse.VerificationState.STARTED,
+                new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0),
+                Collections.synchronizedList(new ArrayList<>()), Collections.synchronizedList(new ArrayList<>()));
+
+        synchronized (responses) {
+            responses.put(id, response);
+        }
+
+        CompletableFuture.runAsync(() -> this.verifyFiles(resource, bucket, response), scanExecutor)
+                .thenRun(() -> LOGGER.info("Verification complete: {}", response));
+
+        return response;
+    }
+
+    public Optional<VerificationResponse> getVerificationResponse(final String id) {
+        synchronized (responses) {
+            return Optional.ofNullable(responses.get(id));
+        }
+    }
+
+    public List<VerificationResponse> listVerificationResponses() {
+        synchronized (responses) {
+            return new ArrayList<>(responses.values());
+        }
+    }
+
+    private void verifyFiles(final Resource resource, final S3BackupTarget bucket, final VerificationResponse response) {
+
+        final Semaphore inFlight = new Semaphore(verifyConcurrency);
+
+        try {
+            final Map<String, SmallFilePacker.IndexEntry> packedFiles = new HashMap<>();
+            SmallFilePacker.readIndexes(bucket, backupProperties.getPackPrefix(), (entry, indexDate) -> packedFiles.put(entry.getKey(), entry));
+
+            directoryScanner.scan(resource.getFile().toPath(), bucket.getBucketName(), new DirectoryScanner.FileSink() {
+
+                @Override
+                public boolean accept(final PutObjectRequest putObjectRequest, final BasicFileAttributes attributes) {
+
+                    try {
+                        inFlight.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CancellationException("Interrupted while verifying " + putObjectRequest.getKey());
+                    }
+
+                    verifyExecutor.execute(() -> {
+                        try {
+                            verifyFile(putObjectRequest.getFile(), bucket, putObjectRequest.getKey(), packedFiles.get(putObjectRequest.getKey()), response);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+
+                    return true;
+                }
+
+                @Override
+                public void skipped(final int files) {
+                    // every directory is listed.
+                }
+            }, false);
+
+            inFlight.acquire(verifyConcurrency);
+
+            response.setVerificationState(response.getMismatchedFiles().get() == 0 && response.getMissingFiles().get() == 0
+                    ? VerificationResponse.VerificationState.VERIFIED
+                    : VerificationResponse.VerificationState.MISMATCH);
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to verify {}: {}", resource, e.getMessage(), e);
+            response.setVerificationState(VerificationResponse.VerificationState.FAIL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.setVerificationState(VerificationResponse.VerificationState.FAIL);
+        }
+    }
+
+    /**
+     * @param packedFile where the last pack index put the file, if one did.
+     */
+    private void verifyFile(final File file, final S3BackupTarget bucket, final String key, final SmallFilePacker.IndexEntry packedFile,
+                            final VerificationResponse response) {
+
+        response.getCheckedFiles().incrementAndGet();
+
+        try {
+            final ObjectMetadata metadata = bucket.getClient().getObjectMetadata(bucket.getBucketName(), key);
+            final Boolean matches = this.matches(file, metadata);
+
+            if (matches == null) {
+                response.getUnverifiableFiles().incrementAndGet();
+
+            } else if (matches) {
+                response.getMatchedFiles().incrementAndGet();
+
+            } else {
+                LOGGER.warn("Checksum mismatch for {}", key);
+                response.getMismatchedFiles().incrementAndGet();
+                report(response.getMismatchedKeys(), key);
+            }
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                LOGGER.error("Unable to verify {}: {}", key, e.getMessage());
+                response.getUnverifiableFiles().incrementAndGet();
+
+            } else if (packedFile != null && packedFile.getLength() != file.length()) {
+                LOGGER.warn("Size mismatch for packed file {}", key);
+                response.getMismatchedFiles().incrementAndGet();
+                report(response.getMismatchedKeys(), key);
+
+            } else if (packedFile != null) {
+                // packed files have no object of their own, and their index entries no checksum.
+                response.getUnverifiableFiles().incrementAndGet();
+
+            } else {
+                response.getMissingFiles().incrementAndGet();
+                report(response.getMissingKeys(), key);
+            }
+        } catch (AmazonClientException | IOException e) {
+            LOGGER.error("Unable to verify {}: {}", key, e.getMessage());
+            response.getUnverifiableFiles().incrementAndGet();
+        }
+    }
+
+    /**
+     * The stored SHA-256 describes the original content however the object was stored. Without one, only the
+     * ETag of an object uploaded as is in a single part is an MD5 of the content.
+     *
+     * @return null if the object carries nothing to compare against.
+     */
+    private Boolean matches(final File file, final ObjectMetadata metadata) throws IOException {
+
+        final String sha256 = metadata.getUserMetaDataOf(FileChecksums.SHA256_METADATA_KEY);
+        final String eTag = metadata.getETag();
+        final boolean transformed = metadata.getUserMetaDataOf(CompressionCodec.CODEC_METADATA_KEY) != null
+                || metadata.getUserMetaDataOf(ChunkRecipe.FORMAT_METADATA_KEY) != null;
+
+        if (sha256 == null && (transformed || eTag == null || eTag.contains("-"))) {
+            return null;
+        }
+
+        if (!transformed && metadata.getContentLength() != file.length()) {
+            return false;
+        }
+
+        final FileChecksums checksums = fileHasher.hash(file);
+
+        return sha256 != null ? sha256.equalsIgnoreCase(checksums.getSha256Hex()) : eTag.equalsIgnoreCase(checksums.getMd5Hex());
+    }
+
+    private static void report(final List<String> keys, final String key) {
+        if (keys.size() < MAX_REPORTED_KEYS) {
+            keys.add(key);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpMethodName;
+import com.uiintl.backup.config.BackupProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Global token bucket on the upload byte stream, shared by every request sent through the S3 client.
+ * <p>
+ * Registered on the client as a request handler so that TransferManager parts, streamed parts, chunks and
+ * packs are all metered in one place. Outside business hours uploads are capped at {@code bandwidthLimit}
+ * (0 for unlimited). During business hours {@code businessHoursBandwidthLimit} applies instead, and a limit of
+ * 0 holds new requests back until the window closes. Requests already on the wire are never paused, so S3 does
+ * not time out idle connections.
+ */
+@Component
+public class BandwidthThrottle extends RequestHandler2 {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BandwidthThrottle.class);
+
+    /**
+     * Up to one second of unused bandwidth may be spent as a burst.
+     */
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Reads are split so a single read never waits much more than this for its tokens.
+     */
+    private static final int READS_PER_SECOND = 10;
+
+    private static final Duration MAX_PAUSE_CHECK = Duration.ofMinutes(1);
+
+    private final BackupProperties backupProperties;
+
+    private final Clock clock;
+
+    private final LocalTime businessHoursStart;
+
+    private final LocalTime businessHoursEnd;
+
+    private long nextFreeNanos = System.nanoTime();
+
+    @Autowired
+    public BandwidthThrottle(final BackupProperties backupProperties) {
+        this(backupProperties, Clock.systemDefaultZone());
+    }
+
+    BandwidthThrottle(final BackupProperties backupProperties, final Clock clock) {
+        this.backupProperties = backupProperties;
+        this.clock = clock;
+        this.businessHoursStart = StringUtils.isNotBlank(backupProperties.getBusinessHoursStart()) ? LocalTime.parse(backupProperties.getBusinessHoursStart()) : null;
+        this.businessHoursEnd = StringUtils.isNotBlank(backupProperties.getBusinessHoursEnd()) ? LocalTime.parse(backupProperties.getBusinessHoursEnd()) : null;
+    }
+
+    @Override
+    public void beforeRequest(final Request<?> request) {
+
+        if (request.getContent() == null || (request.getHttpMethod() != HttpMethodName.PUT && request.getHttpMethod() != HttpMethodName.POST)) {
+            return;
+        }
+
+        try {
+            this.awaitUploadWindow();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (this.currentLimit() > 0) {
+            request.setContent(new ThrottledInputStream(request.getContent()));
+        }
+    }
+
+    /**
+     * @return bytes per second allowed right now; 0 means unlimited outside business hours and paused inside.
+     */
+    long currentLimit() {
+        return this.isBusinessHours(LocalDateTime.now(clock)) ? backupProperties.getBusinessHoursBandwidthLimit() : backupProperties.getBandwidthLimit();
+    }
+
+    boolean isBusinessHours(final LocalDateTime now) {
+
+        if (businessHoursStart == null || businessHoursEnd == null || !backupProperties.getBusinessDays().contains(now.getDayOfWeek())) {
+            return false;
+        }
+
+        final LocalTime time = now.toLocalTime();
+
+        return businessHoursStart.isBefore(businessHoursEnd)
+                ? !time.isBefore(businessHoursStart) && time.isBefore(businessHoursEnd)
+                : !time.isBefore(businessHoursStart) || time.isBefore(businessHoursEnd);
+    }
+
+    /**
+     * Blocks while uploads are paused for business hours.
+     */
+    void awaitUploadWindow() throws InterruptedException {
+
+        boolean logged = false;
+
+        while (this.isBusinessHours(LocalDateTime.now(clock)) && backupProperties.getBusinessHoursBandwidthLimit() == 0) {
+            final Duration untilEnd = Duration.between(LocalTime.now(clock), businessHoursEnd);
+            final Duration pause = untilEnd.isNegative() || untilEnd.compareTo(MAX_PAUSE_CHECK) > 0 ? MAX_PAUSE_CHECK : untilEnd;
+
+            if (!logged) {
+                LOGGER.info("Uploads paused until business hours end at {}", businessHoursEnd);
+                logged = true;
+            }
+
+            Thread.sleep(Math.max(1, pause.toMillis()));
+        }
+    }
+
+    /**
+     * Reserves {@code bytes} tokens and sleeps until they are due. Reservations are made under the lock but the
+     * waiting happens outside it, so concurrent uploads queue up fairly without holding each other up.
+     */
+    void acquire(final int bytes) throws InterruptedException {
+
+        final long limit = this.currentLimit();
+
+        if (limit <= 0) {
+            return;
+        }
+
+        final long waitNanos;
+
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final long start = Math.max(nextFreeNanos, now - BURST_NANOS);
+
+            nextFreeNanos = start + bytes * TimeUnit.SECONDS.toNanos(1) / limit;
+            waitNanos = start - now;
+        }
+
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private class ThrottledInputStream extends FilterInputStream {
+
+        ThrottledInputStream(final InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            this.acquireOrInterrupt(1);
+
+            return super.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+
+            final long limit = currentLimit();
+            final int limited = limit > 0 ? (int) Math.max(1, Math.min(len, limit / READS_PER_SECOND)) : len;
+            this.acquireOrInterrupt(limited);
+
+            return super.read(b, off, limited);
+        }
+
+        private void acquireOrInterrupt(final int bytes) throws InterruptedIOException {
+            try {
+                acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Local record of the chunks already stored in each bucket, so chunked backups can skip existing chunks
+ * without a HEAD request. Like {@link BackupManifest} it is an append-only log of length-prefixed records,
+ * here just bucket name and chunk hash.
+ */
+@Component
+public class ChunkIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkIndex.class);
+
+    private final BackupProperties backupProperties;
+
+    private final Set<String> chunks = new HashSet<>();
+
+    private FileChannel channel;
+
+    @Autowired
+    public ChunkIndex(final BackupProperties backupProperties) {
+        this.backupProperties = backupProperties;
+    }
+
+    @PostConstruct
+    public synchronized void load() throws IOException {
+
+        if (!backupProperties.isChunkedBackup()) {
+            return;
+        }
+
+        final Path indexPath = Paths.get(backupProperties.getChunkIndexPath());
+
+        if (Files.exists(indexPath)) {
+            try (FileChannel readChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                int validLength = 0;
+
+                while (buffer.remaining() >= Integer.BYTES) {
+                    final int recordLength = buffer.getInt();
+
+                    if (recordLength <= 0 || buffer.remaining() < recordLength) {
+                        break;
+                    }
+
+                    final byte[] record = new byte[recordLength];
+                    buffer.get(record);
+                    chunks.add(new String(record, StandardCharsets.UTF_8));
+                    validLength = buffer.position();
+                }
+
+                if (validLength < readChannel.size()) {
+                    LOGGER.warn("Discarding {} bytes of incomplete chunk index records in {}", readChannel.size() - validLength, indexPath);
+                    readChannel.truncate(validLength);
+                }
+            }
+        }
+
+        LOGGER.info("Loaded {} chunk index entries from {}", chunks.size(), indexPath);
+
+        channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public synchronized boolean contains(final String bucketName, final String chunkHash) {
+        return chunks.contains(indexKey(bucketName, chunkHash));
+    }
+
+    public synchronized void add(final String bucketName, final String chunkHash) throws IOException {
+
+        final String indexKey = indexKey(bucketName, chunkHash);
+
+        if (chunks.add(indexKey) && channel != null) {
+            final byte[] record = indexKey.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + record.length).putInt(record.length).put(record).flip();
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static String indexKey(final String bucketName, final String chunkHash) {
+        return bucketName + "/" + chunkHash;
+    }
+}
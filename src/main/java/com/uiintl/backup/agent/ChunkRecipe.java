@@ -0,0 +1,109 @@
+package com.uiintl.backup.agent;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes how to reassemble a file that was backed up as content-defined chunks. The recipe is stored under
+ * the file's own key, marked by {@link #FORMAT_METADATA_KEY}, and lists the chunk hashes in file order.
+ * <p>
+ * Serialised as plain text: a few {@code name=value} header lines followed by one {@code <sha256> <length>}
+ * line per chunk.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChunkRecipe {
+
+    public static final String FORMAT_METADATA_KEY = "backup-format";
+
+    public static final String FORMAT = "chunk-recipe-v1";
+
+    private String key;
+
+    private long size;
+
+    private long lastModified;
+
+    private String sha256;
+
+    private List<Chunk> chunks = new ArrayList<>();
+
+    public byte[] toBytes() {
+
+        final StringBuilder recipe = new StringBuilder()
+                .append("format=").append(FORMAT).append('\n')
+                .append("key=").append(key).append('\n')
+                .append("size=").append(size).append('\n')
+                .append("lastModified=").append(lastModified).append('\n')
+                .append("sha256=").append(sha256).append('\n');
+
+        for (Chunk chunk : chunks) {
+            recipe.append(chunk.getHash()).append(' ').append(chunk.getLength()).append('\n');
+        }
+
+        return recipe.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static ChunkRecipe parse(final InputStream inputStream) throws IOException {
+
+        final ChunkRecipe recipe = new ChunkRecipe();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            final int separator = line.indexOf('=');
+
+            if (separator > 0) {
+                final String value = line.substring(separator + 1);
+
+                switch (line.substring(0, separator)) {
+                    case "format":
+                        if (!FORMAT.equals(value)) {
+                            throw new IOException("Unsupported recipe format: " + value);
+                        }
+                        break;
+                    case "key":
+                        recipe.setKey(value);
+                        break;
+                    case "size":
+                        recipe.setSize(Long.parseLong(value));
+                        break;
+                    case "lastModified":
+                        recipe.setLastModified(Long.parseLong(value));
+                        break;
+                    case "sha256":
+                        recipe.setSha256(value);
+                        break;
+                    default:
+                        break;
+                }
+
+            } else if (!line.isBlank()) {
+                final String[] chunk = line.split(" ");
+                recipe.getChunks().add(new Chunk(chunk[0], Integer.parseInt(chunk[1])));
+            }
+        }
+
+        return recipe;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Chunk {
+
+        private String hash;
+
+        private int length;
+    }
+}
@@ -0,0 +1,114 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.util.BinaryUtils;
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Backs up a large file as deduplicated content-defined chunks. Each distinct chunk is stored once under
+ * {@code chunkPrefix + sha256}, and the file's own key receives a small {@link ChunkRecipe} listing its chunks,
+ * so a file that changed slightly since the last run only uploads the chunks around the change.
+ */
+@Component
+public class ChunkedUploader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedUploader.class);
+
+    private final AmazonS3 s3;
+
+    private final BackupProperties backupProperties;
+
+    private final ChunkIndex chunkIndex;
+
+    @Autowired
+    public ChunkedUploader(final AmazonS3 s3, final BackupProperties backupProperties, final ChunkIndex chunkIndex) {
+        this.s3 = s3;
+        this.backupProperties = backupProperties;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public boolean isChunked(final PutObjectRequest putObjectRequest) {
+        return backupProperties.isChunkedBackup()
+                && putObjectRequest.getFile() != null
+                && putObjectRequest.getFile().length() >= backupProperties.getChunkMinFileSize();
+    }
+
+    public void upload(final PutObjectRequest putObjectRequest) throws IOException {
+
+        final String bucketName = putObjectRequest.getBucketName();
+        final File file = putObjectRequest.getFile();
+        final MessageDigest fileDigest = newDigest();
+        final ChunkRecipe recipe = new ChunkRecipe();
+        recipe.setKey(putObjectRequest.getKey());
+        recipe.setLastModified(file.lastModified());
+
+        int newChunks = 0;
+        long uploadedBytes = 0;
+
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            final ContentDefinedChunker chunker = new ContentDefinedChunker(inputStream, backupProperties.getChunkAverageSize());
+            final byte[] buffer = chunker.buffer();
+            int length;
+
+            while ((length = chunker.next()) > 0) {
+                fileDigest.update(buffer, 0, length);
+
+                final MessageDigest chunkDigest = newDigest();
+                chunkDigest.update(buffer, 0, length);
+                final String chunkHash = BinaryUtils.toHex(chunkDigest.digest());
+
+                if (!chunkIndex.contains(bucketName, chunkHash)) {
+                    final ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.setContentLength(length);
+
+                    final PutObjectRequest chunkRequest = new PutObjectRequest(bucketName, backupProperties.getChunkPrefix() + chunkHash, new ByteArrayInputStream(buffer, 0, length), metadata);
+                    chunkRequest.setGeneralProgressListener(putObjectRequest.getGeneralProgressListener());
+                    s3.putObject(chunkRequest);
+                    chunkIndex.add(bucketName, chunkHash);
+
+                    newChunks++;
+                    uploadedBytes += length;
+                }
+
+                recipe.getChunks().add(new ChunkRecipe.Chunk(chunkHash, length));
+                recipe.setSize(recipe.getSize() + length);
+            }
+        }
+
+        recipe.setSha256(BinaryUtils.toHex(fileDigest.digest()));
+
+        final byte[] recipeBytes = recipe.toBytes();
+        final ObjectMetadata recipeMetadata = new ObjectMetadata();
+        recipeMetadata.setContentLength(recipeBytes.length);
+        recipeMetadata.setContentType("text/plain");
+        recipeMetadata.addUserMetadata(ChunkRecipe.FORMAT_METADATA_KEY, ChunkRecipe.FORMAT);
+        recipeMetadata.addUserMetadata(FileChecksums.SHA256_METADATA_KEY, recipe.getSha256());
+
+        s3.putObject(new PutObjectRequest(bucketName, putObjectRequest.getKey(), new ByteArrayInputStream(recipeBytes), recipeMetadata));
+
+        LOGGER.info("Chunked {}: {} chunks, {} new, {}/{} bytes uploaded",
+                putObjectRequest.getKey(), recipe.getChunks().size(), newChunks, uploadedBytes, recipe.getSize());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
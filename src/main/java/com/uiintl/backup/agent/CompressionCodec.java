@@ -0,0 +1,87 @@
+package com.uiintl.backup.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Codecs available to the compression stage. Every codec other than {@link #NONE} has a {@link BlockCompressor}
+ * that compresses blocks independently into output whose concatenation decodes as one stream, which is what lets
+ * {@link ParallelCompressingInputStream} spread a single file across cores.
+ */
+public enum CompressionCodec {
+
+    /**
+     * Objects stored as they are; nothing is compressed with it.
+     */
+    NONE(null) {
+        @Override
+        public InputStream decompress(final InputStream inputStream) {
+            return inputStream;
+        }
+    },
+
+    /**
+     * Each block becomes a gzip member; RFC 1952 readers, including {@link GZIPInputStream}, read concatenated
+     * members as a single stream.
+     */
+    GZIP(CompressionCodec::gzipBlock) {
+        @Override
+        public InputStream decompress(final InputStream inputStream) throws IOException {
+            return new GZIPInputStream(inputStream, COMPRESS_BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * User metadata key recording the codec an object was stored with.
+     */
+    public static final String CODEC_METADATA_KEY = "backup-codec";
+
+    /**
+     * User metadata key recording the uncompressed size of an object.
+     */
+    public static final String ORIGINAL_SIZE_METADATA_KEY = "backup-original-size";
+
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int COMPRESS_BUFFER_SIZE = 64 * 1024;
+
+    private final BlockCompressor blockCompressor;
+
+    CompressionCodec(final BlockCompressor blockCompressor) {
+        this.blockCompressor = blockCompressor;
+    }
+
+    /**
+     * @return null for {@link #NONE}.
+     */
+    BlockCompressor getBlockCompressor() {
+        return blockCompressor;
+    }
+
+    public abstract InputStream decompress(InputStream inputStream) throws IOException;
+
+    private static byte[] gzipBlock(final byte[] block, final int length, final int level) throws IOException {
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 2));
+
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, COMPRESS_BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(block, 0, length);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    @FunctionalInterface
+    interface BlockCompressor {
+
+        byte[] compress(byte[] block, int length, int level) throws IOException;
+    }
+}
@@ -0,0 +1,105 @@
+package com.uiintl.backup.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into variable-size chunks whose boundaries depend on content rather than offset, so an
+ * insertion near the start of a file only changes the chunks around it.
+ * <p>
+ * Boundaries are found with a Gear rolling hash: a cut is made once at least {@code minSize} bytes have been
+ * read and the top bits of the hash are all zero, or unconditionally at {@code maxSize}.
+ */
+class ContentDefinedChunker {
+
+    /**
+     * Fixed seed so the same content always produces the same chunks, across runs and agents.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        final Random random = new Random(0x5EED_C0DEL);
+
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream inputStream;
+
+    private final int minSize;
+
+    private final int maxSize;
+
+    private final long mask;
+
+    private final byte[] buffer;
+
+    private int filled;
+
+    private int chunkLength;
+
+    private boolean endOfStream;
+
+    ContentDefinedChunker(final InputStream inputStream, final int averageSize) {
+        this.inputStream = inputStream;
+        this.minSize = Math.max(1, averageSize / 4);
+        this.maxSize = averageSize * 4;
+        this.buffer = new byte[maxSize];
+
+        final int bits = 31 - Integer.numberOfLeadingZeros(Math.max(2, averageSize - minSize));
+        this.mask = ((1L << bits) - 1) << (Long.SIZE - bits);
+    }
+
+    /**
+     * Advances to the next chunk, which then occupies {@code buffer()[0, length)}.
+     *
+     * @return the chunk length, or 0 once the stream is exhausted.
+     */
+    int next() throws IOException {
+
+        if (chunkLength > 0) {
+            System.arraycopy(buffer, chunkLength, buffer, 0, filled - chunkLength);
+            filled -= chunkLength;
+        }
+
+        while (!endOfStream && filled < maxSize) {
+            final int read = inputStream.read(buffer, filled, maxSize - filled);
+
+            if (read < 0) {
+                endOfStream = true;
+            } else {
+                filled += read;
+            }
+        }
+
+        chunkLength = this.findBoundary();
+
+        return chunkLength;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    private int findBoundary() {
+
+        if (filled <= minSize) {
+            return filled;
+        }
+
+        long hash = 0;
+
+        // only the last 64 bytes influence the Gear hash, so bytes well before minSize can be skipped.
+        for (int i = Math.max(0, minSize - Long.SIZE); i < filled; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+
+            if (i + 1 >= minSize && (hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+
+        return filled;
+    }
+}
@@ -0,0 +1,175 @@
+package com.uiintl.backup.agent;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The directories each scan found fully backed up, by the scan's bucket and backup path, kept in one file that
+ * is rewritten after every complete scan.
+ * <p>
+ * Entries are only good for the include/exclude rules they were made with, so the whole cache is dropped when
+ * the filter changes.
+ */
+class DirectoryCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryCache.class);
+
+    private static final int VERSION = 1;
+
+    private final Path cachePath;
+
+    private final String filterFingerprint;
+
+    /**
+     * By scope, then by directory path relative to the backup path.
+     */
+    private final Map<String, Map<String, DirectoryEntry>> scopes = new HashMap<>();
+
+    private boolean loaded;
+
+    DirectoryCache(final Path cachePath, final String filterFingerprint) {
+        this.cachePath = cachePath;
+        this.filterFingerprint = filterFingerprint;
+    }
+
+    static String scope(final String bucketName, final Path backupRoot) {
+        return bucketName + "/" + backupRoot.toAbsolutePath().normalize();
+    }
+
+    synchronized Map<String, DirectoryEntry> get(final String scope) {
+
+        if (!loaded) {
+            this.load();
+            loaded = true;
+        }
+
+        return scopes.getOrDefault(scope, Map.of());
+    }
+
+    /**
+     * Replaces the scope's directories with those of the scan that just completed, and saves the cache.
+     */
+    synchronized void put(final String scope, final Map<String, DirectoryEntry> directories) {
+
+        scopes.put(scope, directories);
+
+        final Path written = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(written)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(filterFingerprint);
+                out.writeInt(scopes.size());
+
+                for (Map.Entry<String, Map<String, DirectoryEntry>> scopeEntry : scopes.entrySet()) {
+                    out.writeUTF(scopeEntry.getKey());
+                    out.writeInt(scopeEntry.getValue().size());
+
+                    for (Map.Entry<String, DirectoryEntry> entry : scopeEntry.getValue().entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        entry.getValue().write(out);
+                    }
+                }
+            }
+
+            Files.move(written, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save directory cache {}, the next scan lists every directory again: {}", cachePath, e.getMessage());
+        }
+    }
+
+    private void load() {
+
+        if (!Files.exists(cachePath)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cachePath)))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(filterFingerprint)) {
+                LOGGER.info("Include/exclude rules have changed, discarding directory cache {}", cachePath);
+                return;
+            }
+
+            int directories = 0;
+
+            for (int scopeCount = in.readInt(); scopeCount > 0; scopeCount--) {
+                final String scope = in.readUTF();
+                final Map<String, DirectoryEntry> entries = new HashMap<>();
+
+                for (int entryCount = in.readInt(); entryCount > 0; entryCount--) {
+                    entries.put(in.readUTF(), DirectoryEntry.read(in));
+                }
+
+                scopes.put(scope, entries);
+                directories += entries.size();
+            }
+
+            LOGGER.info("Loaded {} unchanged directories from {}", directories, cachePath);
+
+        } catch (IOException e) {
+            LOGGER.warn("Unable to load directory cache {}, listing every directory: {}", cachePath, e.getMessage());
+            scopes.clear();
+        }
+    }
+
+    /**
+     * A directory as a scan left it: its modification time, its files, all backed up, and the subdirectories the
+     * filter let in.
+     */
+    @Getter
+    @AllArgsConstructor
+    static class DirectoryEntry {
+
+        private final long lastModified;
+
+        /**
+         * When a listing of the directory last found every file backed up.
+         */
+        private final long checkedAt;
+
+        private final int files;
+
+        private final List<String> directories;
+
+        private void write(final DataOutputStream out) throws IOException {
+
+            out.writeLong(lastModified);
+            out.writeLong(checkedAt);
+            out.writeInt(files);
+            out.writeInt(directories.size());
+
+            for (String directory : directories) {
+                out.writeUTF(directory);
+            }
+        }
+
+        private static DirectoryEntry read(final DataInputStream in) throws IOException {
+
+            final long lastModified = in.readLong();
+            final long checkedAt = in.readLong();
+            final int files = in.readInt();
+            final String[] directories = new String[in.readInt()];
+
+            for (int i = 0; i < directories.length; i++) {
+                directories[i] = in.readUTF();
+            }
+
+            return new DirectoryEntry(lastModified, checkedAt, files, List.of(directories));
+        }
+    }
+}
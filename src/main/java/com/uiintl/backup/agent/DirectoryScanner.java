@@ -0,0 +1,402 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.uiintl.backup.config.BackupProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the files to back up under a backup path, listing directories in parallel.
+ * <p>
+ * Every directory is a task on a fork-join pool of {@code scanThreads}, which lists it, reads each entry's
+ * attributes once and forks a task per subdirectory, so idle threads steal whole subtrees. The attributes go to
+ * the filter and, with the file, to the sink, so nothing stats a file twice. Each scan has a pool of its own, as
+ * the sink blocks its threads, e.g. while the upload queue is full or a file is hashed, and a shared pool would
+ * let one backup's slow uploads hold up the scans of the others. Links are followed, and a link back
+ * to a directory being scanned is skipped.
+ * <p>
+ * With {@code directoryCache}, incremental scans remember the directories in which every file was already backed
+ * up. Such a directory is not listed again while its modification time stays the same, for up to
+ * {@code directoryCacheMaxAge}; only its subdirectories are checked, so a scan costs a stat per directory plus a
+ * listing per changed one. Adding, removing or renaming a file changes its directory's time, but rewriting one in
+ * place does not, which is why entries expire. A directory modified within {@link #RACY_INTERVAL} of the scan is
+ * not remembered, as a change in the same clock tick would not show.
+ */
+@Component
+public class DirectoryScanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryScanner.class);
+
+    /**
+     * Milliseconds; the coarsest modification time resolution of common file systems, FAT's.
+     */
+    static final long RACY_INTERVAL = 2000;
+
+    private final BackupFilter backupFilter;
+
+    private final boolean skipUnchangedDirectories;
+
+    private final long directoryCacheMaxAge;
+
+    private final DirectoryCache directoryCache;
+
+    private final int scanThreads;
+
+    private final Set<ForkJoinPool> scanPools = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public DirectoryScanner(final BackupProperties backupProperties, final BackupFilter backupFilter) {
+
+        this.backupFilter = backupFilter;
+        this.skipUnchangedDirectories = backupProperties.isDirectoryCache() && backupProperties.isIncremental();
+        this.directoryCacheMaxAge = backupProperties.getDirectoryCacheMaxAge();
+        this.directoryCache = new DirectoryCache(Paths.get(backupProperties.getDirectoryCachePath()), backupFilter.getFingerprint());
+
+        this.scanThreads = backupProperties.getScanThreads() > 0 ? backupProperties.getScanThreads() : Runtime.getRuntime().availableProcessors();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scanPools.forEach(ForkJoinPool::shutdownNow);
+    }
+
+    /**
+     * Hands every included file under the root, or the root itself if it is a file, to the sink, from the scan
+     * threads and in no particular order.
+     *
+     * @throws CancellationException if the calling thread was interrupted, or the sink stopped the scan.
+     */
+    void scan(final Path backupRoot, final String bucketName, final FileSink fileSink) throws IOException {
+        this.scan(backupRoot, bucketName, fileSink, skipUnchangedDirectories);
+    }
+
+    /**
+     * @param skipUnchanged whether directories the cache knows as unchanged are skipped; a scan that does not
+     *                      skip them lists every directory, and leaves the cache as it was.
+     */
+    void scan(final Path backupRoot, final String bucketName, final FileSink fileSink, final boolean skipUnchanged) throws IOException {
+
+        final BasicFileAttributes rootAttributes = Files.readAttributes(backupRoot, BasicFileAttributes.class);
+
+        if (!rootAttributes.isDirectory()) {
+            if (backupFilter.isIncluded(relativePath(backupRoot, backupRoot), rootAttributes)) {
+                fileSink.accept(new PutObjectRequest(bucketName, fileKey(backupRoot, backupRoot), backupRoot.toFile()), rootAttributes);
+            }
+
+            return;
+        }
+
+        final Scan scan = new Scan(backupRoot, bucketName, fileSink, skipUnchanged);
+        final ForkJoinPool scanPool = this.newScanPool();
+
+        try {
+            final ForkJoinTask<Void> task = scanPool.submit(new DirectoryTask(scan, backupRoot, rootAttributes, null));
+            task.get();
+
+        } catch (InterruptedException e) {
+            scan.cancelled = true;
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while scanning " + backupRoot);
+
+        } catch (CancellationException e) {
+            scan.cancelled = true;
+            throw e;
+
+        } catch (ExecutionException e) {
+            scan.cancelled = true;
+            throw unwrap(e.getCause());
+
+        } finally {
+            scanPools.remove(scanPool);
+            scanPool.shutdownNow();
+        }
+
+        LOGGER.debug("Excluded {} files and {} directories, skipped {} unchanged directories under {}",
+                scan.excludedFiles, scan.excludedDirectories, scan.unchangedDirectories, backupRoot);
+
+        if (scan.skipUnchanged) {
+            directoryCache.put(scan.scope, scan.directories);
+        }
+    }
+
+    private ForkJoinPool newScanPool() {
+
+        final ForkJoinPool scanPool = new ForkJoinPool(scanThreads, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("backup-scan-worker-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        scanPools.add(scanPool);
+
+        return scanPool;
+    }
+
+    /**
+     * Tasks only fail with runtime exceptions, such as the sink's cancellation, which are passed on as they are.
+     */
+    private static RuntimeException unwrap(final Throwable failure) {
+
+        if (failure instanceof RuntimeException) {
+            return (RuntimeException) failure;
+        }
+
+        return new IllegalStateException(failure.getMessage(), failure);
+    }
+
+    /**
+     * A backup path that is a single file is relative to its own directory.
+     */
+    static Path relativePath(final Path backupRoot, final Path file) {
+        return file.equals(backupRoot) ? file.getFileName() : backupRoot.relativize(file);
+    }
+
+    static String fileKey(final Path backupRoot, final Path file) {
+
+        final String trimmedFileKey = backupRoot.relativize(file).toString();
+
+        return StringUtils.isNotBlank(trimmedFileKey) ? trimmedFileKey : file.getFileName().toString();
+    }
+
+    /**
+     * Takes files from the scan threads, so it has to be thread safe.
+     */
+    interface FileSink {
+
+        /**
+         * @param attributes as read by the scan.
+         * @return whether the file is to be uploaded, rather than already backed up.
+         */
+        boolean accept(PutObjectRequest putObjectRequest, BasicFileAttributes attributes);
+
+        /**
+         * The files of a directory skipped as unchanged, which are not handed over.
+         */
+        void skipped(int files);
+    }
+
+    /**
+     * One scan's state, shared by its tasks.
+     */
+    private class Scan {
+
+        private final Path backupRoot;
+
+        private final String bucketName;
+
+        private final FileSink fileSink;
+
+        private final boolean skipUnchanged;
+
+        private final String scope;
+
+        private final Map<String, DirectoryCache.DirectoryEntry> previousDirectories;
+
+        /**
+         * The directories this scan found, or kept, unchanged.
+         */
+        private final Map<String, DirectoryCache.DirectoryEntry> directories = new ConcurrentHashMap<>();
+
+        private final long startTime = System.currentTimeMillis();
+
+        private final AtomicInteger excludedFiles = new AtomicInteger();
+
+        private final AtomicInteger excludedDirectories = new AtomicInteger();
+
+        private final AtomicInteger unchangedDirectories = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        Scan(final Path backupRoot, final String bucketName, final FileSink fileSink, final boolean skipUnchanged) {
+            this.backupRoot = backupRoot;
+            this.bucketName = bucketName;
+            this.fileSink = fileSink;
+            this.skipUnchanged = skipUnchanged;
+            this.scope = DirectoryCache.scope(bucketName, backupRoot);
+            this.previousDirectories = skipUnchanged ? directoryCache.get(scope) : Map.of();
+        }
+    }
+
+    /**
+     * Scans one directory, then its subdirectories in parallel.
+     */
+    private class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Scan scan;
+
+        private final Path directory;
+
+        private final BasicFileAttributes attributes;
+
+        /**
+         * The directory this one was found in, to tell a link cycle.
+         */
+        private final DirectoryTask parent;
+
+        DirectoryTask(final Scan scan, final Path directory, final BasicFileAttributes attributes, final DirectoryTask parent) {
+            this.scan = scan;
+            this.directory = directory;
+            this.attributes = attributes;
+            this.parent = parent;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (scan.cancelled) {
+                throw new CancellationException("Scan of " + scan.backupRoot + " stopped");
+            }
+
+            final String relativeDirectory = scan.backupRoot.relativize(directory).toString();
+            final DirectoryCache.DirectoryEntry unchanged = this.unchangedEntry(relativeDirectory);
+            final List<DirectoryTask> subdirectories;
+
+            if (unchanged != null) {
+                scan.directories.put(relativeDirectory, unchanged);
+                scan.unchangedDirectories.incrementAndGet();
+                scan.fileSink.skipped(unchanged.getFiles());
+                subdirectories = this.statSubdirectories(unchanged.getDirectories());
+
+            } else {
+                subdirectories = this.list(relativeDirectory);
+            }
+
+            invokeAll(subdirectories);
+        }
+
+        private DirectoryCache.DirectoryEntry unchangedEntry(final String relativeDirectory) {
+
+            final DirectoryCache.DirectoryEntry entry = scan.previousDirectories.get(relativeDirectory);
+
+            if (entry == null || entry.getLastModified() != attributes.lastModifiedTime().toMillis()
+                    || scan.startTime - entry.getCheckedAt() > directoryCacheMaxAge) {
+                return null;
+            }
+
+            return entry;
+        }
+
+        /**
+         * Lists the directory, handing its files to the sink, and remembers it if all of them were backed up already.
+         */
+        private List<DirectoryTask> list(final String relativeDirectory) {
+
+            final List<DirectoryTask> subdirectories = new ArrayList<>();
+            final List<String> subdirectoryNames = new ArrayList<>();
+            int files = 0;
+            boolean unchanged = true;
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    final BasicFileAttributes entryAttributes;
+
+                    try {
+                        entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        LOGGER.warn("Skipping {}: {}", entry, e.toString());
+                        unchanged = false;
+                        continue;
+                    }
+
+                    final Path relativeEntry = scan.backupRoot.relativize(entry);
+
+                    if (entryAttributes.isDirectory()) {
+                        if (!backupFilter.isIncludedDirectory(relativeEntry)) {
+                            scan.excludedDirectories.incrementAndGet();
+                        } else if (!this.isCycle(entry, entryAttributes)) {
+                            subdirectories.add(new DirectoryTask(scan, entry, entryAttributes, this));
+                            subdirectoryNames.add(entry.getFileName().toString());
+                        }
+
+                    } else if (!backupFilter.isIncluded(relativeEntry, entryAttributes)) {
+                        scan.excludedFiles.incrementAndGet();
+                        unchanged &= !backupFilter.mayBeIncludedLater(entryAttributes);
+
+                    } else {
+                        final PutObjectRequest putObjectRequest = new PutObjectRequest(scan.bucketName, fileKey(scan.backupRoot, entry), entry.toFile());
+                        unchanged &= !scan.fileSink.accept(putObjectRequest, entryAttributes);
+                        files++;
+                    }
+                }
+
+            } catch (IOException e) {
+                LOGGER.warn("Skipping {}: {}", directory, e.toString());
+                return subdirectories;
+            }
+
+            final long lastModified = attributes.lastModifiedTime().toMillis();
+
+            if (scan.skipUnchanged && unchanged && lastModified < scan.startTime - RACY_INTERVAL) {
+                scan.directories.put(relativeDirectory, new DirectoryCache.DirectoryEntry(lastModified, scan.startTime, files, subdirectoryNames));
+            }
+
+            return subdirectories;
+        }
+
+        /**
+         * The subdirectories of an unchanged directory are the ones it had, but each may have changed itself.
+         */
+        private List<DirectoryTask> statSubdirectories(final List<String> names) {
+
+            final List<DirectoryTask> subdirectories = new ArrayList<>(names.size());
+
+            for (String name : names) {
+                final Path subdirectory = directory.resolve(name);
+
+                try {
+                    final BasicFileAttributes subdirectoryAttributes = Files.readAttributes(subdirectory, BasicFileAttributes.class);
+
+                    if (subdirectoryAttributes.isDirectory() && !this.isCycle(subdirectory, subdirectoryAttributes)) {
+                        subdirectories.add(new DirectoryTask(scan, subdirectory, subdirectoryAttributes, this));
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Skipping {}: {}", subdirectory, e.toString());
+                }
+            }
+
+            return subdirectories;
+        }
+
+        /**
+         * Without file keys, as on Windows, cycles are not detected.
+         */
+        private boolean isCycle(final Path subdirectory, final BasicFileAttributes subdirectoryAttributes) {
+
+            final Object fileKey = subdirectoryAttributes.fileKey();
+
+            for (DirectoryTask ancestor = this; fileKey != null && ancestor != null; ancestor = ancestor.parent) {
+                if (fileKey.equals(ancestor.attributes.fileKey())) {
+                    LOGGER.warn("Skipping {}: it links back to {}", subdirectory, ancestor.directory);
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends each file to the run's destination and every {@code fanOutTargets} target at once, reading and hashing
+ * it only once.
+ * <p>
+ * The file is read in parts of {@code fanOutPartSize}, and every part is handed, as the same buffer, to a writer
+ * per target running on its own thread. Each writer has a queue of {@code fanOutBufferSize} bytes of parts, so a
+ * slow target lets the others run ahead by that much before reading waits for it. A target that fails drops the
+ * rest of the file and stops holding the others up; the file only counts as backed up once every target has it.
+ * <p>
+ * The file's checksums go on objects sent in a single part. Multipart objects are started before the file has been
+ * read to the end, so they go without; the manifest still gets the SHA-256.
+ */
+@Component
+public class FanOutUploader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FanOutUploader.class);
+
+    private final BackupTargets backupTargets;
+
+    private final List<BackupTarget> targets = new ArrayList<>();
+
+    private final int partSize;
+
+    private final int queuedParts;
+
+    private final ExecutorService writerExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("backup-fan-out-"));
+
+    @Autowired
+    public FanOutUploader(final BackupProperties backupProperties, final BackupTargets backupTargets) {
+        this.backupTargets = backupTargets;
+        this.partSize = Math.max(StreamingUploader.MIN_PART_SIZE, backupProperties.getFanOutPartSize());
+        this.queuedParts = (int) Math.max(1, Math.min(Integer.MAX_VALUE, backupProperties.getFanOutBufferSize() / partSize));
+
+        for (String target : backupProperties.getFanOutTargets()) {
+            if (target != null && !target.isBlank()) {
+                targets.add(backupTargets.resolve(target));
+            }
+        }
+
+        if (!targets.isEmpty()) {
+            LOGGER.info("Fanning out backups to {}", targets);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writerExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return !targets.isEmpty();
+    }
+
+    /**
+     * Uploads the request's file to its destination and to every target, and puts its checksums in the request's
+     * metadata.
+     *
+     * @throws IOException if the file could not be read or any target failed to store it.
+     */
+    public void upload(final PutObjectRequest putObjectRequest) throws IOException, InterruptedException {
+
+        final File file = putObjectRequest.getFile();
+        final String key = putObjectRequest.getKey();
+        final ObjectMetadata metadata = putObjectRequest.getMetadata() != null ? putObjectRequest.getMetadata() : new ObjectMetadata();
+
+        final List<Writer> writers = new ArrayList<>(targets.size() + 1);
+        writers.add(new Writer(backupTargets.resolve(putObjectRequest.getBucketName()).open(key, file, metadata)));
+
+        for (BackupTarget target : targets) {
+            writers.add(new Writer(target.open(key, file, metadata)));
+        }
+
+        final List<Future<?>> results = new ArrayList<>(writers.size());
+        writers.forEach(writer -> results.add(writerExecutor.submit(writer)));
+
+        try {
+            final long[] length = new long[1];
+            final FileChecksums checksums = this.read(file, length, writers, putObjectRequest.getGeneralProgressListener());
+
+            checksums.applyTo(metadata);
+
+            if (length[0] <= partSize) {
+                metadata.setContentMD5(checksums.getContentMd5());
+            }
+
+            putObjectRequest.setMetadata(metadata);
+            writers.forEach(writer -> writer.offer(Part.end(checksums)));
+
+        } catch (IOException | RuntimeException e) {
+            writers.forEach(writer -> writer.offer(Part.ABORT));
+            await(results);
+            throw e;
+
+        } catch (InterruptedException e) {
+            results.forEach(result -> result.cancel(true));
+            throw e;
+        }
+
+        final List<String> failures = await(results);
+
+        if (!failures.isEmpty()) {
+            throw new IOException("Unable to store " + key + " on " + failures.size() + " of " + writers.size() + " targets: " + failures);
+        }
+    }
+
+    /**
+     * Reads the file into new buffers, so writers can hold on to them, and hands every part to every writer. A file
+     * that grows while it is read is stored at the size it had when opened.
+     *
+     * @param length set to the number of bytes read.
+     */
+    private FileChecksums read(final File file, final long[] length, final List<Writer> writers, final ProgressListener progressListener)
+            throws IOException, InterruptedException {
+
+        final MessageDigest md5 = newDigest("MD5");
+        final MessageDigest sha256 = newDigest("SHA-256");
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long position = 0;
+
+            // an empty file goes as one empty part.
+            do {
+                final byte[] buffer = new byte[(int) Math.min(partSize, size - position)];
+                final int read = readFully(channel, buffer);
+
+                md5.update(buffer, 0, read);
+                sha256.update(buffer, 0, read);
+
+                final Part part = new Part(buffer, read, null);
+
+                for (Writer writer : writers) {
+                    writer.put(part);
+                }
+
+                position += read;
+
+                if (progressListener != null) {
+                    progressListener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, read));
+                }
+
+                if (read < buffer.length) {
+                    break;
+                }
+            } while (position < size);
+
+            length[0] = position;
+        }
+
+        return new FileChecksums(md5.digest(), sha256.digest());
+    }
+
+    private static int readFully(final FileChannel channel, final byte[] buffer) throws IOException {
+
+        final ByteBuffer target = ByteBuffer.wrap(buffer);
+
+        while (target.hasRemaining() && channel.read(target) >= 0) {
+            // keep reading until the buffer is full or the file ends.
+        }
+
+        return target.position();
+    }
+
+    /**
+     * @return the failure of each writer that failed.
+     */
+    private static List<String> await(final List<Future<?>> results) throws InterruptedException {
+
+        final List<String> failures = new ArrayList<>();
+
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                failures.add(e.getCause().getMessage());
+            }
+        }
+
+        return failures;
+    }
+
+    private static MessageDigest newDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A part of the file, or the end of it; the buffer is shared by every writer and never written to.
+     */
+    private static class Part {
+
+        static final Part ABORT = new Part(null, 0, null);
+
+        final byte[] buffer;
+
+        final int length;
+
+        /**
+         * Set on the end of the file only.
+         */
+        final FileChecksums checksums;
+
+        Part(final byte[] buffer, final int length, final FileChecksums checksums) {
+            this.buffer = buffer;
+            this.length = length;
+            this.checksums = checksums;
+        }
+
+        static Part end(final FileChecksums checksums) {
+            return new Part(null, 0, checksums);
+        }
+
+        boolean isData() {
+            return buffer != null;
+        }
+    }
+
+    /**
+     * Stores one file on one target from the parts queued for it, until the end of the file or an abort.
+     */
+    private class Writer implements Runnable {
+
+        private final BlockingQueue<Part> parts = new ArrayBlockingQueue<>(queuedParts);
+
+        private final BackupTarget.PartWriter partWriter;
+
+        private volatile boolean failed;
+
+        Writer(final BackupTarget.PartWriter partWriter) {
+            this.partWriter = partWriter;
+        }
+
+        /**
+         * Waits while the queue is full, unless the writer has failed and is only draining it.
+         */
+        void put(final Part part) throws InterruptedException {
+            if (!failed) {
+                parts.put(part);
+            }
+        }
+
+        /**
+         * Queues the end of the file, or an abort, which even a failed writer waits for.
+         */
+        void offer(final Part part) {
+            try {
+                parts.put(part);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                Part part;
+
+                while ((part = parts.take()).isData()) {
+                    partWriter.write(part.buffer, part.length);
+                }
+
+                if (part == Part.ABORT) {
+                    partWriter.abort();
+                } else {
+                    partWriter.finish(part.checksums);
+                }
+
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                partWriter.abort();
+                this.drain();
+
+                LOGGER.warn("Unable to store {}: {}", partWriter, e.getMessage());
+                throw new IllegalStateException(partWriter + ": " + e.getMessage(), e);
+
+            } catch (InterruptedException e) {
+                // the upload was cancelled, so nothing more is coming.
+                failed = true;
+                partWriter.abort();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Empties the queue until the reader is done with it, so a failed target does not hold the others up.
+         */
+        private void drain() {
+            try {
+                while (parts.take().isData()) {
+                    // dropped.
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.BinaryUtils;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * MD5 and SHA-256 of a file's content. Both are stored on the uploaded object as hex user metadata, so a backup
+ * can be verified with a HEAD request however the object was uploaded; the MD5 alone only matches the ETag of
+ * objects stored in a single part.
+ */
+@Data
+@AllArgsConstructor
+public class FileChecksums {
+
+    public static final String MD5_METADATA_KEY = "backup-md5";
+
+    public static final String SHA256_METADATA_KEY = "backup-sha256";
+
+    private byte[] md5;
+
+    private byte[] sha256;
+
+    public String getMd5Hex() {
+        return BinaryUtils.toHex(md5);
+    }
+
+    public String getSha256Hex() {
+        return BinaryUtils.toHex(sha256);
+    }
+
+    /**
+     * The Content-MD5 header value, letting S3 reject a single part upload that arrives corrupted.
+     */
+    public String getContentMd5() {
+        return Base64.encodeAsString(md5);
+    }
+
+    public void applyTo(final ObjectMetadata metadata) {
+        metadata.addUserMetadata(MD5_METADATA_KEY, this.getMd5Hex());
+        metadata.addUserMetadata(SHA256_METADATA_KEY, this.getSha256Hex());
+    }
+
+    /**
+     * @return the SHA-256 recorded in the metadata, or null if there is none.
+     */
+    public static byte[] sha256Of(final ObjectMetadata metadata) {
+
+        final String sha256 = metadata != null ? metadata.getUserMetaDataOf(SHA256_METADATA_KEY) : null;
+
+        return sha256 != null ? BinaryUtils.fromHex(sha256) : null;
+    }
+}
@@ -0,0 +1,72 @@
+package com.uiintl.backup.agent;
+
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes {@link FileChecksums} in a single read of the file. Large files are memory-mapped a window at a
+ * time and fed to both digests straight from the mapping; small files are read through a per-thread buffer,
+ * where setting up a mapping would cost more than the copy. Content already read into memory, to be uploaded
+ * from there, is hashed as it is. Callers hash on their own threads, so files are hashed in parallel with as
+ * many threads as upload them.
+ */
+@Component
+public class FileHasher {
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    public FileChecksums hash(final File file) throws IOException {
+
+        final MessageDigest md5 = newDigest("MD5");
+        final MessageDigest sha256 = newDigest("SHA-256");
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+
+            if (size > READ_BUFFER_SIZE) {
+                for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+                    final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, size - position));
+
+                    md5.update(window.duplicate());
+                    sha256.update(window);
+                }
+            } else {
+                final ByteBuffer buffer = readBuffers.get();
+                buffer.clear();
+
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    md5.update(buffer.duplicate());
+                    sha256.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+
+        return new FileChecksums(md5.digest(), sha256.digest());
+    }
+
+    public FileChecksums hash(final byte[] content) {
+        return new FileChecksums(newDigest("MD5").digest(content), newDigest("SHA-256").digest(content));
+    }
+
+    private static MessageDigest newDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
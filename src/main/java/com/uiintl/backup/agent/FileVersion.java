@@ -0,0 +1,52 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file's size and modification time at some point, e.g. when the scan found it. What an upload records has to
+ * be the version it started from: a file rewritten while it is uploading has moved on by the time it is done,
+ * and recording its new version would mark content that was never uploaded as backed up.
+ */
+@Getter
+@AllArgsConstructor
+class FileVersion {
+
+    /**
+     * Streams have no version to compare, so they are recorded as -1.
+     */
+    static final FileVersion NONE = new FileVersion(-1, -1);
+
+    /**
+     * User metadata with the modification time, in epoch milliseconds, of the file an object was uploaded from.
+     */
+    static final String LAST_MODIFIED_METADATA_KEY = "backup-last-modified";
+
+    private final long size;
+
+    private final long lastModified;
+
+    static FileVersion of(final BasicFileAttributes attributes) {
+        return new FileVersion(attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Adds the modification time to the request's metadata, so a restore can put it back; the object's own
+     * Last-Modified is when it was uploaded.
+     */
+    void applyTo(final PutObjectRequest putObjectRequest) {
+
+        final ObjectMetadata metadata = putObjectRequest.getMetadata() != null ? putObjectRequest.getMetadata() : new ObjectMetadata();
+        metadata.addUserMetadata(LAST_MODIFIED_METADATA_KEY, String.valueOf(lastModified));
+        putObjectRequest.setMetadata(metadata);
+    }
+
+    boolean matches(final File file) {
+        return size == file.length() && lastModified == file.lastModified();
+    }
+}
@@ -0,0 +1,261 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.util.BinaryUtils;
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Key, size, ETag and last-modified time of every object in a listing, packed into a handful of arrays rather
+ * than an object per key, so an inventory of millions of keys costs tens of bytes per key on top of the keys
+ * themselves.
+ * <p>
+ * Keys are stored back to back as UTF-8 in one byte array and found through an open addressing table of entry
+ * numbers. ETags are kept as the 16 bytes of the MD5 they are made of, plus the part count of a multipart
+ * upload; ETags that are not MD5 based are not kept. Entries are only ever added or updated in place.
+ */
+public class InventoryIndex {
+
+    private static final int MD5_LENGTH = 16;
+
+    private static final int NO_ETAG = -1;
+
+    private byte[] keys = new byte[16 * 1024];
+
+    private int keysLength;
+
+    private int[] keyOffsets = new int[256];
+
+    private long[] sizes = new long[256];
+
+    private long[] lastModified = new long[256];
+
+    private byte[] eTags = new byte[256 * MD5_LENGTH];
+
+    /**
+     * 0 for a single part ETag, the part count for a multipart one, or {@link #NO_ETAG}.
+     */
+    private int[] partCounts = new int[256];
+
+    /**
+     * Entry number plus one, 0 where empty; kept at most half full.
+     */
+    private int[] table = new int[512];
+
+    private int size;
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return null if the key is not in the inventory.
+     */
+    public synchronized InventoryEntry get(final String key) {
+
+        final int entry = this.find(key.getBytes(StandardCharsets.UTF_8));
+
+        return entry >= 0 ? this.toEntry(entry) : null;
+    }
+
+    /**
+     * @param eTag as S3 reports it, quoted or not; null or a non-MD5 ETag is stored as unknown.
+     */
+    public synchronized void put(final String key, final long size, final String eTag, final long lastModified) {
+        this.put(key, size, eTag, lastModified, true);
+    }
+
+    /**
+     * Adds the key unless it is already there, so a listing does not overwrite an upload recorded while it ran.
+     */
+    public synchronized void putIfAbsent(final String key, final long size, final String eTag, final long lastModified) {
+        this.put(key, size, eTag, lastModified, false);
+    }
+
+    public synchronized void forEach(final Consumer<InventoryEntry> action) {
+        for (int entry = 0; entry < size; entry++) {
+            action.accept(this.toEntry(entry));
+        }
+    }
+
+    private void put(final String key, final long objectSize, final String eTag, final long objectLastModified, final boolean replace) {
+
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int entry = this.find(keyBytes);
+
+        if (entry >= 0 && !replace) {
+            return;
+        }
+
+        if (entry < 0) {
+            entry = this.append(keyBytes);
+        }
+
+        sizes[entry] = objectSize;
+        lastModified[entry] = objectLastModified;
+        partCounts[entry] = parseETag(eTag, eTags, entry * MD5_LENGTH);
+    }
+
+    private int append(final byte[] keyBytes) {
+
+        if (size == keyOffsets.length) {
+            final int capacity = size * 2;
+            keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            lastModified = Arrays.copyOf(lastModified, capacity);
+            eTags = Arrays.copyOf(eTags, capacity * MD5_LENGTH);
+            partCounts = Arrays.copyOf(partCounts, capacity);
+        }
+
+        if (keysLength + keyBytes.length > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysLength + keyBytes.length));
+        }
+
+        final int entry = size++;
+        keyOffsets[entry] = keysLength;
+        System.arraycopy(keyBytes, 0, keys, keysLength, keyBytes.length);
+        keysLength += keyBytes.length;
+
+        if (size * 2 > table.length) {
+            this.rehash(table.length * 2);
+        } else {
+            table[this.slotOf(keyBytes, 0, keyBytes.length)] = entry + 1;
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return the entry number, or -1.
+     */
+    private int find(final byte[] keyBytes) {
+
+        final int slot = this.slotOf(keyBytes, 0, keyBytes.length);
+
+        return table[slot] - 1;
+    }
+
+    /**
+     * The slot holding the key, or the empty slot it would go in.
+     */
+    private int slotOf(final byte[] key, final int from, final int to) {
+
+        final int mask = table.length - 1;
+        int slot = hash(key, from, to) & mask;
+
+        while (table[slot] != 0) {
+            final int entry = table[slot] - 1;
+
+            if (Arrays.equals(keys, keyOffsets[entry], this.keyEnd(entry), key, from, to)) {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void rehash(final int capacity) {
+
+        table = new int[capacity];
+
+        for (int entry = 0; entry < size; entry++) {
+            table[this.slotOf(keys, keyOffsets[entry], this.keyEnd(entry))] = entry + 1;
+        }
+    }
+
+    private int keyEnd(final int entry) {
+        return entry + 1 < size ? keyOffsets[entry + 1] : keysLength;
+    }
+
+    private InventoryEntry toEntry(final int entry) {
+
+        final String key = new String(keys, keyOffsets[entry], this.keyEnd(entry) - keyOffsets[entry], StandardCharsets.UTF_8);
+        String eTag = null;
+
+        if (partCounts[entry] != NO_ETAG) {
+            eTag = BinaryUtils.toHex(Arrays.copyOfRange(eTags, entry * MD5_LENGTH, (entry + 1) * MD5_LENGTH));
+
+            if (partCounts[entry] > 0) {
+                eTag += "-" + partCounts[entry];
+            }
+        }
+
+        return new InventoryEntry(key, sizes[entry], eTag, lastModified[entry]);
+    }
+
+    private static int hash(final byte[] bytes, final int from, final int to) {
+
+        int hash = 1;
+
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        // spread the bits the mask would otherwise drop.
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Writes the MD5 of the ETag into the array at the offset.
+     *
+     * @return the part count, 0 for a single part ETag, or {@link #NO_ETAG} if it is not MD5 based.
+     */
+    private static int parseETag(final String eTag, final byte[] target, final int offset) {
+
+        if (eTag == null) {
+            return NO_ETAG;
+        }
+
+        final String value = eTag.startsWith("\"") && eTag.endsWith("\"") && eTag.length() > 1 ? eTag.substring(1, eTag.length() - 1) : eTag;
+        final int separator = value.indexOf('-');
+        final String md5 = separator >= 0 ? value.substring(0, separator) : value;
+
+        if (md5.length() != MD5_LENGTH * 2 || !md5.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            return NO_ETAG;
+        }
+
+        try {
+            final int parts = separator >= 0 ? Integer.parseInt(value.substring(separator + 1)) : 0;
+
+            if (parts < 0) {
+                return NO_ETAG;
+            }
+
+            System.arraycopy(BinaryUtils.fromHex(md5), 0, target, offset, MD5_LENGTH);
+            return parts;
+
+        } catch (NumberFormatException e) {
+            return NO_ETAG;
+        }
+    }
+
+    @Value
+    public static class InventoryEntry {
+
+        String key;
+
+        /**
+         * -1 if unknown.
+         */
+        long size;
+
+        /**
+         * Lower case hex, with a part count suffix for multipart uploads; null if unknown.
+         */
+        String eTag;
+
+        long lastModified;
+
+        /**
+         * Whether the ETag can be the MD5 of the object's content: single part ETags are, unless the object is
+         * encrypted with a KMS key.
+         */
+        public boolean hasContentMd5() {
+            return eTag != null && eTag.indexOf('-') < 0;
+        }
+    }
+}
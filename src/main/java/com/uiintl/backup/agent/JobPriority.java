@@ -0,0 +1,13 @@
+package com.uiintl.backup.agent;
+
+/**
+ * Order in which queued backup jobs are started, highest first.
+ */
+public enum JobPriority {
+    SCHEDULED,
+    AD_HOC,
+    /**
+     * Small batches of files seen changing, which can wait for the other jobs.
+     */
+    CONTINUOUS;
+}
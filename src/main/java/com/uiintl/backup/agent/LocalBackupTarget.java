@@ -0,0 +1,221 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+/**
+ * A directory on a local or mounted file system, holding each file at its key as a path below it.
+ * <p>
+ * Files are copied with {@link FileChannel#transferTo}, which the OS can do without the bytes passing through the
+ * JVM, into a temporary file next to the target that is renamed into place once complete, so the target only
+ * ever holds whole files. The copy gets the source's times and, where both file systems have them, its POSIX
+ * permissions. Nothing is synced to disk; like the bucket, the target is as durable as the storage under it.
+ */
+class LocalBackupTarget implements BackupTarget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalBackupTarget.class);
+
+    private static final String TEMPORARY_SUFFIX = ".part";
+
+    private final Path root;
+
+    LocalBackupTarget(final Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void store(final PutObjectRequest putObjectRequest) throws IOException {
+
+        final Path source = putObjectRequest.getFile().toPath();
+        final Path target = this.resolve(putObjectRequest.getKey());
+        final FileAttributes attributes = FileAttributes.of(source);
+        final Path temporary = createTemporary(target);
+        long copied = 0;
+
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+
+                final long size = in.size();
+
+                while (copied < size) {
+                    final long transferred = in.transferTo(copied, size - copied, out);
+
+                    if (transferred <= 0) {
+                        break;
+                    }
+
+                    copied += transferred;
+                }
+            }
+
+            attributes.applyTo(temporary);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temporary);
+            throw e;
+        }
+
+        if (putObjectRequest.getGeneralProgressListener() != null) {
+            putObjectRequest.getGeneralProgressListener().progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, copied));
+        }
+    }
+
+    @Override
+    public PartWriter open(final String key, final File file, final ObjectMetadata metadata) throws IOException {
+        return new LocalPartWriter(this.resolve(key), FileAttributes.of(file.toPath()));
+    }
+
+    /**
+     * @throws IOException if the key would put the file outside the directory.
+     */
+    private Path resolve(final String key) throws IOException {
+
+        final Path target = root.resolve(key).normalize();
+
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Key " + key + " is outside " + root);
+        }
+
+        return target;
+    }
+
+    private static Path createTemporary(final Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        return Files.createTempFile(target.getParent(), "." + target.getFileName(), TEMPORARY_SUFFIX);
+    }
+
+    private static void deleteQuietly(final Path temporary) {
+        try {
+            Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to remove {}: {}", temporary, e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    /**
+     * The source's attributes as they were when the copy started.
+     */
+    private static class FileAttributes {
+
+        private final BasicFileAttributes basic;
+
+        /**
+         * Null where the source has no POSIX permissions.
+         */
+        private final Set<PosixFilePermission> permissions;
+
+        private FileAttributes(final BasicFileAttributes basic, final Set<PosixFilePermission> permissions) {
+            this.basic = basic;
+            this.permissions = permissions;
+        }
+
+        static FileAttributes of(final Path source) throws IOException {
+
+            if (Files.getFileAttributeView(source, PosixFileAttributeView.class) != null) {
+                final PosixFileAttributes posix = Files.readAttributes(source, PosixFileAttributes.class);
+                return new FileAttributes(posix, posix.permissions());
+            }
+
+            return new FileAttributes(Files.readAttributes(source, BasicFileAttributes.class), null);
+        }
+
+        void applyTo(final Path target) throws IOException {
+
+            Files.getFileAttributeView(target, BasicFileAttributeView.class).setTimes(basic.lastModifiedTime(), basic.lastAccessTime(), basic.creationTime());
+
+            final PosixFileAttributeView posix = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+
+            if (permissions != null && posix != null) {
+                posix.setPermissions(permissions);
+            }
+        }
+    }
+
+    /**
+     * Writes the parts to a temporary file next to the target, renamed into place once complete.
+     */
+    private static class LocalPartWriter implements PartWriter {
+
+        private final Path target;
+
+        private final FileAttributes attributes;
+
+        private Path temporary;
+
+        private FileChannel channel;
+
+        LocalPartWriter(final Path target, final FileAttributes attributes) {
+            this.target = target;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int length) throws IOException {
+
+            if (channel == null) {
+                temporary = createTemporary(target);
+                channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+            }
+
+            final ByteBuffer part = ByteBuffer.wrap(buffer, 0, length);
+
+            while (part.hasRemaining()) {
+                channel.write(part);
+            }
+        }
+
+        @Override
+        public void finish(final FileChecksums checksums) throws IOException {
+
+            channel.close();
+            attributes.applyTo(temporary);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close {}: {}", temporary, e.getMessage());
+            }
+
+            if (temporary != null) {
+                deleteQuietly(temporary);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return target.toString();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.uiintl.backup.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the source in fixed-size blocks and compresses up to {@code maxBlocksInFlight} of them at once on the
+ * compression executor, serving the compressed blocks back in source order. Memory stays bounded by the
+ * number of blocks in flight, whatever the size of the source.
+ */
+class ParallelCompressingInputStream extends InputStream {
+
+    private final InputStream source;
+
+    private final CompressionCodec.BlockCompressor blockCompressor;
+
+    private final int level;
+
+    private final int blockSize;
+
+    private final int maxBlocksInFlight;
+
+    private final ExecutorService executor;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private boolean sourceExhausted;
+
+    private byte[] current = new byte[0];
+
+    private int position;
+
+    ParallelCompressingInputStream(final InputStream source,
+                                   final CompressionCodec codec,
+                                   final int level,
+                                   final int blockSize,
+                                   final int maxBlocksInFlight,
+                                   final ExecutorService executor) {
+
+        if (codec.getBlockCompressor() == null) {
+            throw new IllegalArgumentException(codec + " does not compress");
+        }
+
+        this.source = source;
+        this.blockCompressor = codec.getBlockCompressor();
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxBlocksInFlight = Math.max(1, maxBlocksInFlight);
+        this.executor = executor;
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        final byte[] single = new byte[1];
+        final int read = this.read(single, 0, 1);
+
+        return read < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+
+        if (len == 0) {
+            return 0;
+        }
+
+        while (position == current.length) {
+            if (!this.nextBlock()) {
+                return -1;
+            }
+        }
+
+        final int read = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, read);
+        position += read;
+
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pending.forEach(future -> future.cancel(true));
+        pending.clear();
+        source.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+
+        while (!sourceExhausted && pending.size() < maxBlocksInFlight) {
+            final byte[] block = new byte[blockSize];
+            final int length = source.readNBytes(block, 0, blockSize);
+
+            if (length < blockSize) {
+                sourceExhausted = true;
+            }
+
+            if (length > 0) {
+                pending.add(executor.submit(() -> blockCompressor.compress(block, length, level)));
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return false;
+        }
+
+        try {
+            current = pending.poll().get();
+            position = 0;
+            return true;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress block: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.uiintl.backup.config.BackupProperties;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * What a bucket holds under a prefix, listed once and kept in an {@link InventoryIndex} so that comparing local
+ * files with the bucket costs a lookup rather than a request per file.
+ * <p>
+ * A listing splits the prefix on "/" down to {@code remoteInventoryListDepth} levels and pages through each part
+ * with ListObjectsV2 on its own thread, up to {@code remoteInventoryListConcurrency} at a time. Chunks and packs
+ * are left out, and so is everything below them when they sit at a split level. The result is cached on disk and
+ * used for {@code remoteInventoryTtl}; uploads in between are added to it as they succeed, so only changes made
+ * by others wait for the next listing.
+ * <p>
+ * The cache file starts with the time of the listing, followed by length-prefixed entry records. Uploads are
+ * appended as further records and the latest record for a key wins.
+ */
+@Component
+public class RemoteInventory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemoteInventory.class);
+
+    private static final String DELIMITER = "/";
+
+    private static final String CACHE_FILE_SUFFIX = ".inv";
+
+    private final AmazonS3 s3;
+
+    private final BackupProperties backupProperties;
+
+    private final ExecutorService listExecutor;
+
+    private final Map<String, Inventory> inventories = new ConcurrentHashMap<>();
+
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RemoteInventory(final AmazonS3 s3, final BackupProperties backupProperties) {
+        this.s3 = s3;
+        this.backupProperties = backupProperties;
+        this.listExecutor = Executors.newFixedThreadPool(Math.max(1, backupProperties.getRemoteInventoryListConcurrency()),
+                new CustomizableThreadFactory("backup-inventory-"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+
+        listExecutor.shutdownNow();
+
+        for (Inventory inventory : inventories.values()) {
+            try {
+                inventory.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to close inventory cache of {}: {}", inventory.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The inventory of the prefix, from memory or the cache if it was listed within {@code remoteInventoryTtl},
+     * otherwise listed now.
+     */
+    public InventoryIndex get(final String bucketName, final String prefix) throws IOException {
+
+        final String name = bucketName + DELIMITER + prefix;
+
+        // one caller lists while the others wait for it; uploads keep recording without the lock.
+        synchronized (this.lockFor(name)) {
+            final Inventory inventory = inventories.get(name);
+
+            if (inventory != null && inventory.isFresh()) {
+                return inventory.getIndex();
+            }
+
+            final Inventory cached = inventory == null ? this.loadCache(name, bucketName, prefix) : null;
+
+            if (cached != null) {
+                inventories.put(name, cached);
+                return cached.getIndex();
+            }
+
+            return this.refresh(name, bucketName, prefix, inventory).getIndex();
+        }
+    }
+
+    /**
+     * Adds a successful upload to every inventory that covers the key.
+     *
+     * @param size -1 if the stored size is not known, e.g. when the object was compressed.
+     * @param eTag null if not known.
+     */
+    public void recordUpload(final String bucketName, final String key, final long size, final String eTag) {
+
+        for (Inventory inventory : inventories.values()) {
+            if (inventory.covers(bucketName, key)) {
+                inventory.record(key, size, eTag, System.currentTimeMillis());
+            }
+        }
+    }
+
+    private Object lockFor(final String name) {
+        return locks.computeIfAbsent(name, key -> new Object());
+    }
+
+    private Inventory refresh(final String name, final String bucketName, final String prefix, final Inventory stale) throws IOException {
+
+        final long startTime = System.currentTimeMillis();
+        final Inventory inventory = new Inventory(name, bucketName, prefix, startTime);
+
+        // uploads finishing during the listing go in straight away and take precedence over what it finds.
+        inventories.put(name, inventory);
+
+        try {
+            final int requests = this.list(bucketName, prefix, inventory.getIndex());
+            inventory.writeCache(this.cachePath(name));
+
+            LOGGER.info("Listed {} objects in {}{} with {} requests in {} ms", inventory.getIndex().size(), bucketName, DELIMITER + prefix,
+                    requests, System.currentTimeMillis() - startTime);
+
+            if (stale != null) {
+                stale.close();
+            }
+
+            return inventory;
+
+        } catch (IOException | RuntimeException e) {
+            inventories.remove(name, inventory);
+
+            if (stale != null) {
+                inventories.put(name, stale);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Lists the parts of the prefix in parallel, queueing the prefixes each split part hands back.
+     *
+     * @return the number of requests made.
+     */
+    private int list(final String bucketName, final String prefix, final InventoryIndex index) throws IOException {
+
+        final CompletionService<Listing> listings = new ExecutorCompletionService<>(listExecutor);
+        final int listDepth = Math.max(0, backupProperties.getRemoteInventoryListDepth());
+        final List<Future<Listing>> pending = new ArrayList<>();
+        int requests = 0;
+
+        pending.add(listings.submit(() -> this.listPart(bucketName, prefix, listDepth > 0, index)));
+
+        try {
+            while (!pending.isEmpty()) {
+                final Future<Listing> completed = listings.take();
+                pending.remove(completed);
+
+                final Listing listing = completed.get();
+                requests += listing.getRequests();
+
+                for (String childPrefix : listing.getChildPrefixes()) {
+                    if (!this.isInternal(childPrefix)) {
+                        final boolean split = depthBelow(prefix, childPrefix) < listDepth;
+                        pending.add(listings.submit(() -> this.listPart(bucketName, childPrefix, split, index)));
+                    }
+                }
+            }
+
+            return requests;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing " + bucketName + DELIMITER + prefix);
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AmazonClientException) {
+                throw (AmazonClientException) e.getCause();
+            }
+
+            throw new IOException("Unable to list " + bucketName + DELIMITER + prefix + ": " + e.getCause().getMessage(), e.getCause());
+
+        } finally {
+            pending.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * @param split whether to stop at the next "/" and hand back the prefixes below, rather than list them too.
+     */
+    private Listing listPart(final String bucketName, final String prefix, final boolean split, final InventoryIndex index) {
+
+        final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+        final List<String> childPrefixes = new ArrayList<>();
+        ListObjectsV2Result result;
+        int requests = 0;
+
+        if (split) {
+            request.setDelimiter(DELIMITER);
+        }
+
+        do {
+            result = s3.listObjectsV2(request);
+            requests++;
+
+            for (S3ObjectSummary object : result.getObjectSummaries()) {
+                if (!this.isInternal(object.getKey())) {
+                    index.putIfAbsent(object.getKey(), object.getSize(), object.getETag(), object.getLastModified().getTime());
+                }
+            }
+
+            childPrefixes.addAll(result.getCommonPrefixes());
+            request.setContinuationToken(result.getNextContinuationToken());
+
+        } while (result.isTruncated() && !Thread.currentThread().isInterrupted());
+
+        return new Listing(childPrefixes, requests);
+    }
+
+    private boolean isInternal(final String key) {
+        return key.startsWith(backupProperties.getChunkPrefix()) || key.startsWith(backupProperties.getPackPrefix());
+    }
+
+    private static int depthBelow(final String prefix, final String childPrefix) {
+        return (int) childPrefix.substring(prefix.length()).chars().filter(c -> c == DELIMITER.charAt(0)).count();
+    }
+
+    private Path cachePath(final String name) {
+        return Paths.get(backupProperties.getRemoteInventoryPath()).resolve(URLEncoder.encode(name, StandardCharsets.UTF_8) + CACHE_FILE_SUFFIX);
+    }
+
+    /**
+     * @return null if there is no cache younger than {@code remoteInventoryTtl}.
+     */
+    private Inventory loadCache(final String name, final String bucketName, final String prefix) throws IOException {
+
+        final Path cachePath = this.cachePath(name);
+
+        if (!Files.exists(cachePath)) {
+            return null;
+        }
+
+        try (FileChannel readChannel = FileChannel.open(cachePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+
+            if (buffer.remaining() < Long.BYTES) {
+                return null;
+            }
+
+            final Inventory inventory = new Inventory(name, bucketName, prefix, buffer.getLong());
+
+            if (!inventory.isFresh()) {
+                LOGGER.info("Inventory cache {} has expired", cachePath);
+                return null;
+            }
+
+            int validLength = buffer.position();
+            int records = 0;
+
+            while (buffer.remaining() >= Integer.BYTES) {
+                final int recordLength = buffer.getInt();
+
+                if (recordLength <= 0 || buffer.remaining() < recordLength) {
+                    break;
+                }
+
+                decode(buffer, inventory.getIndex());
+                validLength = buffer.position();
+                records++;
+            }
+
+            if (validLength < readChannel.size()) {
+                LOGGER.warn("Discarding {} bytes of incomplete inventory records in {}", readChannel.size() - validLength, cachePath);
+                readChannel.truncate(validLength);
+            }
+
+            LOGGER.info("Loaded {} inventory entries from {} records in {}", inventory.getIndex().size(), records, cachePath);
+            inventory.open(cachePath);
+
+            return inventory;
+        }
+    }
+
+    private static ByteBuffer encode(final InventoryIndex.InventoryEntry entry) {
+
+        final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        final byte[] eTag = entry.getETag() != null ? entry.getETag().getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        final int recordLength = Integer.BYTES + key.length + Long.BYTES * 2 + 1 + eTag.length;
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + recordLength);
+
+        buffer.putInt(recordLength)
+                .putInt(key.length).put(key)
+                .putLong(entry.getSize())
+                .putLong(entry.getLastModified())
+                .put((byte) eTag.length).put(eTag);
+
+        return buffer.flip();
+    }
+
+    private static void decode(final ByteBuffer buffer, final InventoryIndex index) {
+
+        final byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        final long size = buffer.getLong();
+        final long lastModified = buffer.getLong();
+        final byte[] eTag = new byte[buffer.get()];
+        buffer.get(eTag);
+
+        index.put(new String(key, StandardCharsets.UTF_8), size, eTag.length > 0 ? new String(eTag, StandardCharsets.US_ASCII) : null, lastModified);
+    }
+
+    /**
+     * One prefix's index and the cache file it is appended to.
+     */
+    private class Inventory {
+
+        private final String name;
+
+        private final String bucketName;
+
+        private final String prefix;
+
+        private final long listedAt;
+
+        private final InventoryIndex index = new InventoryIndex();
+
+        /**
+         * Null until the listing has been written out.
+         */
+        private FileChannel channel;
+
+        Inventory(final String name, final String bucketName, final String prefix, final long listedAt) {
+            this.name = name;
+            this.bucketName = bucketName;
+            this.prefix = prefix;
+            this.listedAt = listedAt;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        InventoryIndex getIndex() {
+            return index;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - listedAt < backupProperties.getRemoteInventoryTtl();
+        }
+
+        boolean covers(final String bucketName, final String key) {
+            return this.bucketName.equals(bucketName) && key.startsWith(prefix);
+        }
+
+        synchronized void record(final String key, final long size, final String eTag, final long lastModified) {
+
+            index.put(key, size, eTag, lastModified);
+
+            if (channel != null) {
+                try {
+                    write(channel, index.get(key));
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to record {} in inventory cache of {}: {}", key, name, e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Replaces the cache file with the whole index and keeps it open for uploads to be appended.
+         */
+        synchronized void writeCache(final Path cachePath) throws IOException {
+
+            Files.createDirectories(cachePath.getParent());
+            final Path written = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+
+            try (FileChannel out = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(listedAt).flip();
+
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+
+                final IOException[] failure = new IOException[1];
+
+                index.forEach(entry -> {
+                    try {
+                        if (failure[0] == null) {
+                            write(out, entry);
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+
+                out.force(true);
+            }
+
+            Files.move(written, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.open(cachePath);
+        }
+
+        synchronized void open(final Path cachePath) throws IOException {
+            channel = FileChannel.open(cachePath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        synchronized void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        private void write(final FileChannel out, final InventoryIndex.InventoryEntry entry) throws IOException {
+
+            final ByteBuffer buffer = encode(entry);
+
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    @Value
+    private static class Listing {
+
+        /**
+         * Prefixes one level down, when the part was split.
+         */
+        List<String> childPrefixes;
+
+        int requests;
+    }
+}
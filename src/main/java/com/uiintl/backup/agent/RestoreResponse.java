@@ -0,0 +1,54 @@
+package com.uiintl.backup.agent;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress and outcome of restoring a backup prefix to a local directory. Only the first failed keys are
+ * listed; the counts cover every file.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RestoreResponse {
+
+    private String id;
+
+    private Date triggeredDate;
+
+    private RestoreState restoreState;
+
+    private String prefix;
+
+    private String restorePath;
+
+    private AtomicInteger totalFiles;
+
+    private AtomicInteger restoredFiles;
+
+    private AtomicInteger failedFiles;
+
+    /**
+     * Bytes written to restored files.
+     */
+    private LongAdder restoredBytes;
+
+    private List<String> failedKeys;
+
+    private Date finishedDate;
+
+
+    public enum RestoreState {
+        STARTED,
+        SUCCESS,
+        NO_FILE,
+        FAIL,
+        PARTIAL_FAIL;
+    }
+}
@@ -0,0 +1,233 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local journal of a single backup run: where it was backing up to, the keys it has finished and the
+ * {@link PersistableUpload} state of multipart uploads it has started. A journal only outlives its run when the
+ * run was cut short, which is what {@link RunJournalStore} looks for on startup.
+ * <p>
+ * Like {@link BackupManifest} the journal is an append-only log of length-prefixed records. Each record is a
+ * type byte followed by NUL separated fields, and a torn record at the end is dropped when the journal is loaded.
+ */
+class RunJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunJournal.class);
+
+    private static final byte RUN = 'R';
+
+    private static final byte COMPLETED = 'C';
+
+    private static final byte PENDING_UPLOAD = 'P';
+
+    private static final String FIELD_SEPARATOR = "\0";
+
+    @Getter
+    private final String id;
+
+    @Getter
+    private final String backupPath;
+
+    @Getter
+    private final String bucketName;
+
+    private final Path path;
+
+    private final Map<String, FileVersion> completed = new HashMap<>();
+
+    private final Map<String, PendingUpload> pendingUploads = new HashMap<>();
+
+    private FileChannel channel;
+
+    private RunJournal(final Path path, final String id, final String backupPath, final String bucketName) {
+        this.path = path;
+        this.id = id;
+        this.backupPath = backupPath;
+        this.bucketName = bucketName;
+    }
+
+    static RunJournal create(final Path path, final String id, final String backupPath, final String bucketName) throws IOException {
+
+        final RunJournal journal = new RunJournal(path, id, backupPath, bucketName);
+        journal.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journal.append(RUN, backupPath, bucketName);
+
+        return journal;
+    }
+
+    /**
+     * @return the journal, or null if the file does not start with a run record.
+     */
+    static RunJournal load(final Path path, final String id) throws IOException {
+
+        RunJournal journal = null;
+
+        try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+            int validLength = 0;
+
+            while (buffer.remaining() >= Integer.BYTES) {
+                final int recordLength = buffer.getInt();
+
+                if (recordLength <= 0 || buffer.remaining() < recordLength) {
+                    break;
+                }
+
+                final byte type = buffer.get();
+                final byte[] payload = new byte[recordLength - 1];
+                buffer.get(payload);
+                final String[] fields = new String(payload, StandardCharsets.UTF_8).split(FIELD_SEPARATOR, -1);
+
+                if (type == RUN) {
+                    journal = new RunJournal(path, id, fields[0], fields[1]);
+
+                } else if (journal == null) {
+                    break;
+
+                } else if (type == COMPLETED) {
+                    journal.completed.put(fields[2], new FileVersion(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+                    journal.pendingUploads.remove(fields[2]);
+
+                } else if (type == PENDING_UPLOAD) {
+                    final PersistableUpload upload = PersistableTransfer.deserializeFrom(fields[3]);
+                    journal.pendingUploads.put(fields[2], new PendingUpload(new FileVersion(Long.parseLong(fields[0]), Long.parseLong(fields[1])), upload));
+                }
+
+                validLength = buffer.position();
+            }
+
+            if (validLength < readChannel.size()) {
+                LOGGER.warn("Discarding {} bytes of incomplete run journal records in {}", readChannel.size() - validLength, path);
+                readChannel.truncate(validLength);
+            }
+        }
+
+        if (journal != null) {
+            journal.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        return journal;
+    }
+
+    /**
+     * A file finished by an earlier attempt of this run only counts as done if it has not changed since.
+     */
+    synchronized boolean isCompleted(final PutObjectRequest putObjectRequest) {
+
+        final FileVersion version = completed.get(putObjectRequest.getKey());
+
+        return version != null && (putObjectRequest.getFile() == null || version.matches(putObjectRequest.getFile()));
+    }
+
+    synchronized int completedCount() {
+        return completed.size();
+    }
+
+    /**
+     * Removes and returns the multipart upload an earlier attempt started for this key, if any.
+     */
+    synchronized PendingUpload takePendingUpload(final PutObjectRequest putObjectRequest) {
+        return pendingUploads.remove(putObjectRequest.getKey());
+    }
+
+    /**
+     * @param version the file as it was queued, which is what was uploaded; the file may have changed since.
+     */
+    synchronized void recordCompleted(final PutObjectRequest putObjectRequest, final FileVersion version) {
+
+        completed.put(putObjectRequest.getKey(), version);
+
+        this.append(COMPLETED, String.valueOf(version.getSize()), String.valueOf(version.getLastModified()), putObjectRequest.getKey());
+    }
+
+    /**
+     * @param version the file as it was queued, so parts read from a file that has changed since are not resumed.
+     */
+    synchronized void recordPendingUpload(final PutObjectRequest putObjectRequest, final FileVersion version, final PersistableUpload upload) {
+        this.append(PENDING_UPLOAD, String.valueOf(version.getSize()), String.valueOf(version.getLastModified()), putObjectRequest.getKey(), upload.serialize());
+    }
+
+    /**
+     * Closes the journal but leaves it on disk so the run can be resumed.
+     */
+    synchronized void close() {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to close run journal {}: {}", path, e.getMessage());
+            }
+
+            channel = null;
+        }
+    }
+
+    /**
+     * Closes and removes the journal once its run has finished.
+     */
+    synchronized void delete() {
+
+        this.close();
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to remove run journal {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * The journal only saves work, so a failed write is logged rather than failing the upload it describes.
+     */
+    private void append(final byte type, final String... fields) {
+
+        if (channel == null) {
+            return;
+        }
+
+        final byte[] payload = String.join(FIELD_SEPARATOR, fields).getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 1 + payload.length).putInt(1 + payload.length).put(type).put(payload).flip();
+
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write run journal {}: {}", path, e.getMessage());
+        }
+    }
+
+    @AllArgsConstructor
+    static class PendingUpload {
+
+        private final FileVersion version;
+
+        @Getter
+        private final PersistableUpload upload;
+
+        /**
+         * Parts already in S3 are only worth keeping if the file is the one they were read from.
+         */
+        boolean matches(final File file) {
+            return file != null && version.matches(file);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one {@link RunJournal} per backup run under {@code runStatePath}. Journals of finished runs are removed,
+ * so any journal found on disk that no run in this process owns belongs to a run that was interrupted.
+ */
+@Component
+public class RunJournalStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunJournalStore.class);
+
+    private static final String JOURNAL_SUFFIX = ".run";
+
+    private final BackupProperties backupProperties;
+
+    private final Map<String, RunJournal> openJournals = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RunJournalStore(final BackupProperties backupProperties) {
+        this.backupProperties = backupProperties;
+    }
+
+    /**
+     * @return the new run's journal, or null if runs are not resumable or the journal could not be created.
+     */
+    RunJournal open(final String id, final String backupPath, final String bucketName) {
+
+        if (!backupProperties.isResumable()) {
+            return null;
+        }
+
+        try {
+            final Path statePath = Files.createDirectories(Paths.get(backupProperties.getRunStatePath()));
+            final RunJournal journal = RunJournal.create(statePath.resolve(id + JOURNAL_SUFFIX), id, backupPath, bucketName);
+            openJournals.put(id, journal);
+
+            return journal;
+
+        } catch (IOException e) {
+            LOGGER.warn("Run {} will not be resumable, unable to create its journal: {}", id, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Loads the journals of interrupted runs and takes ownership of them, so a run is only ever resumed once.
+     */
+    synchronized List<RunJournal> claimInterrupted() {
+
+        final List<RunJournal> journals = new ArrayList<>();
+        final Path statePath = Paths.get(backupProperties.getRunStatePath());
+
+        if (!backupProperties.isResumable() || !Files.isDirectory(statePath)) {
+            return journals;
+        }
+
+        try (DirectoryStream<Path> journalFiles = Files.newDirectoryStream(statePath, "*" + JOURNAL_SUFFIX)) {
+            for (Path journalFile : journalFiles) {
+                final String fileName = journalFile.getFileName().toString();
+                final String id = fileName.substring(0, fileName.length() - JOURNAL_SUFFIX.length());
+
+                if (openJournals.containsKey(id)) {
+                    continue;
+                }
+
+                try {
+                    final RunJournal journal = RunJournal.load(journalFile, id);
+
+                    if (journal == null) {
+                        LOGGER.warn("Removing run journal {} without a run record", journalFile);
+                        Files.delete(journalFile);
+                        continue;
+                    }
+
+                    openJournals.put(id, journal);
+                    journals.add(journal);
+
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Unable to load run journal {}: {}", journalFile, e.getMessage(), e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to list run journals in {}: {}", statePath, e.getMessage(), e);
+        }
+
+        return journals;
+    }
+
+    /**
+     * Gives up a claimed journal without removing it, so the run can be resumed later.
+     */
+    void release(final RunJournal journal) {
+        openJournals.remove(journal.getId());
+        journal.close();
+    }
+
+    /**
+     * Removes the journal of a run that has finished, whatever its outcome.
+     */
+    void finish(final RunJournal journal) {
+        openJournals.remove(journal.getId());
+        journal.delete();
+    }
+
+    @PreDestroy
+    public void close() {
+        openJournals.values().forEach(RunJournal::close);
+        openJournals.clear();
+    }
+}
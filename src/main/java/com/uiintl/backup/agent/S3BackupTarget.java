@@ -0,0 +1,184 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bucket reached through its own client, which may be for another region. Whole files go through a transfer
+ * manager of the target's own, created when first needed.
+ */
+class S3BackupTarget implements BackupTarget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3BackupTarget.class);
+
+    static final String SCHEME = "s3://";
+
+    static final String REGION_SEPARATOR = "@";
+
+    private final AmazonS3 client;
+
+    private final String bucketName;
+
+    /**
+     * Null for the main client's region.
+     */
+    private final String region;
+
+    private TransferManager transferManager;
+
+    S3BackupTarget(final AmazonS3 client, final String bucketName, final String region) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.region = region;
+    }
+
+    AmazonS3 getClient() {
+        return client;
+    }
+
+    String getBucketName() {
+        return bucketName;
+    }
+
+    @Override
+    public void store(final PutObjectRequest putObjectRequest) throws InterruptedException {
+
+        final PutObjectRequest targetRequest = new PutObjectRequest(bucketName, putObjectRequest.getKey(), putObjectRequest.getFile())
+                .withMetadata(putObjectRequest.getMetadata());
+        targetRequest.setGeneralProgressListener(putObjectRequest.getGeneralProgressListener());
+
+        this.transferManager().upload(targetRequest).waitForCompletion();
+    }
+
+    @Override
+    public PartWriter open(final String key, final File file, final ObjectMetadata metadata) {
+        return new S3PartWriter(key, metadata.clone());
+    }
+
+    /**
+     * Leaves the client running; {@link BackupTargets} owns it.
+     */
+    synchronized void shutdown() {
+        if (transferManager != null) {
+            transferManager.shutdownNow(false);
+        }
+    }
+
+    private synchronized TransferManager transferManager() {
+
+        if (transferManager == null) {
+            transferManager = TransferManagerBuilder.standard().withS3Client(client).build();
+        }
+
+        return transferManager;
+    }
+
+    @Override
+    public String toString() {
+        return SCHEME + bucketName + (region != null ? REGION_SEPARATOR + region : "");
+    }
+
+    /**
+     * Holds on to the first part, and puts a file of one part as a single object with its checksums. A second part
+     * starts a multipart upload.
+     */
+    private class S3PartWriter implements PartWriter {
+
+        private final String key;
+
+        private final ObjectMetadata metadata;
+
+        private final List<PartETag> partETags = new ArrayList<>();
+
+        private byte[] firstPart;
+
+        private int firstPartLength;
+
+        private String uploadId;
+
+        S3PartWriter(final String key, final ObjectMetadata metadata) {
+            this.key = key;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int length) {
+
+            if (firstPart == null) {
+                firstPart = buffer;
+                firstPartLength = length;
+                return;
+            }
+
+            if (uploadId == null) {
+                uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+                this.uploadPart(firstPart, firstPartLength);
+            }
+
+            this.uploadPart(buffer, length);
+        }
+
+        private void uploadPart(final byte[] buffer, final int length) {
+
+            final UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                    .withBucketName(bucketName)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partETags.size() + 1)
+                    .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                    .withPartSize(length);
+
+            partETags.add(client.uploadPart(uploadPartRequest).getPartETag());
+        }
+
+        @Override
+        public void finish(final FileChecksums checksums) {
+
+            if (uploadId != null) {
+                client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+                return;
+            }
+
+            checksums.applyTo(metadata);
+            metadata.setContentMD5(checksums.getContentMd5());
+            metadata.setContentLength(firstPartLength);
+
+            client.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(firstPart, 0, firstPartLength), metadata));
+        }
+
+        @Override
+        public void abort() {
+
+            if (uploadId == null) {
+                return;
+            }
+
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            } catch (AmazonClientException e) {
+                LOGGER.warn("Unable to abort multipart upload {} of {}: {}", uploadId, this, e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return S3BackupTarget.this + "/" + key;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.uiintl.backup.config.BackupProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Packs small files into rolling pack objects so thousands of tiny files cost a handful of PUTs.
+ * <p>
+ * A pack is a sequence of entries, each a header ({@code int} key length, UTF-8 key, {@code long} size,
+ * {@code long} mtime) followed by the file content, so packs can be read back without the index. Each run
+ * also writes an index object with one {@code packKey offset length lastModified key} line per file, where
+ * offset points at the content, so a single file can be restored with one ranged GET. Index objects are named
+ * by run start time; replaying them in key order yields the latest location of every packed file.
+ */
+@Component
+public class SmallFilePacker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SmallFilePacker.class);
+
+    public static final String PACKS_FOLDER = "packs/";
+
+    public static final String INDEX_FOLDER = "index/";
+
+    private final AmazonS3 s3;
+
+    private final BackupProperties backupProperties;
+
+    @Autowired
+    public SmallFilePacker(final AmazonS3 s3, final BackupProperties backupProperties) {
+        this.s3 = s3;
+        this.backupProperties = backupProperties;
+    }
+
+    public boolean isEnabled() {
+        return backupProperties.isPackSmallFiles();
+    }
+
+    /**
+     * @param progressListener told about the bytes of every pack and index stored.
+     */
+    public PackWriter newWriter(final String bucketName, final String runId, final ProgressListener progressListener) {
+        return new PackWriter(bucketName, runId, progressListener);
+    }
+
+    /**
+     * Replays the index objects under {@code packPrefix} in key order, i.e. the order their runs started in, so a
+     * later entry for a key replaces an earlier one.
+     *
+     * @param entries told about every entry, with the time its index object was stored.
+     */
+    static void readIndexes(final S3BackupTarget bucket, final String packPrefix, final BiConsumer<IndexEntry, Date> entries) throws IOException {
+
+        final ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucket.getBucketName())
+                .withPrefix(packPrefix + INDEX_FOLDER);
+        ListObjectsV2Result listing;
+
+        do {
+            listing = bucket.getClient().listObjectsV2(request);
+
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                try (S3Object index = bucket.getClient().getObject(bucket.getBucketName(), summary.getKey());
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(index.getObjectContent(), StandardCharsets.UTF_8))) {
+                    String line;
+
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isBlank()) {
+                            entries.accept(IndexEntry.parse(line), summary.getLastModified());
+                        }
+                    }
+                }
+            }
+
+            request.setContinuationToken(listing.getNextContinuationToken());
+
+        } while (listing.isTruncated());
+    }
+
+    /**
+     * Accumulates one run's small files into packs, which it hands back sealed for the caller to store. Adding is
+     * not thread safe, as it is done by the single thread draining the upload queue, but sealed packs may be
+     * stored from any thread.
+     */
+    public class PackWriter {
+
+        private final String bucketName;
+
+        private final ProgressListener progressListener;
+
+        private final String runPrefix;
+
+        private final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+
+        private final DataOutputStream packOutput = new DataOutputStream(pack);
+
+        private final List<PutObjectRequest> packedFiles = new ArrayList<>();
+
+        private final List<IndexEntry> pendingEntries = new ArrayList<>();
+
+        /**
+         * The files of the packs stored so far, guarded by the writer.
+         */
+        private final StringBuilder index = new StringBuilder();
+
+        private int packSequence;
+
+        PackWriter(final String bucketName, final String runId, final ProgressListener progressListener) {
+            this.bucketName = bucketName;
+            this.progressListener = progressListener;
+            this.runPrefix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-" + runId;
+        }
+
+        public boolean accepts(final PutObjectRequest putObjectRequest) {
+            return putObjectRequest.getFile() != null && putObjectRequest.getFile().length() < backupProperties.getPackMaxFileSize();
+        }
+
+        /**
+         * Appends the file to the current pack.
+         *
+         * @return the pack, sealed, once it reaches {@code packTargetSize}; null while it has room.
+         * @throws IOException if the file cannot be read, in which case it is not packed.
+         */
+        public Pack add(final PutObjectRequest putObjectRequest) throws IOException {
+
+            final File file = putObjectRequest.getFile();
+            final byte[] key = putObjectRequest.getKey().getBytes(StandardCharsets.UTF_8);
+            final byte[] content = Files.readAllBytes(file.toPath());
+
+            packOutput.writeInt(key.length);
+            packOutput.write(key);
+            packOutput.writeLong(content.length);
+            packOutput.writeLong(file.lastModified());
+
+            pendingEntries.add(new IndexEntry(putObjectRequest.getKey(), null, pack.size(), content.length, file.lastModified()));
+            packOutput.write(content);
+            packedFiles.add(putObjectRequest);
+
+            return pack.size() >= backupProperties.getPackTargetSize() ? this.seal() : null;
+        }
+
+        /**
+         * Seals the current pack, so the last partial one of a run can be stored.
+         *
+         * @return null if the pack holds no files.
+         */
+        public Pack seal() {
+
+            if (packedFiles.isEmpty()) {
+                return null;
+            }
+
+            final String packKey = backupProperties.getPackPrefix() + PACKS_FOLDER + runPrefix + "-" + (packSequence++) + ".pack";
+            pendingEntries.forEach(entry -> entry.setPackKey(packKey));
+
+            final Pack sealed = new Pack(packKey, pack.toByteArray(), new ArrayList<>(packedFiles), new ArrayList<>(pendingEntries));
+            pack.reset();
+            packedFiles.clear();
+            pendingEntries.clear();
+
+            return sealed;
+        }
+
+        /**
+         * Stores the run's index of the packs stored, once they all are.
+         */
+        public synchronized void close() {
+
+            if (index.length() > 0) {
+                final String indexKey = backupProperties.getPackPrefix() + INDEX_FOLDER + runPrefix + ".idx";
+
+                try {
+                    this.put(indexKey, index.toString().getBytes(StandardCharsets.UTF_8));
+                    LOGGER.info("Stored pack index {}", indexKey);
+
+                } catch (AmazonClientException e) {
+                    LOGGER.error("Unable to store pack index {}: {}", indexKey, e.getMessage(), e);
+                }
+            }
+        }
+
+        private synchronized void packStored(final Pack stored) {
+            for (IndexEntry entry : stored.entries) {
+                index.append(entry.toLine()).append('\n');
+            }
+        }
+
+        private void put(final String key, final byte[] bytes) {
+
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(bytes.length);
+
+            final PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, key, new ByteArrayInputStream(bytes), metadata);
+            putObjectRequest.setGeneralProgressListener(progressListener);
+
+            s3.putObject(putObjectRequest);
+        }
+
+        /**
+         * A sealed pack, held in memory until it is stored, so it can be sent again after a failed attempt.
+         */
+        public class Pack {
+
+            private final String key;
+
+            private final byte[] content;
+
+            private final List<PutObjectRequest> files;
+
+            private final List<IndexEntry> entries;
+
+            private Pack(final String key, final byte[] content, final List<PutObjectRequest> files, final List<IndexEntry> entries) {
+                this.key = key;
+                this.content = content;
+                this.files = files;
+                this.entries = entries;
+            }
+
+            public String getKey() {
+                return key;
+            }
+
+            public int getSize() {
+                return content.length;
+            }
+
+            public List<PutObjectRequest> getFiles() {
+                return files;
+            }
+
+            /**
+             * Puts the pack and adds its files to the run's index. Each attempt sends the content from the start.
+             */
+            public void store() {
+
+                PackWriter.this.put(key, content);
+                LOGGER.info("Stored pack {} with {} files ({} bytes)", key, files.size(), content.length);
+
+                PackWriter.this.packStored(this);
+            }
+        }
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class IndexEntry {
+
+        private String key;
+
+        private String packKey;
+
+        private long offset;
+
+        private long length;
+
+        private long lastModified;
+
+        String toLine() {
+            return packKey + ' ' + offset + ' ' + length + ' ' + lastModified + ' ' + key;
+        }
+
+        public static IndexEntry parse(final String line) {
+
+            final String[] fields = line.split(" ", 5);
+
+            return new IndexEntry(fields[4], fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Uploads a stream of unknown length without buffering the whole object.
+ * <p>
+ * The stream is cut into fixed-size parts that are read into reusable buffers and uploaded as a multipart
+ * upload. Each upload has up to {@code streamUploadConcurrency} buffers of its own, so its peak memory is
+ * {@code streamPartSize * streamUploadConcurrency} regardless of the object size, and reading blocks whenever all
+ * of them are still being uploaded. Uploads never wait for each other's buffers, so as many compressed files as
+ * {@code uploadConcurrency} allows are read and compressed at once; buffers are pooled between uploads only to
+ * spare allocating them again.
+ */
+@Component
+public class StreamingUploader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingUploader.class);
+
+    /**
+     * Smallest part size S3 accepts for every part but the last.
+     */
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3;
+
+    private final int partSize;
+
+    /**
+     * Parts of a single upload in flight at once.
+     */
+    private final int concurrency;
+
+    /**
+     * Idle buffers, enough for every upload of a run to have all of its own.
+     */
+    private final BlockingQueue<byte[]> bufferPool;
+
+    private final ExecutorService partExecutor;
+
+    @Autowired
+    public StreamingUploader(final AmazonS3 s3, final BackupProperties backupProperties) {
+        this.s3 = s3;
+        this.partSize = Math.max(MIN_PART_SIZE, backupProperties.getStreamPartSize());
+        this.concurrency = Math.max(1, backupProperties.getStreamUploadConcurrency());
+
+        final int uploads = Math.max(1, backupProperties.getUploadConcurrency());
+        this.bufferPool = new ArrayBlockingQueue<>(concurrency * uploads);
+        this.partExecutor = Executors.newFixedThreadPool(concurrency * uploads, new CustomizableThreadFactory("backup-stream-"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        partExecutor.shutdownNow();
+    }
+
+    /**
+     * Uploads the request's input stream and closes it. Streams shorter than one part go up as a single put.
+     */
+    public void upload(final PutObjectRequest putObjectRequest) throws IOException, InterruptedException {
+
+        final String bucketName = putObjectRequest.getBucketName();
+        final String key = putObjectRequest.getKey();
+        final ObjectMetadata metadata = putObjectRequest.getMetadata() != null ? putObjectRequest.getMetadata() : new ObjectMetadata();
+        final ProgressListener progressListener = putObjectRequest.getGeneralProgressListener();
+        final Semaphore buffers = new Semaphore(concurrency);
+
+        try (InputStream inputStream = putObjectRequest.getInputStream()) {
+            byte[] buffer = this.borrowBuffer(buffers);
+            int read = inputStream.readNBytes(buffer, 0, partSize);
+
+            if (read < partSize) {
+                try {
+                    metadata.setContentLength(read);
+
+                    final PutObjectRequest singlePut = new PutObjectRequest(bucketName, key, new ByteArrayInputStream(buffer, 0, read), metadata);
+                    singlePut.setGeneralProgressListener(progressListener);
+                    s3.putObject(singlePut);
+                } finally {
+                    this.returnBuffer(buffers, buffer);
+                }
+
+                return;
+            }
+
+            final String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+            final List<Future<PartETag>> parts = new ArrayList<>();
+
+            try {
+                int partNumber = 1;
+
+                while (read > 0) {
+                    parts.add(this.submitPart(bucketName, key, uploadId, partNumber++, buffer, read, buffers, progressListener));
+
+                    buffer = this.borrowBuffer(buffers);
+                    read = inputStream.readNBytes(buffer, 0, partSize);
+                }
+
+                this.returnBuffer(buffers, buffer);
+
+                final List<PartETag> partETags = new ArrayList<>(parts.size());
+
+                for (Future<PartETag> part : parts) {
+                    partETags.add(part.get());
+                }
+
+                s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+                LOGGER.info("Streamed {} in {} parts of up to {} bytes", key, partETags.size(), partSize);
+
+            } catch (ExecutionException e) {
+                this.abort(bucketName, key, uploadId, parts);
+                throw e.getCause() instanceof AmazonClientException ? (AmazonClientException) e.getCause() : new AmazonClientException(e.getCause().getMessage(), e.getCause());
+
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                this.abort(bucketName, key, uploadId, parts);
+                throw e;
+            }
+        }
+    }
+
+    private void abort(final String bucketName, final String key, final String uploadId, final List<Future<PartETag>> parts) {
+
+        // parts are left to finish rather than cancelled so that every borrowed buffer is given back.
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (ExecutionException e) {
+                LOGGER.debug("Part of {} failed: {}", key, e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (AmazonClientException e) {
+            LOGGER.warn("Unable to abort multipart upload {} of {}: {}", uploadId, key, e.getMessage());
+        }
+    }
+
+    private Future<PartETag> submitPart(final String bucketName, final String key, final String uploadId, final int partNumber,
+                                        final byte[] buffer, final int length, final Semaphore buffers, final ProgressListener progressListener) {
+
+        return partExecutor.submit(() -> {
+            try {
+                final UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                        .withPartSize(length);
+                uploadPartRequest.setGeneralProgressListener(progressListener);
+
+                return s3.uploadPart(uploadPartRequest).getPartETag();
+
+            } finally {
+                this.returnBuffer(buffers, buffer);
+            }
+        });
+    }
+
+    /**
+     * Waits until the upload has fewer than {@code streamUploadConcurrency} buffers, then takes an idle one or
+     * allocates it.
+     *
+     * @param buffers the upload's own allowance.
+     */
+    private byte[] borrowBuffer(final Semaphore buffers) throws InterruptedException {
+
+        buffers.acquire();
+
+        final byte[] buffer = bufferPool.poll();
+
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+    /**
+     * Keeps the buffer for the next upload, unless enough are idle already.
+     */
+    private void returnBuffer(final Semaphore buffers, final byte[] buffer) {
+        bufferPool.offer(buffer);
+        buffers.release();
+    }
+}
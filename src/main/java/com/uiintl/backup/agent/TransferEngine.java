@@ -0,0 +1,198 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived upload engine shared by every backup run, replacing the TransferManager that used to be built
+ * (and never shut down) per run.
+ * <p>
+ * The TransferManager reads its part size from its configuration when an upload starts, so adaptive part
+ * sizing keeps one TransferManager per part size tier. All of them share a single transfer thread pool,
+ * which this engine owns and shuts down.
+ */
+@Component
+public class TransferEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferEngine.class);
+
+    /**
+     * Same as the TransferManager default pool size.
+     */
+    private static final int DEFAULT_TRANSFER_THREADS = 10;
+
+    private static final int MAX_PARTS = 10_000;
+
+    private static final long MAX_PART_SIZE = 512L * 1024 * 1024;
+
+    /**
+     * Weight of the latest sample in the throughput moving average.
+     */
+    private static final double THROUGHPUT_SMOOTHING = 0.2;
+
+    private final AmazonS3 s3;
+
+    private final BackupProperties backupProperties;
+
+    private final int transferThreads;
+
+    private final ExecutorService transferExecutor;
+
+    private final Map<Long, TransferManager> transferManagers = new ConcurrentHashMap<>();
+
+    private volatile double bytesPerSecond;
+
+    @Autowired
+    public TransferEngine(final AmazonS3 s3, final BackupProperties backupProperties) {
+        this.s3 = s3;
+        this.backupProperties = backupProperties;
+        this.transferThreads = backupProperties.getTransferThreads() > 0
+                ? backupProperties.getTransferThreads()
+                : Math.max(DEFAULT_TRANSFER_THREADS, backupProperties.getUploadConcurrency());
+        this.transferExecutor = Executors.newFixedThreadPool(transferThreads, new CustomizableThreadFactory("backup-transfer-"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        transferManagers.values().forEach(transferManager -> transferManager.shutdownNow(false));
+        transferExecutor.shutdownNow();
+    }
+
+    public Upload upload(final PutObjectRequest putObjectRequest) {
+        return transferManagers.computeIfAbsent(this.partSizeFor(putObjectRequest), this::createTransferManager).upload(putObjectRequest);
+    }
+
+    /**
+     * @param progressListener also told when a multipart upload has started and can be persisted.
+     */
+    public Upload upload(final PutObjectRequest putObjectRequest, final S3ProgressListener progressListener) {
+        return transferManagers.computeIfAbsent(this.partSizeFor(putObjectRequest), this::createTransferManager).upload(putObjectRequest, progressListener);
+    }
+
+    /**
+     * Uploads a file, or a stream of known length, in a single request on the calling thread, rather than handing
+     * it to a transfer thread. Meant for threads that are cheap to block, i.e. virtual threads.
+     */
+    public void putObject(final PutObjectRequest putObjectRequest) {
+
+        final long startTime = System.nanoTime();
+        s3.putObject(putObjectRequest);
+
+        this.recordTransfer(putObjectRequest.getFile() != null ? putObjectRequest.getFile().length() : putObjectRequest.getMetadata().getContentLength(),
+                System.nanoTime() - startTime);
+    }
+
+    /**
+     * Continues a multipart upload from the parts already in S3. Parts are matched by number, so the upload has
+     * to carry on with the part size it was started with, whatever adaptive sizing would pick now.
+     */
+    public Upload resumeUpload(final PersistableUpload persistableUpload) {
+        final long partSize = persistedState(persistableUpload).path("partSize").asLong();
+        return transferManagers.computeIfAbsent(partSize, this::createTransferManager).resumeUpload(persistableUpload);
+    }
+
+    /**
+     * Aborts a persisted multipart upload that will not be resumed, so its parts stop being billed.
+     */
+    public void abortUpload(final PersistableUpload persistableUpload) {
+
+        final JsonNode state = persistedState(persistableUpload);
+        final String key = state.path("key").asText();
+
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(state.path("bucketName").asText(), key, state.path("multipartUploadId").asText()));
+            LOGGER.info("Aborted stale multipart upload of {}", key);
+
+        } catch (AmazonClientException e) {
+            LOGGER.warn("Unable to abort stale multipart upload of {}: {}", key, e.getMessage());
+        }
+    }
+
+    /**
+     * Feeds the throughput estimate used by adaptive part sizing.
+     */
+    public void recordTransfer(final long bytes, final long elapsedNanos) {
+
+        if (bytes <= 0 || elapsedNanos <= 0) {
+            return;
+        }
+
+        final double sample = bytes * 1_000_000_000.0 / elapsedNanos;
+        final double current = bytesPerSecond;
+
+        bytesPerSecond = current == 0 ? sample : current + THROUGHPUT_SMOOTHING * (sample - current);
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Without adaptive sizing every upload uses the configured minimum part size. With it, a part should take
+     * about {@code adaptiveTargetPartSeconds} at the measured throughput, but a file is still split at least
+     * once per transfer thread and never into more than S3's 10,000 parts. Sizes are rounded up to a power of
+     * two so only a handful of TransferManagers are ever created.
+     */
+    long partSizeFor(final PutObjectRequest putObjectRequest) {
+
+        final long minimumPartSize = Math.max(StreamingUploader.MIN_PART_SIZE, backupProperties.getMinimumPartSize());
+
+        if (!backupProperties.isAdaptivePartSize() || putObjectRequest.getFile() == null) {
+            return minimumPartSize;
+        }
+
+        final long fileSize = putObjectRequest.getFile().length();
+
+        if (fileSize <= backupProperties.getMultipartThreshold()) {
+            return minimumPartSize;
+        }
+
+        long partSize = bytesPerSecond > 0 ? (long) (bytesPerSecond * backupProperties.getAdaptiveTargetPartSeconds()) : minimumPartSize;
+        partSize = Math.min(partSize, fileSize / transferThreads);
+        partSize = Math.max(partSize, (fileSize + MAX_PARTS - 1) / MAX_PARTS);
+        partSize = Math.max(partSize, minimumPartSize);
+
+        return Math.min(MAX_PART_SIZE, Long.highestOneBit(partSize - 1) << 1);
+    }
+
+    /**
+     * PersistableUpload keeps its getters package-private, so its fields are read back from the serialized form.
+     */
+    private static JsonNode persistedState(final PersistableUpload persistableUpload) {
+        return Jackson.jsonNodeOf(persistableUpload.serialize());
+    }
+
+    private TransferManager createTransferManager(final long partSize) {
+
+        LOGGER.info("Creating transfer manager for {} byte parts with {} transfer threads", partSize, transferThreads);
+
+        return TransferManagerBuilder.standard()
+                .withS3Client(s3)
+                .withMultipartUploadThreshold(backupProperties.getMultipartThreshold())
+                .withMinimumUploadPartSize(partSize)
+                .withExecutorFactory(() -> transferExecutor)
+                .withShutDownThreadPools(false)
+                .build();
+    }
+}
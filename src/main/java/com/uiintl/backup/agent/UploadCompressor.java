@@ -0,0 +1,97 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.uiintl.backup.config.BackupProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Optional compression stage between reading a file and uploading it. The codec is chosen per file: files
+ * with an already-compressed extension, or below {@code compressionMinFileSize}, are uploaded as they are.
+ * Compressed objects carry their codec and original size in user metadata.
+ */
+@Component
+public class UploadCompressor {
+
+    private final BackupProperties backupProperties;
+
+    private final Set<String> skipExtensions;
+
+    private final ExecutorService compressionExecutor;
+
+    @Autowired
+    public UploadCompressor(final BackupProperties backupProperties) {
+        this.backupProperties = backupProperties;
+        this.skipExtensions = backupProperties.getCompressionSkipExtensions().stream()
+                .map(extension -> extension.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+
+        final int threads = backupProperties.getCompressionThreads() > 0 ? backupProperties.getCompressionThreads() : Runtime.getRuntime().availableProcessors();
+        this.compressionExecutor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("backup-compress-"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compressionExecutor.shutdownNow();
+    }
+
+    public CompressionCodec codecFor(final PutObjectRequest putObjectRequest) {
+
+        final File file = putObjectRequest.getFile();
+        final CompressionCodec codec = backupProperties.getCompressionCodec();
+
+        if (codec == CompressionCodec.NONE || file == null || file.length() < backupProperties.getCompressionMinFileSize()) {
+            return CompressionCodec.NONE;
+        }
+
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+
+        if (dot >= 0 && skipExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return CompressionCodec.NONE;
+        }
+
+        return codec;
+    }
+
+    /**
+     * @return a request of unknown length that streams the compressed file, for {@link StreamingUploader}.
+     */
+    public PutObjectRequest compress(final PutObjectRequest putObjectRequest, final CompressionCodec codec) throws IOException {
+
+        final File file = putObjectRequest.getFile();
+        final ObjectMetadata metadata = new ObjectMetadata();
+
+        if (putObjectRequest.getMetadata() != null) {
+            // checksums describe the original content, which is what a restore gives back.
+            putObjectRequest.getMetadata().getUserMetadata().forEach(metadata::addUserMetadata);
+        }
+
+        metadata.addUserMetadata(CompressionCodec.CODEC_METADATA_KEY, codec.name().toLowerCase(Locale.ROOT));
+        metadata.addUserMetadata(CompressionCodec.ORIGINAL_SIZE_METADATA_KEY, String.valueOf(file.length()));
+
+        final ParallelCompressingInputStream compressed = new ParallelCompressingInputStream(Files.newInputStream(file.toPath()),
+                codec,
+                backupProperties.getCompressionLevel(),
+                backupProperties.getCompressionBlockSize(),
+                backupProperties.getCompressionThreads() > 0 ? backupProperties.getCompressionThreads() * 2 : Runtime.getRuntime().availableProcessors() * 2,
+                compressionExecutor);
+
+        final PutObjectRequest compressedRequest = new PutObjectRequest(putObjectRequest.getBucketName(), putObjectRequest.getKey(), compressed, metadata);
+        compressedRequest.setGeneralProgressListener(putObjectRequest.getGeneralProgressListener());
+
+        return compressedRequest;
+    }
+}
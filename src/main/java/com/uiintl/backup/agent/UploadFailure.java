@@ -0,0 +1,98 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import java.io.FileNotFoundException;
+import java.nio.file.FileSystemException;
+import java.util.Set;
+
+/**
+ * Why an upload failed, as far as trying it again is concerned.
+ */
+enum UploadFailure {
+
+    /**
+     * S3 wants fewer requests, e.g. 503 SlowDown; worth retrying, with fewer uploads in flight.
+     */
+    THROTTLED,
+
+    /**
+     * A server error, timeout or dropped connection, which may well pass.
+     */
+    TRANSIENT,
+
+    /**
+     * Would fail the same way again, e.g. access denied, a missing bucket or a file that cannot be read.
+     */
+    PERMANENT;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private static final Set<String> THROTTLING_ERROR_CODES = Set.of(
+            "SlowDown", "Throttling", "ThrottlingException", "ThrottledException", "RequestThrottled", "RequestThrottledException",
+            "RequestLimitExceeded", "TooManyRequestsException", "BandwidthLimitExceeded", "ProvisionedThroughputExceededException");
+
+    /**
+     * Client errors that are worth another go: timeouts, and requests refused for a clock skew the SDK corrects.
+     */
+    private static final Set<String> TRANSIENT_ERROR_CODES = Set.of(
+            "InternalError", "ServiceUnavailable", "RequestTimeout", "RequestTimeoutException", "PriorRequestNotComplete",
+            "OperationAborted", "RequestTimeTooSkewed", "RequestExpired", "RequestInTheFuture");
+
+    /**
+     * Looks through the causes for the SDK exception behind the failure; a failure without one is the file's.
+     */
+    static UploadFailure classify(final Throwable failure) {
+
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                return classify((AmazonServiceException) cause);
+            }
+
+            // an aborted request was interrupted, and so was the upload.
+            if (cause instanceof AbortedException) {
+                return PERMANENT;
+            }
+
+            if (cause instanceof AmazonClientException) {
+                return ((AmazonClientException) cause).isRetryable() && !isFileError(cause) ? TRANSIENT : PERMANENT;
+            }
+        }
+
+        return PERMANENT;
+    }
+
+    private static UploadFailure classify(final AmazonServiceException e) {
+
+        final int statusCode = e.getStatusCode();
+        final String errorCode = e.getErrorCode();
+
+        if (statusCode == SERVICE_UNAVAILABLE || statusCode == TOO_MANY_REQUESTS || errorCode != null && THROTTLING_ERROR_CODES.contains(errorCode)) {
+            return THROTTLED;
+        }
+
+        if (statusCode >= 500 || errorCode != null && TRANSIENT_ERROR_CODES.contains(errorCode)) {
+            return TRANSIENT;
+        }
+
+        return PERMANENT;
+    }
+
+    /**
+     * The SDK reports a file it cannot read as a retryable client error.
+     */
+    private static boolean isFileError(final Throwable failure) {
+
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof FileNotFoundException || cause instanceof FileSystemException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,123 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded hand-off between the directory scan and the upload stage, so uploads can start while the scan is
+ * still running and only {@code capacity} pending requests are ever held in memory.
+ * <p>
+ * The scanning side calls {@link #submit(PutObjectRequest)} and then {@link #finish()}. The upload side
+ * iterates; {@link #hasNext()} blocks until the next request arrives or the scan has finished.
+ */
+class UploadQueue implements Iterator<PutObjectRequest> {
+
+    private static final PutObjectRequest END_OF_SCAN = new PutObjectRequest("", "", (File) null);
+
+    private static final long OFFER_TIMEOUT_MILLIS = 500;
+
+    private final BlockingQueue<PutObjectRequest> queue;
+
+    private final AtomicInteger depth;
+
+    private volatile boolean cancelled;
+
+    private PutObjectRequest next;
+
+    private boolean finished;
+
+    /**
+     * @param depth kept up to date with the number of requests waiting, for monitoring.
+     */
+    UploadQueue(final int capacity, final AtomicInteger depth) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.depth = depth;
+    }
+
+    /**
+     * Blocks while the queue is full.
+     *
+     * @throws CancellationException if the upload side has given up on this queue.
+     */
+    void submit(final PutObjectRequest putObjectRequest) throws InterruptedException {
+
+        // counted before it is offered so the upload side never takes it before it is counted.
+        depth.incrementAndGet();
+
+        while (!queue.offer(putObjectRequest, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (cancelled) {
+                throw new CancellationException("Upload queue has been cancelled");
+            }
+        }
+    }
+
+    void finish() throws InterruptedException {
+        while (!cancelled && !queue.offer(END_OF_SCAN, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            // keep waiting for the consumer to make room.
+        }
+    }
+
+    /**
+     * Releases a scan blocked in {@link #submit(PutObjectRequest)}, e.g. when the upload stage fails.
+     */
+    void cancel() {
+        cancelled = true;
+        queue.clear();
+        depth.set(0);
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        if (next != null) {
+            return true;
+        }
+
+        if (finished || cancelled) {
+            return false;
+        }
+
+        try {
+            final PutObjectRequest taken = queue.take();
+
+            if (taken == END_OF_SCAN) {
+                finished = true;
+                return false;
+            }
+
+            next = taken;
+            return true;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.cancel();
+            return false;
+        }
+    }
+
+    @Override
+    public PutObjectRequest next() {
+
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        final PutObjectRequest current = next;
+        next = null;
+        depth.decrementAndGet();
+
+        return current;
+    }
+}
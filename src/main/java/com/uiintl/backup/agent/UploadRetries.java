@@ -0,0 +1,92 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.uiintl.backup.config.BackupProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a failed upload is tried again, and when.
+ * <p>
+ * A file or pack is retried up to {@code uploadRetries} times if its failure may pass, see {@link UploadFailure}; a
+ * stream cannot be read twice, so it is not. Before attempt n the upload waits a random time up to
+ * {@code retryBaseDelay} doubled n - 2 times, capped at {@code retryMaxDelay}, so uploads throttled together do
+ * not all come back at once. The wait is a task on the retry scheduler rather than a sleeping upload thread, so
+ * the run's other uploads carry on meanwhile.
+ * <p>
+ * This comes on top of the SDK's own retries of each request, and so sees the failures those did not get past.
+ * Each run's {@link AdaptiveConcurrency} also stops starting uploads for a while once too many fail in a row.
+ */
+@Component
+public class UploadRetries {
+
+    private final int maxRetries;
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final boolean adaptiveConcurrency;
+
+    private final int circuitBreakerThreshold;
+
+    private final long circuitBreakerDelay;
+
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("backup-retry-"));
+
+    @Autowired
+    public UploadRetries(final BackupProperties backupProperties) {
+        this.maxRetries = Math.max(0, backupProperties.getUploadRetries());
+        this.baseDelay = Math.max(1, backupProperties.getRetryBaseDelay());
+        this.maxDelay = Math.max(baseDelay, backupProperties.getRetryMaxDelay());
+        this.adaptiveConcurrency = backupProperties.isAdaptiveConcurrency();
+        this.circuitBreakerThreshold = Math.max(0, backupProperties.getCircuitBreakerThreshold());
+        this.circuitBreakerDelay = Math.max(0, backupProperties.getCircuitBreakerDelay());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+    }
+
+    AdaptiveConcurrency newConcurrency(final int uploadConcurrency) {
+        return new AdaptiveConcurrency(uploadConcurrency, adaptiveConcurrency, circuitBreakerThreshold, circuitBreakerDelay, retryScheduler);
+    }
+
+    boolean shouldRetry(final PutObjectRequest putObjectRequest, final UploadFailure failure, final int attempts) {
+        return putObjectRequest.getFile() != null && this.shouldRetry(failure, attempts);
+    }
+
+    /**
+     * @param attempts the attempts made so far, including the one that failed.
+     */
+    boolean shouldRetry(final UploadFailure failure, final int attempts) {
+        return failure != UploadFailure.PERMANENT && attempts <= maxRetries;
+    }
+
+    /**
+     * Runs the retry on the scheduler thread once its wait is over, so it must not block.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException once the agent is shutting down.
+     */
+    void schedule(final Runnable retry, final int attempts) {
+        retryScheduler.schedule(retry, this.delayMillis(attempts), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * "Full jitter": anywhere from nothing to the exponential delay.
+     */
+    long delayMillis(final int attempts) {
+
+        final long ceiling = attempts > Long.numberOfLeadingZeros(baseDelay) ? maxDelay : Math.min(maxDelay, baseDelay << (attempts - 1));
+
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,70 @@
+package com.uiintl.backup.agent;
+
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Threads that files are read, hashed and uploaded on, which spend most of their time blocked on disk or S3.
+ * <p>
+ * With {@code virtualThreads} on a JVM that has them (Java 21 and later) every upload gets a virtual thread, so
+ * the number of uploads in flight is set by the agent's semaphores rather than by a pool size. The agent is built
+ * for Java 11, so the virtual thread executor is looked up at runtime, and older JVMs fall back to a platform
+ * thread pool.
+ */
+@Component
+public class UploadThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadThreads.class);
+
+    private static final MethodHandle NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadExecutor();
+
+    private final boolean virtual;
+
+    @Autowired
+    public UploadThreads(final BackupProperties backupProperties) {
+
+        this.virtual = backupProperties.isVirtualThreads() && NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+
+        if (backupProperties.isVirtualThreads() && !virtual) {
+            LOGGER.warn("Virtual threads are not available on Java {}, uploading on platform threads", Runtime.version().feature());
+        }
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param platformThreads the pool size when uploading on platform threads.
+     */
+    ExecutorService newExecutor(final String threadNamePrefix, final int platformThreads) {
+
+        if (virtual) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invokeExact();
+            } catch (Throwable e) {
+                LOGGER.warn("Unable to create a virtual thread executor, uploading on platform threads: {}", e.getMessage());
+            }
+        }
+
+        return Executors.newFixedThreadPool(platformThreads, new CustomizableThreadFactory(threadNamePrefix));
+    }
+
+    private static MethodHandle findVirtualThreadExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.uiintl.backup.agent;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of comparing local files with what is stored in S3. Only the first keys of each kind of problem are
+ * listed; the counts cover every file.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VerificationResponse {
+
+    private String id;
+
+    private Date triggeredDate;
+
+    private VerificationState verificationState;
+
+    private AtomicInteger checkedFiles;
+
+    private AtomicInteger matchedFiles;
+
+    private AtomicInteger mismatchedFiles;
+
+    private AtomicInteger missingFiles;
+
+    /**
+     * Files whose object carries nothing to compare against without downloading it, such as packed files and
+     * multipart uploads made before checksums were stored.
+     */
+    private AtomicInteger unverifiableFiles;
+
+    private List<String> mismatchedKeys;
+
+    private List<String> missingKeys;
+
+
+    public enum VerificationState {
+        STARTED,
+        VERIFIED,
+        MISMATCH,
+        FAIL;
+    }
+}
@@ -1,10 +1,6 @@
 package com.uiintl.backup.config;
 
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.auth.PropertiesFileCredentialsProvider;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -17,8 +13,6 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 @EnableScheduling
 public class AppConfig {
 
-    private static final int EXTENDED_SO_TIMEOUT = 25 * 60 * 1000;
-
     private final BackupProperties backupProperties;
 
     @Autowired
@@ -27,16 +21,7 @@ public class AppConfig {
     }
 
     @Bean
-    public AmazonS3 amazonS3() {
-
-        ClientConfiguration configuration = new ClientConfiguration();
-        configuration.setSocketTimeout(EXTENDED_SO_TIMEOUT);
-
-        final AmazonS3ClientBuilder clientBuilder = AmazonS3ClientBuilder.standard();
-        clientBuilder.setCredentials(new PropertiesFileCredentialsProvider(backupProperties.getCredentialFilePath()));
-        clientBuilder.setClientConfiguration(configuration);
-        clientBuilder.setRegion(Regions.AP_SOUTHEAST_2.getName());
-
-        return clientBuilder.build();
+    public AmazonS3 amazonS3(final S3ClientFactory s3ClientFactory) {
+        return s3ClientFactory.create(backupProperties.getRegion());
     }
 }
@@ -1,9 +1,15 @@
 package com.uiintl.backup.config;
 
+import com.amazonaws.regions.Regions;
+import com.uiintl.backup.agent.CompressionCodec;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by jlin on 2016/2/10.
  */
@@ -14,7 +20,324 @@ public class BackupProperties {
 
     private String credentialFilePath;
 
+    /**
+     * Region of {@code bucketName}.
+     */
+    private String region = Regions.AP_SOUTHEAST_2.getName();
+
+    /**
+     * The bucket to back up to. A destination other than a bucket name is stored to through its
+     * {@link com.uiintl.backup.agent.BackupTargets target}, e.g. "s3://bucket@region" or a directory such as
+     * "file:/mnt/nas/backup", with each file stored whole.
+     */
     private String bucketName;
 
     private String backupPath;
+
+    /**
+     * Maximum number of uploads in flight at once. 1 keeps the original one-file-at-a-time behaviour.
+     */
+    private int uploadConcurrency = 1;
+
+    /**
+     * Threads shared by all TransferManager uploads; 0 uses the larger of 10 and {@code uploadConcurrency}.
+     */
+    private int transferThreads;
+
+    private long multipartThreshold = 5 * 1024 * 1024;
+
+    private long minimumPartSize = 5 * 1024 * 1024;
+
+    /**
+     * Size multipart parts from the file size and the measured upload throughput instead of always using
+     * {@code minimumPartSize}.
+     */
+    private boolean adaptivePartSize;
+
+    private int adaptiveTargetPartSeconds = 30;
+
+    /**
+     * Skip files whose size, mtime and content hash match the local manifest from previous runs.
+     */
+    private boolean incremental;
+
+    private String manifestPath = "./backup-manifest.dat";
+
+    /**
+     * Number of discovered files that may wait for upload before the directory scan pauses.
+     */
+    private int scanQueueCapacity = 1000;
+
+    /**
+     * Part size used when a resource of unknown length is streamed as a multipart upload, at least 5 MB.
+     */
+    private int streamPartSize = 5 * 1024 * 1024;
+
+    /**
+     * Parts of a streamed resource uploaded at once. Each holds one {@code streamPartSize} buffer.
+     */
+    private int streamUploadConcurrency = 2;
+
+    /**
+     * Back up files of at least {@code chunkMinFileSize} bytes as deduplicated content-defined chunks.
+     */
+    private boolean chunkedBackup;
+
+    private long chunkMinFileSize = 64 * 1024 * 1024;
+
+    /**
+     * Target chunk size. Chunks range from a quarter to four times this size.
+     */
+    private int chunkAverageSize = 1024 * 1024;
+
+    private String chunkPrefix = ".chunks/";
+
+    private String chunkIndexPath = "./chunk-index.dat";
+
+    /**
+     * Codec for the optional compression stage. Files with one of {@code compressionSkipExtensions} are
+     * uploaded uncompressed.
+     */
+    private CompressionCodec compressionCodec = CompressionCodec.NONE;
+
+    private int compressionLevel = CompressionCodec.DEFAULT_LEVEL;
+
+    private long compressionMinFileSize = 4 * 1024;
+
+    /**
+     * Files are compressed in independent blocks of this size so one file can use several cores.
+     */
+    private int compressionBlockSize = 1024 * 1024;
+
+    /**
+     * Compression threads; 0 uses one per available processor.
+     */
+    private int compressionThreads;
+
+    private List<String> compressionSkipExtensions = new ArrayList<>(List.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+            "jpg", "jpeg", "png", "gif", "mp3", "mp4", "mov", "avi", "pdf", "docx", "xlsx", "pptx"));
+
+    /**
+     * Bundle files smaller than {@code packMaxFileSize} into pack objects of about {@code packTargetSize} bytes.
+     */
+    private boolean packSmallFiles;
+
+    private long packMaxFileSize = 64 * 1024;
+
+    private int packTargetSize = 16 * 1024 * 1024;
+
+    private String packPrefix = ".packs/";
+
+    /**
+     * Upload bytes per second across all uploads outside business hours; 0 for unlimited.
+     */
+    private long bandwidthLimit;
+
+    /**
+     * Business hours as {@code HH:mm}, may wrap past midnight. Left blank, the bandwidth limit applies all day.
+     */
+    private String businessHoursStart;
+
+    private String businessHoursEnd;
+
+    private List<DayOfWeek> businessDays = new ArrayList<>(List.of(
+            DayOfWeek.MONDAY, DayOfWeek.TUESDAY, DayOfWeek.WEDNESDAY, DayOfWeek.THURSDAY, DayOfWeek.FRIDAY));
+
+    /**
+     * Upload bytes per second during business hours; 0 pauses new uploads until business hours end.
+     */
+    private long businessHoursBandwidthLimit;
+
+    /**
+     * Journal each run under {@code runStatePath} so a run interrupted by a restart can pick up where it stopped.
+     */
+    private boolean resumable = true;
+
+    private String runStatePath = "./run-state";
+
+    /**
+     * Resume interrupted runs as soon as the agent starts rather than waiting for {@code POST /backups/resume}.
+     */
+    private boolean resumeOnStartup = true;
+
+    /**
+     * Hash files before upload and store their MD5 and SHA-256 on the object, for verification without downloads.
+     */
+    private boolean checksums = true;
+
+    /**
+     * Where the backup run history is kept, and how much of it.
+     */
+    private String historyPath = "./backup-history.dat";
+
+    private int historyRetentionDays = 180;
+
+    private int historyMaxEntries = 10_000;
+
+    /**
+     * Milliseconds between progress events sent to subscribers of a run, and before a subscription times out.
+     */
+    private long progressInterval = 1000;
+
+    private long progressStreamTimeout = 30 * 60 * 1000;
+
+    /**
+     * Backups run at the same time; further requests wait in a queue of up to {@code jobQueueCapacity} jobs.
+     */
+    private int maxConcurrentJobs = 2;
+
+    private int jobQueueCapacity = 16;
+
+    /**
+     * Read, hash and upload each file on its own virtual thread when the JVM has them (Java 21 and later).
+     */
+    private boolean virtualThreads;
+
+    /**
+     * Size of the files a run uploads at once, on top of the {@code uploadConcurrency} limit.
+     */
+    private long maxInFlightBytes = 256 * 1024 * 1024;
+
+    /**
+     * Directory a restore writes to when the request does not name one.
+     */
+    private String restorePath = "./restore";
+
+    /**
+     * Downloads a restore runs at once; objects larger than {@code restorePartSize} are fetched in ranges of that size.
+     */
+    private int restoreConcurrency = 8;
+
+    private long restorePartSize = 16 * 1024 * 1024;
+
+    /**
+     * Restores, and verifications, whose status can be looked up; beyond that the oldest is forgotten. Unlike
+     * backup runs, which the history keeps on disk, they are held in memory only and are gone after a restart.
+     */
+    private int keptStatuses = 10;
+
+    /**
+     * Let incremental backups skip files missing from the manifest when the bucket already holds them as an
+     * identical single part object, going by an inventory of the bucket listed at most {@code remoteInventoryTtl}
+     * milliseconds before.
+     */
+    private boolean remoteInventory;
+
+    private String remoteInventoryPath = "./remote-inventory";
+
+    private long remoteInventoryTtl = 12 * 60 * 60 * 1000;
+
+    /**
+     * Listing requests made at once. A listing is split into parts on "/" down to {@code remoteInventoryListDepth}
+     * levels below the prefix.
+     */
+    private int remoteInventoryListConcurrency = 16;
+
+    private int remoteInventoryListDepth = 2;
+
+    /**
+     * Back up files under the backup path as they change, on top of the scheduled backups. Changes are watched
+     * for unless {@code continuousWatch} is off, and an incremental backup of the whole path every
+     * {@code continuousRescanInterval} milliseconds catches up on changes the watch missed, e.g. on network shares.
+     */
+    private boolean continuousBackup;
+
+    private boolean continuousWatch = true;
+
+    private long continuousRescanInterval = 60 * 60 * 1000;
+
+    /**
+     * Milliseconds a changed file must stay unchanged before it is backed up, and the most files backed up in
+     * one batch.
+     */
+    private long continuousDebounce = 5000;
+
+    private int continuousBatchSize = 500;
+
+    /**
+     * Globs selecting the files to back up, and the files and directories to leave out, relative to the backup
+     * path. No includes means every file; see {@link com.uiintl.backup.agent.BackupFilter} for the pattern rules.
+     */
+    private List<String> includes = new ArrayList<>();
+
+    private List<String> excludes = new ArrayList<>(List.of(
+            ".DS_Store", "Thumbs.db", "desktop.ini", "*.tmp", "*.swp", "*~", "~$*", ".~lock.*#"));
+
+    /**
+     * Bytes, 0 for no limit.
+     */
+    private long maxFileSize;
+
+    /**
+     * Milliseconds since a file was last modified: younger files may still be written to, and older ones can be
+     * left to an archive. 0 for no limit.
+     */
+    private long minFileAge;
+
+    private long maxFileAge;
+
+    /**
+     * Further copies of every file, each read once and sent to the bucket and all of these at the same time:
+     * "s3://bucket" for another bucket in {@code region}, "s3://bucket@region" for one elsewhere, and a path or
+     * "file:" URI for a local or mounted directory. Files then go up whole, without compression, chunking or packing.
+     */
+    private List<String> fanOutTargets = new ArrayList<>();
+
+    /**
+     * Files are read in parts of this size, the part size of multipart uploads to the targets as well.
+     */
+    private int fanOutPartSize = 8 * 1024 * 1024;
+
+    /**
+     * Bytes of a file each target may fall behind the fastest before reading waits for it.
+     */
+    private long fanOutBufferSize = 16 * 1024 * 1024;
+
+    /**
+     * Times a file is tried again after failing for a reason that may pass, e.g. throttling, a server error or a
+     * dropped connection; 0 fails it straight away.
+     */
+    private int uploadRetries = 3;
+
+    /**
+     * Milliseconds: the most the first retry of a file waits, doubling with every retry up to {@code retryMaxDelay}.
+     * The actual wait is picked at random below that.
+     */
+    private long retryBaseDelay = 500;
+
+    private long retryMaxDelay = 30_000;
+
+    /**
+     * Whether a run halves the uploads it keeps in flight when S3 throttles it, and adds them back one at a time
+     * as uploads succeed, up to {@code uploadConcurrency}.
+     */
+    private boolean adaptiveConcurrency = true;
+
+    /**
+     * Uploads failing in a row, throttled or for a reason that may pass, after which a run stops starting uploads
+     * for {@code circuitBreakerDelay} milliseconds and then tries a single one; the run carries on once one
+     * succeeds. 0 never stops.
+     */
+    private int circuitBreakerThreshold = 10;
+
+    private long circuitBreakerDelay = 30_000;
+
+    /**
+     * Threads the scan lists directories and reads attributes on; 0 for one per core. Worth raising well above
+     * the core count for a network share, where every listing waits on a round trip.
+     */
+    private int scanThreads;
+
+    /**
+     * Lets incremental backups skip listing a directory whose modification time has not changed since a scan
+     * found every file in it backed up; its subdirectories are still checked. A file rewritten in place does not
+     * change its directory's time, so such a change is only picked up once the directory was last listed more
+     * than {@code directoryCacheMaxAge} milliseconds ago.
+     */
+    private boolean directoryCache;
+
+    private String directoryCachePath = "./directory-cache.dat";
+
+    private long directoryCacheMaxAge = 24 * 60 * 60 * 1000;
 }
@@ -0,0 +1,50 @@
+package com.uiintl.backup.config;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.PropertiesFileCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.uiintl.backup.agent.BackupMetrics;
+import com.uiintl.backup.agent.BandwidthThrottle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds S3 clients for a region, all with the agent's credentials, timeouts, bandwidth throttle and retry
+ * metrics, so a client for another region behaves like the main one.
+ */
+@Component
+public class S3ClientFactory {
+
+    private static final int EXTENDED_SO_TIMEOUT = 25 * 60 * 1000;
+
+    private final BackupProperties backupProperties;
+
+    private final BandwidthThrottle bandwidthThrottle;
+
+    private final BackupMetrics backupMetrics;
+
+    @Autowired
+    public S3ClientFactory(final BackupProperties backupProperties, final BandwidthThrottle bandwidthThrottle, final BackupMetrics backupMetrics) {
+        this.backupProperties = backupProperties;
+        this.bandwidthThrottle = bandwidthThrottle;
+        this.backupMetrics = backupMetrics;
+    }
+
+    public AmazonS3 create(final String region) {
+
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setSocketTimeout(EXTENDED_SO_TIMEOUT);
+        // enough connections for every concurrent upload and transfer thread, so the agent's limits are the ones that apply.
+        configuration.setMaxConnections(Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS,
+                backupProperties.getUploadConcurrency() + backupProperties.getTransferThreads()));
+
+        final AmazonS3ClientBuilder clientBuilder = AmazonS3ClientBuilder.standard();
+        clientBuilder.setCredentials(new PropertiesFileCredentialsProvider(backupProperties.getCredentialFilePath()));
+        clientBuilder.setClientConfiguration(configuration);
+        clientBuilder.setRegion(region);
+        clientBuilder.setRequestHandlers(bandwidthThrottle, backupMetrics.retryCounter());
+
+        return clientBuilder.build();
+    }
+}
@@ -2,14 +2,18 @@ package com.uiintl.backup.scheduler;
 
 import com.uiintl.backup.agent.AwsBackupAgent;
 import com.uiintl.backup.agent.BackupResponse;
+import com.uiintl.backup.agent.JobPriority;
 import com.uiintl.backup.config.BackupProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.util.Date;
+import java.util.List;
 
 /**
  * Created by jlin on 2016/2/10.
@@ -34,8 +38,22 @@ public class BackupScheduler {
 
         logger.info("Triggering backup at {}", new Date());
 
-        BackupResponse backupResponse = this.awsBackupAgent.uploadFiles(this.backupProperties.getBackupPath(), this.backupProperties.getBucketName());
+        BackupResponse backupResponse = this.awsBackupAgent.uploadFiles(this.backupProperties.getBackupPath(), this.backupProperties.getBucketName(), JobPriority.SCHEDULED);
 
         logger.info("{}", backupResponse);
     }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterruptedBackups() {
+
+        if (!this.backupProperties.isResumeOnStartup()) {
+            return;
+        }
+
+        List<BackupResponse> backupResponses = this.awsBackupAgent.resumeInterruptedRuns();
+
+        if (!backupResponses.isEmpty()) {
+            logger.info("Resumed {} interrupted backups: {}", backupResponses.size(), backupResponses);
+        }
+    }
 }
@@ -0,0 +1,371 @@
+package com.uiintl.backup.scheduler;
+
+import com.uiintl.backup.agent.AwsBackupAgent;
+import com.uiintl.backup.agent.BackupFilter;
+import com.uiintl.backup.agent.BackupResponse;
+import com.uiintl.backup.agent.JobPriority;
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous backup: files under the backup path are backed up soon after they change, in small batches, so the
+ * scheduled backup finds little left to do.
+ * <p>
+ * Every directory is registered with a {@link WatchService}. A changed file waits until it has been quiet for
+ * {@code continuousDebounce}, so a file being written is sent once it is complete, and repeated changes to a
+ * file collapse into one upload. Quiet files go out up to {@code continuousBatchSize} at a time, and the next
+ * batch only starts after the last has finished, collecting changes meanwhile. A file the batch leaves out for
+ * being younger than {@code minFileAge} waits here again until it is old enough.
+ * <p>
+ * Watching can miss changes: network shares do not report them, the OS may drop events, and it may run out of
+ * watches. An incremental backup of the whole path every {@code continuousRescanInterval} catches those up, and
+ * so does one started as soon as events are known to be lost. With {@code continuousWatch} off, the rescans are
+ * all there is.
+ */
+@Component
+public class BackupWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupWatcher.class);
+
+    private static final long MIN_FLUSH_INTERVAL = 100;
+
+    private static final long MAX_FLUSH_INTERVAL = 1000;
+
+    /**
+     * Beyond this many changed files, e.g. after a large copy, a rescan is cheaper than tracking each file.
+     */
+    private static final int MAX_PENDING_CHANGES = 100_000;
+
+    private final AwsBackupAgent awsBackupAgent;
+
+    private final BackupProperties backupProperties;
+
+    private final ResourceLoader resourceLoader;
+
+    private final BackupFilter backupFilter;
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("backup-watch-flush-"));
+
+    private final ExecutorService watchExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("backup-watch-"));
+
+    /**
+     * When each changed file last changed, in milliseconds, or for a file too young to back up, when it will be
+     * old enough less the debounce.
+     */
+    private final Map<Path, Long> changedFiles = new LinkedHashMap<>();
+
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    private Path backupRoot;
+
+    private WatchService watchService;
+
+    private volatile boolean rescanRequested;
+
+    /**
+     * Only touched by the flush thread.
+     */
+    private BackupResponse lastBatch;
+
+    @Autowired
+    public BackupWatcher(final AwsBackupAgent awsBackupAgent, final BackupProperties backupProperties, final ResourceLoader resourceLoader,
+                         final BackupFilter backupFilter) {
+        this.awsBackupAgent = awsBackupAgent;
+        this.backupProperties = backupProperties;
+        this.resourceLoader = resourceLoader;
+        this.backupFilter = backupFilter;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+
+        if (!backupProperties.isContinuousBackup()) {
+            return;
+        }
+
+        final Resource resource = resourceLoader.getResource(backupProperties.getBackupPath());
+
+        try {
+            backupRoot = resource.getFile().toPath().toAbsolutePath().normalize();
+        } catch (IOException e) {
+            LOGGER.warn("Continuous backup needs a directory, not {}: {}", backupProperties.getBackupPath(), e.getMessage());
+            return;
+        }
+
+        if (!Files.isDirectory(backupRoot)) {
+            LOGGER.warn("Continuous backup needs a directory, not {}", backupRoot);
+            return;
+        }
+
+        if (!backupProperties.isIncremental()) {
+            LOGGER.warn("Continuous backup without incremental backups uploads everything on every rescan");
+        }
+
+        if (backupProperties.isContinuousWatch()) {
+            this.startWatching();
+        }
+
+        final long flushInterval = Math.max(MIN_FLUSH_INTERVAL, Math.min(MAX_FLUSH_INTERVAL, backupProperties.getContinuousDebounce() / 4));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+        final long rescanInterval = backupProperties.getContinuousRescanInterval();
+
+        if (rescanInterval > 0) {
+            flushExecutor.scheduleWithFixedDelay(() -> this.requestRescan("rescan interval"), rescanInterval, rescanInterval, TimeUnit.MILLISECONDS);
+        }
+
+        LOGGER.info("Continuous backup of {} started, watching {} directories", backupRoot, watchedDirectories.size());
+    }
+
+    @PreDestroy
+    public void stop() {
+
+        flushExecutor.shutdownNow();
+        watchExecutor.shutdownNow();
+
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close watch service: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void startWatching() {
+        try {
+            watchService = backupRoot.getFileSystem().newWatchService();
+            this.register(backupRoot, false);
+            watchExecutor.execute(this::watch);
+
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("Unable to watch {}, relying on rescans: {}", backupRoot, e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the directory and everything below it, apart from excluded directories.
+     *
+     * @param created whether the directory is new, so the files already in it were never reported.
+     */
+    private void register(final Path directory, final boolean created) throws IOException {
+
+        Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+
+                if (!dir.equals(backupRoot) && !backupFilter.isIncludedDirectory(backupRoot.relativize(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                final WatchKey watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(watchKey, dir);
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+
+                if (created) {
+                    BackupWatcher.this.changed(file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+
+                LOGGER.warn("Not watching {}: {}", file, exc.toString());
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final WatchKey watchKey = watchService.take();
+                final Path directory = watchedDirectories.get(watchKey);
+
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                        this.requestRescan("file system events were lost");
+                        continue;
+                    }
+
+                    final Path path = directory.resolve((Path) event.context());
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        this.registerCreated(path);
+                    } else {
+                        this.changed(path);
+                    }
+                }
+
+                if (!watchKey.reset()) {
+                    watchedDirectories.remove(watchKey);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            LOGGER.debug("Stopped watching {}", backupRoot);
+        }
+    }
+
+    private void registerCreated(final Path directory) {
+        try {
+            this.register(directory, true);
+        } catch (IOException e) {
+            // e.g. out of watches; the rescan picks up the directory.
+            LOGGER.warn("Unable to watch {}: {}", directory, e.getMessage());
+            this.requestRescan("a directory could not be watched");
+        }
+    }
+
+    private void changed(final Path file) {
+        synchronized (changedFiles) {
+            if (changedFiles.size() >= MAX_PENDING_CHANGES && !changedFiles.containsKey(file)) {
+                changedFiles.clear();
+                this.requestRescan("too many files changed");
+                return;
+            }
+
+            changedFiles.put(file, System.currentTimeMillis());
+        }
+    }
+
+    private void requestRescan(final String reason) {
+        if (!rescanRequested) {
+            LOGGER.info("Rescanning {}: {}", backupRoot, reason);
+            rescanRequested = true;
+        }
+    }
+
+    /**
+     * Starts the next batch or rescan, unless the last batch is still going.
+     */
+    private void flush() {
+        try {
+            if (lastBatch != null && lastBatch.getBackupState().isActive()) {
+                return;
+            }
+
+            if (rescanRequested) {
+                this.rescan();
+                return;
+            }
+
+            final List<Path> batch = this.takeQuietFiles();
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                lastBatch = awsBackupAgent.uploadChangedFiles(backupProperties.getBackupPath(), backupProperties.getBucketName(), batch,
+                        this::tooYoung);
+                LOGGER.debug("Backing up {} changed files in run {}", batch.size(), lastBatch.getId());
+
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Unable to queue {} changed files yet: {}", batch.size(), e.getMessage());
+                this.putBack(batch);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the schedule, and with it continuous backup.
+            LOGGER.error("Unable to back up changed files: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The rescan joins a scheduled backup that is already queued or running.
+     */
+    private void rescan() {
+        try {
+            rescanRequested = false;
+            lastBatch = awsBackupAgent.uploadFiles(backupProperties.getBackupPath(), backupProperties.getBucketName(), JobPriority.CONTINUOUS);
+
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Unable to queue rescan yet: {}", e.getMessage());
+            rescanRequested = true;
+        }
+    }
+
+    private List<Path> takeQuietFiles() {
+
+        final long quietSince = System.currentTimeMillis() - backupProperties.getContinuousDebounce();
+        final int batchSize = Math.max(1, backupProperties.getContinuousBatchSize());
+        final List<Path> batch = new ArrayList<>();
+
+        synchronized (changedFiles) {
+            final Iterator<Map.Entry<Path, Long>> changes = changedFiles.entrySet().iterator();
+
+            while (changes.hasNext() && batch.size() < batchSize) {
+                final Map.Entry<Path, Long> change = changes.next();
+
+                if (change.getValue() <= quietSince) {
+                    batch.add(change.getKey());
+                    changes.remove();
+                }
+            }
+        }
+
+        return batch;
+    }
+
+    private void putBack(final List<Path> batch) {
+        synchronized (changedFiles) {
+            batch.forEach(file -> changedFiles.putIfAbsent(file, 0L));
+        }
+    }
+
+    /**
+     * Takes back a file a batch left out for being too young, to go in a batch once it is old enough. A change
+     * reported meanwhile keeps it waiting longer, never less.
+     */
+    private void tooYoung(final Path file) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            final long quietAt = backupFilter.oldEnoughAt(attributes) - backupProperties.getContinuousDebounce();
+
+            synchronized (changedFiles) {
+                changedFiles.merge(file, quietAt, Math::max);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Not waiting for {}: {}", file, e.toString());
+        }
+    }
+}
@@ -5,9 +5,16 @@ import com.uiintl.backup.agent.BackupResponse;
 import com.uiintl.backup.config.BackupProperties;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by jlin on 2016/2/10.
@@ -16,16 +23,27 @@ import java.util.List;
 @RequestMapping("/backups")
 public class BackupController {
 
+    private static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+    private static final int MAX_PAGE_SIZE = 500;
+
     private final AwsBackupAgent awsBackupAgent;
 
     private final BackupProperties backupProperties;
 
+    private final BackupProgressStream backupProgressStream;
+
     @Autowired
-    public BackupController(final AwsBackupAgent awsBackupAgent, final BackupProperties backupProperties) {
+    public BackupController(final AwsBackupAgent awsBackupAgent, final BackupProperties backupProperties, final BackupProgressStream backupProgressStream) {
         this.awsBackupAgent = awsBackupAgent;
         this.backupProperties = backupProperties;
+        this.backupProgressStream = backupProgressStream;
     }
 
+    /**
+     * Queues a backup, or joins the one already queued or running for the same path. Answers 503 when the job
+     * queue is full.
+     */
     @PostMapping
     public BackupResponse onDemandBackupFiles(@RequestParam(value = "path", required = false) String filePath) {
 
@@ -34,16 +52,48 @@ public class BackupController {
         return this.awsBackupAgent.uploadFiles(backupPath, backupProperties.getBucketName());
     }
 
+    @PostMapping("/resume")
+    public List<BackupResponse> resumeInterruptedBackups() {
+
+        return awsBackupAgent.resumeInterruptedRuns();
+    }
+
     @GetMapping("/{id}")
     public BackupResponse getBackupResponse(@PathVariable final String id) {
 
         return awsBackupAgent.getBackupResponse(id).orElseThrow();
     }
 
+    /**
+     * Server-sent progress events for a run, at most one per progress interval, until the run finishes.
+     */
+    @GetMapping(value = "/{id}/progress", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamBackupProgress(@PathVariable final String id) {
+
+        return backupProgressStream.subscribe(id);
+    }
+
+    /**
+     * Newest first, a page at a time, with the number of matching runs in the X-Total-Count header.
+     */
     @GetMapping
-    public List<BackupResponse> listHistoricalBackups() {
+    public ResponseEntity<List<BackupResponse>> listHistoricalBackups(@RequestParam(value = "state", required = false) final BackupResponse.BackupState state,
+                                                                      @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) final Date from,
+                                                                      @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) final Date to,
+                                                                      @RequestParam(value = "page", defaultValue = "0") final int page,
+                                                                      @RequestParam(value = "size", defaultValue = "10") final int size) {
+
+        final int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+
+        return ResponseEntity.ok()
+                .header(TOTAL_COUNT_HEADER, String.valueOf(awsBackupAgent.countBackupResponses(state, from, to)))
+                .body(awsBackupAgent.listBackupResponses(state, from, to, page, pageSize));
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<String> onBackupRejected(final RejectedExecutionException e) {
 
-        return awsBackupAgent.listBackupResponses();
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
     }
 
 }
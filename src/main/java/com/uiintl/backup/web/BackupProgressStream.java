@@ -0,0 +1,200 @@
+package com.uiintl.backup.web;
+
+import com.uiintl.backup.agent.AwsBackupAgent;
+import com.uiintl.backup.agent.BackupProgress;
+import com.uiintl.backup.agent.BackupResponse;
+import com.uiintl.backup.config.BackupProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the progress of backup runs to server-sent event subscribers.
+ * <p>
+ * Progress is sampled from the run's {@link BackupResponse} counters once every {@code progressInterval}, however
+ * many subscribers or uploads there are, and an event is only sent when the run has moved on since the last one.
+ * A single thread samples and sends, so subscribers never block the uploads. The stream ends with an event named
+ * {@code complete} once the run has finished.
+ */
+@Component
+public class BackupProgressStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupProgressStream.class);
+
+    private static final String PROGRESS_EVENT = "progress";
+
+    private static final String COMPLETE_EVENT = "complete";
+
+    /**
+     * Weight of the latest interval in the reported rate, which smooths out the gaps between part uploads.
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static final long MIN_INTERVAL = 100;
+
+    private final AwsBackupAgent awsBackupAgent;
+
+    private final BackupProperties backupProperties;
+
+    private final Map<String, RunStream> streams = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService publishExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("backup-progress-"));
+
+    @Autowired
+    public BackupProgressStream(final AwsBackupAgent awsBackupAgent, final BackupProperties backupProperties) {
+        this.awsBackupAgent = awsBackupAgent;
+        this.backupProperties = backupProperties;
+
+        final long interval = Math.max(MIN_INTERVAL, backupProperties.getProgressInterval());
+        publishExecutor.scheduleAtFixedRate(this::publish, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        publishExecutor.shutdownNow();
+        streams.values().forEach(RunStream::complete);
+        streams.clear();
+    }
+
+    /**
+     * Subscribes to a run, starting with its current progress. A run that has already finished sends its final
+     * progress and completes.
+     */
+    public SseEmitter subscribe(final String id) {
+
+        final BackupResponse backupResponse = awsBackupAgent.getBackupResponse(id).orElseThrow();
+        final SseEmitter emitter = new SseEmitter(backupProperties.getProgressStreamTimeout());
+
+        publishExecutor.execute(() -> streams.computeIfAbsent(id, key -> new RunStream(backupResponse)).add(emitter));
+
+        return emitter;
+    }
+
+    private void publish() {
+        try {
+            streams.values().forEach(RunStream::publish);
+            streams.values().removeIf(RunStream::isDone);
+
+        } catch (RuntimeException e) {
+            // an exception would cancel the schedule, and with it every stream.
+            LOGGER.error("Unable to publish backup progress: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Subscribers of one run. Only touched by the publishing thread, apart from subscribers going away.
+     */
+    private class RunStream {
+
+        private final BackupResponse backupResponse;
+
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+
+        private long sampleTime = System.nanoTime();
+
+        private long sampleBytes;
+
+        private double bytesPerSecond = -1;
+
+        private BackupProgress lastProgress;
+
+        private boolean finished;
+
+        RunStream(final BackupResponse backupResponse) {
+            this.backupResponse = backupResponse;
+            this.sampleBytes = backupResponse.getProcessedBytes().sum();
+        }
+
+        void add(final SseEmitter emitter) {
+
+            emitters.add(emitter);
+            emitter.onCompletion(() -> emitters.remove(emitter));
+            emitter.onTimeout(() -> emitters.remove(emitter));
+
+            final BackupProgress progress = lastProgress != null ? lastProgress : this.sample();
+            this.send(emitter, progress);
+
+            if (!progress.getBackupState().isActive()) {
+                finished = true;
+                emitter.complete();
+            }
+        }
+
+        void publish() {
+
+            final BackupProgress progress = this.sample();
+            finished = !progress.getBackupState().isActive();
+
+            if (progress.hasProgressedFrom(lastProgress)) {
+                lastProgress = progress;
+                emitters.forEach(emitter -> this.send(emitter, progress));
+            }
+
+            if (finished) {
+                this.complete();
+            }
+        }
+
+        boolean isDone() {
+            return finished || emitters.isEmpty();
+        }
+
+        void complete() {
+            emitters.forEach(SseEmitter::complete);
+            emitters.clear();
+        }
+
+        /**
+         * The rate is taken over the last interval and smoothed, so it follows the run rather than averaging
+         * over all of it. Until there is an interval to go by, and once the run has finished, the run's average
+         * is reported instead.
+         */
+        private BackupProgress sample() {
+
+            final long now = System.nanoTime();
+            final long bytes = backupResponse.getProcessedBytes().sum();
+            final long elapsed = now - sampleTime;
+
+            if (elapsed >= TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL)) {
+                // failed uploads hand back their bytes, which is not a negative rate.
+                final double intervalRate = Math.max(0, bytes - sampleBytes) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+
+                bytesPerSecond = bytesPerSecond < 0 ? intervalRate : RATE_SMOOTHING * intervalRate + (1 - RATE_SMOOTHING) * bytesPerSecond;
+                sampleTime = now;
+                sampleBytes = bytes;
+            }
+
+            final boolean running = backupResponse.getBackupState().isActive();
+
+            return BackupProgress.of(backupResponse, running && bytesPerSecond >= 0 ? Math.round(bytesPerSecond) : backupResponse.getBytesPerSecond());
+        }
+
+        private void send(final SseEmitter emitter, final BackupProgress progress) {
+
+            final String eventName = progress.getBackupState().isActive() ? PROGRESS_EVENT : COMPLETE_EVENT;
+
+            try {
+                emitter.send(SseEmitter.event().name(eventName).data(progress, MediaType.APPLICATION_JSON));
+
+            } catch (IOException | IllegalStateException e) {
+                // the subscriber has gone away; the container completes the emitter.
+                LOGGER.debug("Dropping progress subscriber of backup {}: {}", backupResponse.getId(), e.getMessage());
+                emitters.remove(emitter);
+            }
+        }
+    }
+}
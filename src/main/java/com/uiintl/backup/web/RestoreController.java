@@ -0,0 +1,46 @@
+package com.uiintl.backup.web;
+
+import com.uiintl.backup.agent.BackupRestorer;
+import com.uiintl.backup.agent.RestoreResponse;
+import com.uiintl.backup.config.BackupProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/restores")
+public class RestoreController {
+
+    private final BackupRestorer backupRestorer;
+
+    private final BackupProperties backupProperties;
+
+    @Autowired
+    public RestoreController(final BackupRestorer backupRestorer, final BackupProperties backupProperties) {
+        this.backupRestorer = backupRestorer;
+        this.backupProperties = backupProperties;
+    }
+
+    @PostMapping
+    public RestoreResponse restoreBackup(@RequestParam(value = "prefix", required = false) String prefix,
+                                         @RequestParam(value = "path", required = false) String filePath) {
+
+        String restorePath = StringUtils.isNotBlank(filePath) ? filePath : backupProperties.getRestorePath();
+
+        return this.backupRestorer.restore(prefix, restorePath, backupProperties.getBucketName());
+    }
+
+    @GetMapping("/{id}")
+    public RestoreResponse getRestoreResponse(@PathVariable final String id) {
+
+        return backupRestorer.getRestoreResponse(id).orElseThrow();
+    }
+
+    @GetMapping
+    public List<RestoreResponse> listRestores() {
+
+        return backupRestorer.listRestoreResponses();
+    }
+}
@@ -0,0 +1,45 @@
+package com.uiintl.backup.web;
+
+import com.uiintl.backup.agent.BackupVerifier;
+import com.uiintl.backup.agent.VerificationResponse;
+import com.uiintl.backup.config.BackupProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/verifications")
+public class VerificationController {
+
+    private final BackupVerifier backupVerifier;
+
+    private final BackupProperties backupProperties;
+
+    @Autowired
+    public VerificationController(final BackupVerifier backupVerifier, final BackupProperties backupProperties) {
+        this.backupVerifier = backupVerifier;
+        this.backupProperties = backupProperties;
+    }
+
+    @PostMapping
+    public VerificationResponse verifyBackup(@RequestParam(value = "path", required = false) String filePath) {
+
+        String backupPath = StringUtils.isNotBlank(filePath) ? filePath : backupProperties.getBackupPath();
+
+        return this.backupVerifier.verify(backupPath, backupProperties.getBucketName());
+    }
+
+    @GetMapping("/{id}")
+    public VerificationResponse getVerificationResponse(@PathVariable final String id) {
+
+        return backupVerifier.getVerificationResponse(id).orElseThrow();
+    }
+
+    @GetMapping
+    public List<VerificationResponse> listVerifications() {
+
+        return backupVerifier.listVerificationResponses();
+    }
+}
@@ -0,0 +1,44 @@
+package com.uiintl.backup.agent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkRecipeTest {
+
+    private static final String SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    @Test
+    public void roundTrips() throws IOException {
+
+        final List<ChunkRecipe.Chunk> chunks = List.of(
+                new ChunkRecipe.Chunk(SHA256, 4096),
+                new ChunkRecipe.Chunk(SHA256.replace('e', 'f'), 1),
+                new ChunkRecipe.Chunk(SHA256, 16384));
+        final ChunkRecipe recipe = new ChunkRecipe("photos/a=b c/\u00e9t\u00e9.jpg", 20481, 1571270400000L, SHA256, new ArrayList<>(chunks));
+
+        assertEquals(recipe, ChunkRecipe.parse(new ByteArrayInputStream(recipe.toBytes())));
+    }
+
+    @Test
+    public void roundTripsARecipeWithoutChunks() throws IOException {
+
+        final ChunkRecipe recipe = new ChunkRecipe("empty", 0, 1, SHA256, new ArrayList<>());
+        final ChunkRecipe parsed = ChunkRecipe.parse(new ByteArrayInputStream(recipe.toBytes()));
+
+        assertEquals(recipe, parsed);
+        assertTrue(parsed.getChunks().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnotherFormat() throws IOException {
+        ChunkRecipe.parse(new ByteArrayInputStream("format=chunk-recipe-v2\nkey=a\n".getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,144 @@
+package com.uiintl.backup.agent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContentDefinedChunkerTest {
+
+    private static final int AVERAGE_SIZE = 4096;
+
+    private static final int MIN_SIZE = AVERAGE_SIZE / 4;
+
+    private static final int MAX_SIZE = AVERAGE_SIZE * 4;
+
+    @Test
+    public void keepsChunksWithinTheMinAndMaxSize() throws IOException {
+
+        final byte[] data = randomBytes(1024 * 1024, 1);
+        final List<byte[]> chunks = chunk(new ByteArrayInputStream(data));
+
+        for (int i = 0; i < chunks.size(); i++) {
+            final int length = chunks.get(i).length;
+
+            assertTrue("chunk " + i + " is " + length + " bytes", length <= MAX_SIZE);
+            assertTrue("chunk " + i + " is " + length + " bytes", length >= MIN_SIZE || i == chunks.size() - 1);
+        }
+
+        assertArrayEquals(data, concat(chunks));
+    }
+
+    @Test
+    public void cutsAtTheMaxSizeWhenTheContentHasNoBoundary() throws IOException {
+
+        final List<byte[]> chunks = chunk(new ByteArrayInputStream(new byte[MAX_SIZE * 3 + 100]));
+
+        assertEquals(4, chunks.size());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(MAX_SIZE, chunks.get(i).length);
+        }
+
+        assertEquals(100, chunks.get(3).length);
+    }
+
+    @Test
+    public void keepsTheBoundariesAfterAnInsertionNearTheStart() throws IOException {
+
+        final byte[] original = randomBytes(512 * 1024, 2);
+        final byte[] edited = new byte[original.length + 100];
+        System.arraycopy(original, 0, edited, 0, 1000);
+        System.arraycopy(randomBytes(100, 3), 0, edited, 1000, 100);
+        System.arraycopy(original, 1000, edited, 1100, original.length - 1000);
+
+        final List<byte[]> before = chunk(new ByteArrayInputStream(original));
+        final List<byte[]> after = chunk(new ByteArrayInputStream(edited));
+
+        final Set<String> beforeChunks = new HashSet<>();
+        before.forEach(chunk -> beforeChunks.add(Arrays.toString(chunk)));
+
+        final long shared = after.stream().filter(chunk -> beforeChunks.contains(Arrays.toString(chunk))).count();
+
+        // only the chunk with the insertion, and at most the one after it, may change.
+        assertTrue(shared + " of " + before.size() + " chunks kept", shared >= before.size() - 2);
+        assertTrue(before.size() > 50);
+        assertArrayEquals(edited, concat(after));
+    }
+
+    @Test
+    public void findsTheSameBoundariesHoweverTheStreamIsRead() throws IOException {
+
+        final byte[] data = randomBytes(256 * 1024, 4);
+
+        final InputStream trickle = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+
+        final List<byte[]> whole = chunk(new ByteArrayInputStream(data));
+        final List<byte[]> trickled = chunk(trickle);
+
+        assertEquals(whole.size(), trickled.size());
+
+        for (int i = 0; i < whole.size(); i++) {
+            assertArrayEquals(whole.get(i), trickled.get(i));
+        }
+    }
+
+    @Test
+    public void handlesStreamsShorterThanTheMinSize() throws IOException {
+
+        assertEquals(0, chunk(new ByteArrayInputStream(new byte[0])).size());
+
+        final List<byte[]> chunks = chunk(new ByteArrayInputStream(randomBytes(MIN_SIZE - 1, 5)));
+
+        assertEquals(1, chunks.size());
+        assertEquals(MIN_SIZE - 1, chunks.get(0).length);
+    }
+
+    private static List<byte[]> chunk(final InputStream inputStream) throws IOException {
+
+        final ContentDefinedChunker chunker = new ContentDefinedChunker(inputStream, AVERAGE_SIZE);
+        final List<byte[]> chunks = new ArrayList<>();
+
+        for (int length = chunker.next(); length > 0; length = chunker.next()) {
+            chunks.add(Arrays.copyOf(chunker.buffer(), length));
+        }
+
+        return chunks;
+    }
+
+    private static byte[] concat(final List<byte[]> chunks) {
+
+        final byte[] data = new byte[chunks.stream().mapToInt(chunk -> chunk.length).sum()];
+        int position = 0;
+
+        for (byte[] chunk : chunks) {
+            System.arraycopy(chunk, 0, data, position, chunk.length);
+            position += chunk.length;
+        }
+
+        return data;
+    }
+
+    private static byte[] randomBytes(final int length, final long seed) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,140 @@
+package com.uiintl.backup.agent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InventoryIndexTest {
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    @Test
+    public void findsEveryKeyAfterTheTableGrows() {
+
+        final InventoryIndex index = new InventoryIndex();
+
+        // well past the initial table and arrays, so they are resized and rehashed several times.
+        for (int i = 0; i < 5000; i++) {
+            index.put("dir/file-" + i, i, MD5, 1000L + i);
+        }
+
+        assertEquals(5000, index.size());
+
+        for (int i = 0; i < 5000; i++) {
+            final InventoryIndex.InventoryEntry entry = index.get("dir/file-" + i);
+
+            assertEquals("dir/file-" + i, entry.getKey());
+            assertEquals(i, entry.getSize());
+            assertEquals(1000L + i, entry.getLastModified());
+        }
+
+        assertNull(index.get("dir/file-5000"));
+    }
+
+    @Test
+    public void updatesInPlaceAcrossARehash() {
+
+        final InventoryIndex index = new InventoryIndex();
+
+        for (int i = 0; i < 300; i++) {
+            index.put("key-" + i, 1, null, 1);
+        }
+
+        for (int i = 300; i < 3000; i++) {
+            index.put("key-" + i, 1, null, 1);
+            index.put("key-" + (i - 300), 2, MD5, 2);
+        }
+
+        assertEquals(3000, index.size());
+
+        for (int i = 0; i < 2700; i++) {
+            final InventoryIndex.InventoryEntry entry = index.get("key-" + i);
+
+            assertEquals(2, entry.getSize());
+            assertEquals(MD5, entry.getETag());
+        }
+
+        assertEquals(1, index.get("key-2999").getSize());
+    }
+
+    @Test
+    public void putIfAbsentLeavesARecordedUploadAlone() {
+
+        final InventoryIndex index = new InventoryIndex();
+        index.put("uploaded", 10, MD5, 2000);
+
+        index.putIfAbsent("uploaded", 5, "ffffffffffffffffffffffffffffffff", 1000);
+        index.putIfAbsent("listed", 5, null, 1000);
+
+        final InventoryIndex.InventoryEntry uploaded = index.get("uploaded");
+
+        assertEquals(10, uploaded.getSize());
+        assertEquals(MD5, uploaded.getETag());
+        assertEquals(2000, uploaded.getLastModified());
+        assertEquals(5, index.get("listed").getSize());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void keepsSingleAndMultipartETags() {
+
+        final InventoryIndex index = new InventoryIndex();
+        index.put("single", 1, '"' + MD5.toUpperCase() + '"', 0);
+        index.put("multipart", 1, '"' + MD5 + "-12\"", 0);
+
+        final InventoryIndex.InventoryEntry single = index.get("single");
+        final InventoryIndex.InventoryEntry multipart = index.get("multipart");
+
+        assertEquals(MD5, single.getETag());
+        assertTrue(single.hasContentMd5());
+        assertEquals(MD5 + "-12", multipart.getETag());
+        assertFalse(multipart.hasContentMd5());
+    }
+
+    @Test
+    public void dropsETagsThatAreNotMd5Based() {
+
+        final InventoryIndex index = new InventoryIndex();
+        index.put("none", 1, null, 0);
+        index.put("short", 1, "abc", 0);
+        index.put("not-hex", 1, "0123456789abcdef0123456789abcdeg", 0);
+        index.put("bad-parts", 1, MD5 + "-x", 0);
+        index.put("negative-parts", 1, MD5 + "--1", 0);
+
+        for (String key : List.of("none", "short", "not-hex", "bad-parts", "negative-parts")) {
+            assertNull(key, index.get(key).getETag());
+            assertFalse(key, index.get(key).hasContentMd5());
+        }
+    }
+
+    @Test
+    public void storesKeysAsUtf8() {
+
+        final InventoryIndex index = new InventoryIndex();
+        index.put("photos/\u00e9t\u00e9/\u00df.jpg", 7, MD5, 0);
+        index.put("photos/ete/s.jpg", 8, MD5, 0);
+
+        assertEquals(7, index.get("photos/\u00e9t\u00e9/\u00df.jpg").getSize());
+        assertEquals(8, index.get("photos/ete/s.jpg").getSize());
+    }
+
+    @Test
+    public void visitsEntriesInTheOrderTheyWereAdded() {
+
+        final InventoryIndex index = new InventoryIndex();
+        index.put("b", 1, null, 0);
+        index.put("a", 1, null, 0);
+        index.put("b", 2, null, 0);
+
+        final List<String> keys = new ArrayList<>();
+        index.forEach(entry -> keys.add(entry.getKey() + "=" + entry.getSize()));
+
+        assertEquals(List.of("b=2", "a=1"), keys);
+    }
+}
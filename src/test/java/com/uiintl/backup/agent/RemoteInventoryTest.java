@@ -0,0 +1,183 @@
+package com.uiintl.backup.agent;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.uiintl.backup.config.BackupProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RemoteInventoryTest {
+
+    private static final String BUCKET = "bucket";
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, Long> objects = new LinkedHashMap<>();
+
+    private final List<RemoteInventory> inventories = new ArrayList<>();
+
+    private BackupProperties backupProperties;
+
+    private int listRequests;
+
+    @Before
+    public void setUp() {
+        backupProperties = new BackupProperties();
+        backupProperties.setRemoteInventoryPath(folder.getRoot().getPath());
+        backupProperties.setRemoteInventoryTtl(60 * 60 * 1000);
+
+        objects.put("docs/a.txt", 1L);
+        objects.put("docs/b.txt", 2L);
+        objects.put(backupProperties.getChunkPrefix() + "0123", 3L);
+    }
+
+    @After
+    public void tearDown() {
+        inventories.forEach(RemoteInventory::shutdown);
+    }
+
+    @Test
+    public void leavesOutChunksAndPacks() throws IOException {
+
+        final InventoryIndex index = this.newInventory().get(BUCKET, "");
+
+        assertEquals(2, index.size());
+        assertEquals(1, index.get("docs/a.txt").getSize());
+        assertNull(index.get(backupProperties.getChunkPrefix() + "0123"));
+    }
+
+    @Test
+    public void replaysTheListingAndUploadsFromTheCache() throws IOException {
+
+        final RemoteInventory first = this.newInventory();
+        first.get(BUCKET, "");
+        first.recordUpload(BUCKET, "docs/a.txt", 10, MD5);
+        first.recordUpload(BUCKET, "docs/c.txt", 20, null);
+        first.shutdown();
+
+        final InventoryIndex index = this.newInventory().get(BUCKET, "");
+
+        assertEquals(1, listRequests);
+        assertEquals(3, index.size());
+        assertEquals(10, index.get("docs/a.txt").getSize());
+        assertEquals(MD5, index.get("docs/a.txt").getETag());
+        assertEquals(2, index.get("docs/b.txt").getSize());
+        assertEquals(20, index.get("docs/c.txt").getSize());
+    }
+
+    @Test
+    public void discardsAnIncompleteRecordAndAppendsAfterTheValidOnes() throws IOException {
+
+        final RemoteInventory first = this.newInventory();
+        first.get(BUCKET, "");
+        first.recordUpload(BUCKET, "docs/a.txt", 10, MD5);
+        first.shutdown();
+
+        final Path cacheFile = this.cacheFile();
+        final long validLength = Files.size(cacheFile);
+
+        // a record cut short, as a crash in the middle of an append would leave it.
+        Files.write(cacheFile, ByteBuffer.allocate(10).putInt(100).putInt(5).array(), StandardOpenOption.APPEND);
+
+        final RemoteInventory second = this.newInventory();
+        final InventoryIndex index = second.get(BUCKET, "");
+
+        assertEquals(validLength, Files.size(cacheFile));
+        assertEquals(2, index.size());
+        assertEquals(10, index.get("docs/a.txt").getSize());
+
+        second.recordUpload(BUCKET, "docs/b.txt", 30, MD5);
+        second.shutdown();
+
+        final InventoryIndex reloaded = this.newInventory().get(BUCKET, "");
+
+        assertEquals(1, listRequests);
+        assertEquals(10, reloaded.get("docs/a.txt").getSize());
+        assertEquals(30, reloaded.get("docs/b.txt").getSize());
+    }
+
+    @Test
+    public void listsAgainOnceTheCacheHasExpired() throws IOException {
+
+        final RemoteInventory first = this.newInventory();
+        first.get(BUCKET, "");
+        first.shutdown();
+
+        backupProperties.setRemoteInventoryTtl(0);
+        objects.put("docs/d.txt", 4L);
+
+        final InventoryIndex index = this.newInventory().get(BUCKET, "");
+
+        assertEquals(2, listRequests);
+        assertEquals(4, index.get("docs/d.txt").getSize());
+    }
+
+    private RemoteInventory newInventory() {
+        final RemoteInventory inventory = new RemoteInventory(this.s3(), backupProperties);
+        inventories.add(inventory);
+        return inventory;
+    }
+
+    private Path cacheFile() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            final List<Path> caches = files.filter(path -> path.toString().endsWith(".inv")).collect(Collectors.toList());
+            assertEquals(1, caches.size());
+            return caches.get(0);
+        }
+    }
+
+    /**
+     * A bucket that answers listings with {@link #objects} in a single page, and nothing else.
+     */
+    private AmazonS3 s3() {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("listObjectsV2") || !(args[0] instanceof ListObjectsV2Request)) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+
+            final ListObjectsV2Request request = (ListObjectsV2Request) args[0];
+            final ListObjectsV2Result result = new ListObjectsV2Result();
+
+            synchronized (this) {
+                listRequests++;
+            }
+
+            objects.forEach((key, size) -> {
+                if (key.startsWith(request.getPrefix())) {
+                    final S3ObjectSummary summary = new S3ObjectSummary();
+                    summary.setKey(key);
+                    summary.setSize(size);
+                    summary.setLastModified(new Date(1000));
+                    result.getObjectSummaries().add(summary);
+                }
+            });
+
+            return result;
+        });
+    }
+}